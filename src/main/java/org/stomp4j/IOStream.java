@@ -4,45 +4,71 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * A circular unbound array of bytes.
+ * A circular bounded array of bytes.
  *
  * <a name="backing_array"><h3>Backing Array</h3></a>
- * This class is implemented using a {@code byte[]}. The length of the array is dynamic.
- * Access is thread-safe using the read/write methods on the stream. The read and write
- * methods are redirected to two internal InputStream/OutputStream implementations
- * operating on the shared byte array.
+ * This class is implemented as a single-producer/single-consumer ring buffer over a {@code byte[]} with a
+ * power of two capacity. The read and write methods are redirected to two internal InputStream/OutputStream
+ * implementations operating on the shared byte array. Bulk reads and writes are at most two
+ * {@link System#arraycopy} calls, so moving N bytes costs O(N). The read and write positions are only ever
+ * advanced by their owning side, no lock is taken.
  *
- * <a name="warning"><h3>Blocking</h3></a>
+ * <a name="blocking"><h3>Blocking</h3></a>
  * The stream supports both modes, defaulting to blocking. When non-blocking mode is enabled,
- * any read operation will return -1 when there is no data available.
+ * any read operation will return -1 when there is no data available. Writes always apply backpressure:
+ * a writer waits while the buffer is full. Waiting threads are parked, optionally after a short spin
+ * (see {@link #IOStream(boolean, int, boolean)}), and are unparked by the other side.
  *
  * <a name="warning"><h3>Warning</h3></a>
- * There is absolutely NO bounds checking whatsoever. The implementation makes an intermediate
- * copy during the operations. Also note that there is no thread-safe way retrieve the actual
- * size of the array.
+ * There must be at most one reader and one writer at any time; callers serialize access on either side.
+ * A write from the reading thread itself (the {@link StompServer} loopback answering a frame it just read)
+ * can never be drained while it waits, so the buffer grows instead of blocking. All other writers block.
+ * A reading thread that is about to wait for something a blocked writer holds calls {@link #relieve()}
+ * first, which grows the buffer for that writer.
  *
  * @author Rory Slegtenhorst <rory.slegtenhorst@gmail.com>
  */
 class IOStream {
 
-    private final Object mBlockingLock = new Object();
+    static final int DEFAULT_CAPACITY = 65536;
+
+    private static final int SPINS = 1000;
+    private static final int YIELDS = 100;
 
     private final ByteArrayBackedInputStream mInputStream;
     private final ByteArrayBackedOutputStream mOutputStream;
 
-    private byte[] mBuffer = new byte[0];
+    private volatile byte[] mBuffer;
+    private volatile long mHead = 0; // Next read position, only advanced by the reader
+    private volatile long mTail = 0; // Next write position, only advanced by the writer
+
+    private volatile Thread mReader = null; // Set while the reader is (about to be) parked
+    private volatile Thread mWriter = null; // Set while the writer is (about to be) parked
+    private volatile Thread mReadingThread = null;
+
     private final Boolean mIsBlocking;
-    private int mBytesNeeded = -1;
+    private final boolean mIsSpinning;
 
     public IOStream() {
         this(true);
     }
 
     public IOStream(Boolean blocking) {
+        this(blocking, DEFAULT_CAPACITY, false);
+    }
+
+    /**
+     * @param blocking reads wait for data when {@code true}, return -1 when {@code false}
+     * @param capacity in bytes, rounded up to a power of two
+     * @param spin spin and yield for a while before parking a waiting thread
+     */
+    public IOStream(boolean blocking, int capacity, boolean spin) {
         mIsBlocking = blocking;
+        mIsSpinning = spin;
+        mBuffer = new byte[roundUp(capacity)];
         mInputStream = new ByteArrayBackedInputStream();
         mOutputStream = new ByteArrayBackedOutputStream();
     }
@@ -55,90 +81,191 @@ class IOStream {
         return mOutputStream;
     }
 
+    /**
+     * Discard all unread data. Must be called by the reading side.
+     */
     public void clear() {
-        if (mBuffer.length > 0)
-        synchronized(mBlockingLock) {
-            mBuffer = new byte[0];
-        }
+        mHead = mTail;
+        wake(mWriter);
     }
 
     public Boolean isBlocking() {
         return mIsBlocking;
     }
 
+    /**
+     * Returns the number of bytes that can be read without waiting.
+     */
+    public int available() {
+        return (int) (mTail - mHead);
+    }
+
+    public int capacity() {
+        return mBuffer.length;
+    }
+
     private int readByte() throws IOException {
-        if (mBuffer.length == 0) {
-            if (!mIsBlocking) return -1;
-            try {
-                mBytesNeeded = 1;
-                synchronized (mBlockingLock) {
-                    mBlockingLock.wait();
-                }
-                mBytesNeeded = -1;
-            } catch (InterruptedException e) {
-                throw new InterruptedIOException();
-            }
+        if (!awaitData()) return -1;
+        final long head = mHead;
+        final byte[] buffer = mBuffer;
+        final int result = buffer[(int) head & (buffer.length - 1)] & 0xff;
+        mHead = head + 1;
+        wake(mWriter);
+        return result;
+    }
+
+    private int readBytes(byte[] buffer, int offset, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!awaitData()) return -1;
+        final long head = mHead;
+        final long tail = mTail; // Read before the buffer, see grow
+        final byte[] data = mBuffer;
+        final int cnt = (int) Math.min(len, tail - head);
+        final int pos = (int) head & (data.length - 1);
+        final int first = Math.min(cnt, data.length - pos);
+        System.arraycopy(data, pos, buffer, offset, first);
+        if (first < cnt) System.arraycopy(data, 0, buffer, offset + first, cnt - first);
+        mHead = head + cnt;
+        wake(mWriter);
+        return cnt;
+    }
+
+    private void writeByte(int oneByte) throws IOException {
+        awaitSpace(1);
+        final long tail = mTail;
+        final byte[] buffer = mBuffer;
+        buffer[(int) tail & (buffer.length - 1)] = (byte) oneByte;
+        mTail = tail + 1;
+        wake(mReader);
+    }
+
+    private void writeBytes(byte[] buffer, int offset, int count) throws IOException {
+        while (count > 0) {
+            final int cnt = awaitSpace(count);
+            final long tail = mTail;
+            final byte[] data = mBuffer;
+            final int pos = (int) tail & (data.length - 1);
+            final int first = Math.min(cnt, data.length - pos);
+            System.arraycopy(buffer, offset, data, pos, first);
+            if (first < cnt) System.arraycopy(buffer, offset + first, data, 0, cnt - first);
+            mTail = tail + cnt;
+            wake(mReader);
+            offset += cnt;
+            count -= cnt;
         }
+    }
 
-        synchronized (mBlockingLock) {
+    /**
+     * Wait until data is available, returns {@code false} in non-blocking mode when there is none.
+     */
+    private boolean awaitData() throws InterruptedIOException {
+        mReadingThread = Thread.currentThread();
+        for (int round = 0; mTail == mHead; round++) {
+            if (!mIsBlocking) return false;
+            if (idle(round)) continue;
+            mReader = Thread.currentThread();
             try {
-                return mBuffer[0];
+                if (mTail == mHead) LockSupport.park(this);
             } finally {
-                mBuffer = Arrays.copyOfRange(mBuffer, 1, mBuffer.length);
+                mReader = null;
             }
+            if (Thread.interrupted()) throw new InterruptedIOException();
         }
+        return true;
     }
 
-    private int readBytes(byte[] buffer, int offset, int len) throws IOException {
-        if (mBuffer.length == 0) {
-            if (!mIsBlocking) return -1;
-            try {
-                mBytesNeeded = len;
-                synchronized (mBlockingLock) {
-                    mBlockingLock.wait();
-                }
-                mBytesNeeded = -1;
-            } catch (InterruptedException e) {
-                throw new InterruptedIOException();
+    /**
+     * Wait until there is space for at least one byte, returns the number of bytes (up to {@code count})
+     * that can be written.
+     */
+    private int awaitSpace(int count) throws InterruptedIOException {
+        for (int round = 0; ; round++) {
+            final int free = mBuffer.length - (int) (mTail - mHead);
+            if (free > 0) return Math.min(free, count);
+            if (isReadingThread()) {
+                grow(mBuffer.length + count);
+                continue;
             }
-        }
-        synchronized (mBlockingLock) {
-            final int cnt = (len > mBuffer.length) ? mBuffer.length : len;
+            if (idle(round)) continue;
+            mWriter = Thread.currentThread();
             try {
-                System.out.println("IOStream.readBytes: byte[" + buffer.length + "]@" + offset + " " + len + "/" + cnt);
-                System.arraycopy(mBuffer, 0, buffer, offset, cnt);
-                return cnt;
+                if (mBuffer.length == (int) (mTail - mHead)) LockSupport.park(this);
             } finally {
-                mBuffer = Arrays.copyOfRange(mBuffer, cnt, mBuffer.length);
+                mWriter = null;
             }
+            if (Thread.interrupted()) throw new InterruptedIOException();
         }
     }
 
-    private void writeByte(int oneByte) {
-        synchronized (mBlockingLock) {
-            byte[] result = new byte[mBuffer.length + 1];
-            System.arraycopy(mBuffer, 0, result, 0, mBuffer.length);
-            result[result.length - 1] = (byte) oneByte;
-            mBuffer = result;
-            if (mBytesNeeded != -1) mBlockingLock.notify();
-        }
+    /**
+     * Returns if the calling thread is the one reading this stream.
+     */
+    boolean isReadingThread() {
+        return mReadingThread == Thread.currentThread();
+    }
+
+    /**
+     * Grow the buffer for a writer waiting for space, returns {@code false} when no writer waits. Only the
+     * reading thread does this, when it is about to wait for something that writer holds. The writer can not
+     * write while it waits for space, so the buffer is not changing while it is copied.
+     */
+    boolean relieve() {
+        if (!isReadingThread()) return false;
+        final Thread writer = mWriter;
+        if (writer == null || mBuffer.length != (int) (mTail - mHead)) return false;
+        grow(mBuffer.length << 1);
+        wake(writer);
+        return true;
     }
 
-    private void writeBytes(byte[] buffer, int offset, int count) {
-        System.out.println("IOStream.writeBytes: byte[" + buffer.length + "]@" + offset + " " + count);
-        synchronized (mBlockingLock) {
-            byte[] result = new byte[mBuffer.length + count];
-            System.arraycopy(mBuffer, 0, result, 0, mBuffer.length);
-            System.arraycopy(buffer, offset, result, mBuffer.length, count);
-            mBuffer = result;
-            if (mBytesNeeded != -1) mBlockingLock.notify();
+    /**
+     * Spin, then yield, before parking. Returns {@code true} when the caller should check again without parking.
+     */
+    private boolean idle(int round) {
+        if (!mIsSpinning) return false;
+        if (round < SPINS) return true;
+        if (round < SPINS + YIELDS) {
+            Thread.yield();
+            return true;
         }
+        return false;
+    }
+
+    /**
+     * Only called by the reading thread, while the writer can not write: it is the reading thread itself, or
+     * it waits for space in the full buffer. The new buffer is published before the write position moves, and
+     * readers read the write position before the buffer, so a reader holding the old buffer never reads past
+     * the data it contains.
+     */
+    private void grow(int capacity) {
+        final byte[] data = mBuffer;
+        final byte[] result = new byte[roundUp(capacity)];
+        final long head = mHead;
+        final int cnt = (int) (mTail - head);
+        final int pos = (int) head & (data.length - 1);
+        final int first = Math.min(cnt, data.length - pos);
+        final int target = (int) head & (result.length - 1);
+        for (int i = 0; i < first; i++)
+            result[(target + i) & (result.length - 1)] = data[pos + i];
+        for (int i = first; i < cnt; i++)
+            result[(target + i) & (result.length - 1)] = data[i - first];
+        mBuffer = result;
+    }
+
+    private static void wake(Thread thread) {
+        if (thread != null) LockSupport.unpark(thread);
+    }
+
+    private static int roundUp(int capacity) {
+        int result = 1;
+        while (result < capacity) result <<= 1;
+        return result;
     }
 
     class ByteArrayBackedInputStream extends InputStream {
 
         @Override
-        synchronized public int read() throws IOException {
+        public int read() throws IOException {
             return readByte();
         }
 
@@ -146,12 +273,17 @@ class IOStream {
         public int read(byte[] buffer, int offset, int len) throws IOException {
             return readBytes(buffer, offset, len);
         }
+
+        @Override
+        public int available() throws IOException {
+            return IOStream.this.available();
+        }
     }
 
     class ByteArrayBackedOutputStream extends OutputStream {
 
         @Override
-        synchronized public void write(int oneByte) throws IOException {
+        public void write(int oneByte) throws IOException {
             writeByte(oneByte);
         }
 
@@ -8,8 +8,8 @@ package org.stomp4j;
  */
 interface Stomp {
 
-    static final Boolean DEBUG = true;
-    static final Boolean VERBOSE = false;
+    static final boolean DEBUG = false;
+    static final boolean VERBOSE = false;
 
     static final int DEFAULT_PORT = 61613;
     
@@ -51,6 +51,7 @@ interface Stomp {
     static final String HEADER_CONTENT_LENGTH = "content-length";
     static final String HEADER_TRANSACTION = "transaction";
     static final String HEADER_RECEIPT = "receipt-id";
+    static final String HEADER_RECEIPT_REQUEST = "receipt";
     static final String HEADER_CHARSET = "charset";
     static final String HEADER_HEARTBEAT = "heart-beat";
     static final String HEADER_PERSISTENT = "persistent";
@@ -58,13 +59,20 @@ interface Stomp {
     static final String HEADER_SERVER = "server";
     static final String HEADER_VERSION = "version";
     static final String HEADER_MESSAGE = "message";
+    static final String HEADER_PREFETCH_ACTIVEMQ = "activemq.prefetchSize";
+    static final String HEADER_PREFETCH_COUNT = "prefetch-count";
+    static final String HEADER_REDELIVERED = "redelivered";
 
     static final String VALUE_ACCEPT_VERSION = "1.1";
     static final String VALUE_ACK = "client";
+    static final String VALUE_ACK_AUTO = "auto";
+    static final String VALUE_ACK_CLIENT_INDIVIDUAL = "client-individual";
     static final String VALUE_CONTENT_TYPE = "text/plain";
     static final String VALUE_CHARSET = "UTF-8";
     static final String VALUE_PERSISTENT = "true";
     static final String VALUE_HEARTBEAT = "0,0";
+    static final String VALUE_HOST = "localhost";
+    static final String VALUE_REDELIVERED = "true";
 
     static final String MSG_NOT_CONNECTED = "Not connected";
     static final String MSG_ALREADY_CONNECTED = "Already connected";
@@ -74,5 +82,15 @@ interface Stomp {
     static final String MSG_HEADER_REQ = "Required header missing";
     static final String MSG_INVALID_VALUE = "Invalid value";
     static final String MSG_INVALID_COMMAND = "Invalid command";
+    static final String MSG_RECEIPT_WINDOW = "Receipt window full";
+    static final String MSG_RECEIPT_TIMEOUT = "Receipt timeout";
+    static final String MSG_HEARTBEAT_TIMEOUT = "Heart-beat timeout";
+    static final String MSG_ALREADY_SUBSCRIBED = "Already subscribed";
+    static final String MSG_PREFETCH_EXCEEDED = "Prefetch exceeded";
+    static final String MSG_JOURNAL_ERROR = "Journal error";
+    static final String MSG_SPOOL_FULL = "Spool full";
+    static final String MSG_TRANSACTION_ENDED = "Transaction ended";
+    static final String MSG_TRANSACTION_LOST = "Transaction lost";
+    static final String MSG_FRAMES_DROPPED = "Unwritten frames dropped";
 
 }
\ No newline at end of file
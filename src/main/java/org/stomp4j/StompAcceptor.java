@@ -0,0 +1,321 @@
+package org.stomp4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * StompAcceptor Class
+ *
+ * <p>Serves a {@link StompBroker} over TCP, so {@code stomp://} and {@code stomp+nio://} clients can connect to it
+ * like to any other broker. Every client connection gets a session on the broker, with the same protocol handling
+ * as a loopback {@link StompServer}.
+ *
+ * <a name="label_threads"><h3>Threads</h3></a>
+ * The acceptor runs a small pool of {@link StompReactor}s of its own, separate from the ones the clients in the
+ * same JVM use. The first one also accepts connections, which are spread over the pool round robin. A connection
+ * stays on its reactor: frames are read, decoded and handed to the broker there, so a reactor never waits for a
+ * consumer. Messages are written by the broker's delivery tasks.
+ *
+ * <a name="label_write"><h3>Writing</h3></a>
+ * Frames are written to the channel right away when nothing is queued. Whatever the socket does not accept is
+ * queued, and drained by the reactor once the channel becomes writable. Once more than {@link #MAX_PENDING} bytes
+ * are queued, delivery tasks wait for the client to catch up, so a slow consumer holds up its own deliveries
+ * instead of filling the heap. The reactor itself never waits.
+ *
+ * <p>For a stand-alone broker, run {@code java -cp stomp4j.jar org.stomp4j.StompAcceptor [port]}.
+ *
+ * @author Rory Slegtenhorst <rory.slegtenhorst@gmail.com>
+ */
+public class StompAcceptor implements Closeable, Stomp {
+
+    static final int DEFAULT_PORT = 61613;
+    static final int MAX_PENDING = 1 << 20; // Queued bytes per connection before deliveries wait
+
+    private static final int THREADS = Integer.getInteger("org.stomp4j.nio.threads",
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final int MAX_READS = 16; // Reads per readiness event, keeps the reactor fair
+    private static final AtomicInteger mCount = new AtomicInteger(0);
+
+    private final StompBroker mBroker;
+    private final StompReactor[] mReactors;
+    private final Set<Connection> mConnections = ConcurrentHashMap.newKeySet();
+    private ServerSocketChannel mChannel = null;
+    private int mNext = 0; // Only touched by the accepting reactor
+    private volatile boolean mClosed = false;
+
+    /**
+     * Create an acceptor for the broker, with the default number of reactors.
+     * @param broker
+     * @throws IOException
+     */
+    public StompAcceptor(StompBroker broker) throws IOException {
+        this(broker, THREADS);
+    }
+
+    /**
+     * Create an acceptor for the broker.
+     * @param broker
+     * @param threads number of reactors serving the connections
+     * @throws IOException
+     */
+    public StompAcceptor(StompBroker broker, int threads) throws IOException {
+        if (broker == null) throw new NullPointerException();
+        mBroker = broker;
+        final int index = mCount.incrementAndGet();
+        mReactors = new StompReactor[Math.max(1, threads)];
+        for (int i = 0; i < mReactors.length; i++)
+            mReactors[i] = new StompReactor("StompAcceptor-" + index + "-" + i);
+    }
+
+    /**
+     * Start accepting connections on the port, on all interfaces. Port 0 picks a free port, see
+     * {@link #getLocalPort()}.
+     * @param port
+     * @throws IOException
+     */
+    public void bind(int port) throws IOException {
+        bind(new InetSocketAddress(port));
+    }
+
+    /**
+     * Start accepting connections on the address.
+     * @param address
+     * @throws IOException
+     */
+    public synchronized void bind(SocketAddress address) throws IOException {
+        if (mClosed) throw new SocketException(MSG_SOCKET_CLOSED);
+        if (mChannel != null) throw new IllegalStateException(MSG_ALREADY_CONNECTED);
+        final ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.socket().setReuseAddress(true);
+            channel.bind(address);
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        mChannel = channel;
+        mReactors[0].register(channel, SelectionKey.OP_ACCEPT, new StompReactor.Handler() {
+            @Override
+            public void onRegistered(SelectionKey key) {}
+
+            @Override
+            public void onReady(SelectionKey key) throws IOException {
+                accept();
+            }
+
+            @Override
+            public void onFailure(IOException e) {
+                if (DEBUG) e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Returns the port connections are accepted on, or -1 when not bound.
+     */
+    public synchronized int getLocalPort() {
+        return mChannel == null ? -1 : mChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Returns the number of connected clients.
+     */
+    public int getConnectionCount() {
+        return mConnections.size();
+    }
+
+    public StompBroker getBroker() {
+        return mBroker;
+    }
+
+    /**
+     * Stop accepting, and close all client connections. Their unacknowledged messages go back to the broker.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        final ServerSocketChannel channel;
+        synchronized (this) {
+            if (mClosed) return;
+            mClosed = true;
+            channel = mChannel;
+        }
+        try {
+            if (channel != null) channel.close();
+        } finally {
+            for (Connection connection : mConnections)
+                connection.close(new SocketException(MSG_SOCKET_CLOSED));
+            for (StompReactor reactor : mReactors) reactor.shutdown();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = mChannel.accept()) != null) {
+            try {
+                channel.socket().setTcpNoDelay(true);
+                channel.configureBlocking(false);
+            } catch (IOException e) {
+                channel.close();
+                continue;
+            }
+            final StompReactor reactor = mReactors[mNext];
+            mNext = (mNext + 1) % mReactors.length;
+            final Connection connection = new Connection(channel, reactor);
+            mConnections.add(connection);
+            if (mClosed) connection.close(new SocketException(MSG_SOCKET_CLOSED));
+            else reactor.register(channel, SelectionKey.OP_READ, connection);
+        }
+    }
+
+    /**
+     * A client connection, and its session on the broker.
+     */
+    private final class Connection implements StompReactor.Handler, StompBroker.Peer {
+        private final SocketChannel mChannel;
+        private final StompReactor mReactor;
+        private final StompBroker.Session mSession;
+        private final StompDecoder mDecoder = new StompDecoder();
+        private final StompEncoder mEncoder = new StompEncoder();
+
+        private final Object mWriteLock = new Object();
+        private final Queue<ByteBuffer> mPending = new ArrayDeque<ByteBuffer>(); // Guarded by mWriteLock
+        private int mPendingBytes = 0; // Guarded by mWriteLock
+        private volatile SelectionKey mKey = null;
+        private volatile boolean mOpen = true;
+
+        Connection(SocketChannel channel, StompReactor reactor) {
+            mChannel = channel;
+            mReactor = reactor;
+            mSession = mBroker.newSession(this);
+        }
+
+        @Override
+        public void write(StompFrame frame) throws IOException {
+            synchronized (mWriteLock) {
+                while (mOpen && mPendingBytes > MAX_PENDING && !mReactor.inReactor()) {
+                    try {
+                        mWriteLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (!mOpen) throw new SocketException(MSG_SOCKET_CLOSED);
+                try {
+                    mEncoder.encode(frame);
+                    final ByteBuffer buffer = mEncoder.getBuffer();
+                    buffer.flip();
+                    if (mPending.isEmpty()) mChannel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        final ByteBuffer remainder = ByteBuffer.allocate(buffer.remaining());
+                        remainder.put(buffer);
+                        remainder.flip();
+                        mPending.add(remainder);
+                        mPendingBytes += remainder.remaining();
+                        if (mPending.size() == 1 && mKey != null)
+                            mReactor.interest(mKey, SelectionKey.OP_WRITE, true);
+                    }
+                } catch (IOException e) {
+                    close(e);
+                    throw e;
+                } finally {
+                    mEncoder.clear();
+                }
+            }
+        }
+
+        @Override
+        public void onRegistered(SelectionKey key) {
+            mKey = key;
+            synchronized (mWriteLock) {
+                // Anything queued before the registration completed
+                if (!mPending.isEmpty()) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+
+        @Override
+        public void onReady(SelectionKey key) throws IOException {
+            if (key.isWritable()) drain(key);
+            if (key.isValid() && key.isReadable()) read();
+        }
+
+        @Override
+        public void onFailure(IOException e) {
+            close(e);
+        }
+
+        void close(IOException e) {
+            synchronized (mWriteLock) {
+                if (!mOpen) return;
+                mOpen = false;
+                mPending.clear();
+                mPendingBytes = 0;
+                mWriteLock.notifyAll();
+            }
+            if (DEBUG && !MSG_SOCKET_CLOSED.equals(e.getMessage())) e.printStackTrace();
+            try {
+                mChannel.close();
+            } catch (IOException ignore) {
+            }
+            mConnections.remove(this);
+            mSession.close();
+        }
+
+        private void drain(SelectionKey key) throws IOException {
+            synchronized (mWriteLock) {
+                try {
+                    for (ByteBuffer buffer = mPending.peek(); buffer != null; buffer = mPending.peek()) {
+                        final int remaining = buffer.remaining();
+                        mChannel.write(buffer);
+                        mPendingBytes -= remaining - buffer.remaining();
+                        if (buffer.hasRemaining()) return;
+                        mPending.poll();
+                    }
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                } finally {
+                    if (mPendingBytes <= MAX_PENDING) mWriteLock.notifyAll();
+                }
+            }
+        }
+
+        private void read() throws IOException {
+            for (int reads = 0; reads < MAX_READS; reads++) {
+                final int count = mChannel.read(mDecoder.getBuffer());
+                if (count < 0) throw new SocketException(MSG_SOCKET_CLOSED);
+                if (count == 0) break;
+                for (StompFrame frame = mDecoder.decode(null); frame != null; frame = mDecoder.decode(null)) {
+                    mSession.onFrame(frame);
+                    if (!mOpen) return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Run a stand-alone broker.
+     * @param args optional port, {@value #DEFAULT_PORT} by default
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        final int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        final StompAcceptor acceptor = new StompAcceptor(new StompBroker());
+        acceptor.bind(port);
+        System.out.println("StompAcceptor listening on port " + acceptor.getLocalPort());
+        Thread.currentThread().join(); // The reactors are daemon threads
+    }
+}
@@ -0,0 +1,141 @@
+package org.stomp4j;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * StompAcks Class
+ *
+ * <p>Acknowledges the messages of a single subscription, according to its {@link StompConnection.AckMode}.
+ *
+ * <a name="label_modes"><h3>Modes</h3></a>
+ * <ul>
+ * <li>{@code auto}: the server considers a message acknowledged once sent, nothing is written</li>
+ * <li>{@code client-individual}: every message gets its own {@code ACK} or {@code NACK}</li>
+ * <li>{@code client}: an {@code ACK} covers the message and everything before it on the subscription, so only
+ * the latest accepted message is remembered. The {@code ACK} is written once {@code batch} messages are
+ * pending, or {@code delay} milliseconds after the first pending one, whichever comes first.
+ * A rejected message flushes the pending {@code ACK} first, then gets its {@code NACK} right away.</li>
+ * </ul>
+ *
+ * <p>Messages of a subscription are handled one at a time (on the reader, or on its dispatch lane), so
+ * message ids arrive here in order.
+ *
+ * @author Rory Slegtenhorst <rory.slegtenhorst@gmail.com>
+ */
+class StompAcks implements Stomp {
+
+    static final int DEFAULT_BATCH = 100;
+    static final int DEFAULT_DELAY = 50;
+
+    private final StompConnection mConnection;
+    private final String mSubscription;
+    private final StompConnection.AckMode mMode;
+    private final int mBatch;
+    private final long mDelay;
+
+    private String mPendingId = null;
+    private int mPendingCount = 0;
+    private StompTimer.Timeout mTimeout = null;
+
+    private final Runnable mExpire = new Runnable() {
+        @Override
+        public void run() {
+            // Written off the timer thread, see StompHeartBeat
+            StompWriter.execute(mFlusher);
+        }
+    };
+
+    private final Runnable mFlusher = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                flush();
+            } catch (IOException e) {
+                // The transport reports write failures itself
+            }
+        }
+    };
+
+    /**
+     * @param connection
+     * @param subscription subscription id
+     * @param mode
+     * @param batch maximum number of messages covered by one cumulative {@code ACK}
+     * @param delay maximum time in milliseconds a cumulative {@code ACK} is held back
+     */
+    StompAcks(StompConnection connection, String subscription, StompConnection.AckMode mode, int batch, int delay) {
+        mConnection = connection;
+        mSubscription = subscription;
+        mMode = mode;
+        mBatch = Math.max(1, batch);
+        mDelay = Math.max(0, delay);
+    }
+
+    StompConnection.AckMode getMode() {
+        return mMode;
+    }
+
+    /**
+     * The message was accepted by all listeners.
+     * @param messageId
+     * @throws IOException
+     */
+    synchronized void ack(String messageId) throws IOException {
+        switch (mMode) {
+            case AUTO:
+                break;
+            case CLIENT_INDIVIDUAL:
+                mConnection.sendAck(mSubscription, messageId);
+                break;
+            case CLIENT:
+                mPendingId = messageId;
+                if (++mPendingCount >= mBatch || mDelay == 0) {
+                    flush();
+                } else if (mTimeout == null) {
+                    mTimeout = StompTimer.getInstance().schedule(mExpire, mDelay, TimeUnit.MILLISECONDS);
+                }
+                break;
+        }
+    }
+
+    /**
+     * The message was rejected by a listener.
+     * @param messageId
+     * @throws IOException
+     */
+    synchronized void nack(String messageId) throws IOException {
+        switch (mMode) {
+            case AUTO:
+                break;
+            case CLIENT:
+                flush();
+                mConnection.sendNack(mSubscription, messageId);
+                break;
+            case CLIENT_INDIVIDUAL:
+                mConnection.sendNack(mSubscription, messageId);
+                break;
+        }
+    }
+
+    /**
+     * Write the pending cumulative {@code ACK}, if any. Written while holding the lock, so a flush by the
+     * timer can never overtake a later {@code ACK}.
+     * @throws IOException
+     */
+    synchronized void flush() throws IOException {
+        final String messageId = mPendingId;
+        clear();
+        if (messageId != null) mConnection.sendAck(mSubscription, messageId);
+    }
+
+    /**
+     * Forget the pending {@code ACK}, e.g. when the connection is closed.
+     */
+    synchronized void clear() {
+        mPendingId = null;
+        mPendingCount = 0;
+        if (mTimeout != null) mTimeout.cancel();
+        mTimeout = null;
+    }
+}
@@ -0,0 +1,184 @@
+package org.stomp4j;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * StompBody Class
+ *
+ * <p>Body of an outgoing frame that is streamed from an {@link InputStream}, a {@link FileChannel} or a
+ * {@link ByteBuffer} instead of held in a payload array, see
+ * {@link StompMessage#StompMessage(String, InputStream, int, String)},
+ * {@link StompMessage#StompMessage(String, FileChannel, long, int, String)} and
+ * {@link StompMessage#StompMessage(String, ByteBuffer, String)}.
+ *
+ * <a name="label_transfer"><h3>Transfer</h3></a>
+ * The transport writes the head of the frame, then calls {@link #transferTo(WritableByteChannel)} until the
+ * body is done. A file body is handed to {@link FileChannel#transferTo(long, long, WritableByteChannel)}, which
+ * sends straight from the page cache when the target is a socket channel ({@code stomp+nio}), and copies
+ * through a small buffer otherwise. A stream body is copied through a {@link #CHUNK} sized buffer. Either way,
+ * the body is never in memory as a whole. A buffer body is written from the buffer itself, so a direct buffer
+ * goes to a socket channel without being copied to the heap.
+ *
+ * <p>A body is written once, before the send returns, so the source belongs to the caller again afterwards. With
+ * write coalescing, the sender waits in {@link #await(long)} until the {@link StompWriter} got to it. On
+ * {@code stomp+nio}, what the socket does not take right away is queued as the body itself, and the sender waits
+ * until the reactor wrote it (see {@link StompTransport#awaitWritten(StompBody)}). The one exception is a send
+ * on the reactor thread, which never waits: the rest is written from the source after the send returned. A stream or file that ends before the announced length fails the write with an
+ * {@link EOFException}; as the frame is half written by then, the transport is closed.
+ *
+ * @author Rory Slegtenhorst <rory.slegtenhorst@gmail.com>
+ */
+class StompBody implements Stomp {
+
+    static final int CHUNK = 65536;
+
+    private final InputStream mInput;
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer;
+    private final int mLength;
+    private long mPosition; // File position of the next byte, for channel bodies
+    private int mRemaining; // Bytes not yet read from the source
+    private ByteBuffer mChunk = null; // Bytes read from the stream, not yet written
+    private boolean mFinished = false; // Guarded by this
+
+    StompBody(InputStream input, int length) {
+        if (input == null) throw new NullPointerException();
+        if (length < 0) throw new IllegalArgumentException("Invalid length: " + length);
+        mInput = input;
+        mChannel = null;
+        mBuffer = null;
+        mLength = length;
+        mRemaining = length;
+    }
+
+    StompBody(FileChannel channel, long position, int length) {
+        if (channel == null) throw new NullPointerException();
+        if (length < 0 || position < 0) throw new IllegalArgumentException("Invalid range: " + position + ", " + length);
+        mInput = null;
+        mChannel = channel;
+        mBuffer = null;
+        mLength = length;
+        mPosition = position;
+        mRemaining = length;
+    }
+
+    /**
+     * Write the remaining bytes of the buffer, without moving its position.
+     * @param buffer
+     */
+    StompBody(ByteBuffer buffer) {
+        if (buffer == null) throw new NullPointerException();
+        mInput = null;
+        mChannel = null;
+        mBuffer = buffer.duplicate();
+        mLength = mBuffer.remaining();
+        mRemaining = mLength;
+    }
+
+    /**
+     * Returns the body of a buffer body, or {@code null} for other bodies. The view is positioned at the
+     * first byte not yet written.
+     */
+    ByteBuffer getBuffer() {
+        return mBuffer == null ? null : mBuffer.duplicate();
+    }
+
+    /**
+     * Returns the length of the body in bytes.
+     */
+    int length() {
+        return mLength;
+    }
+
+    /**
+     * Returns the number of bytes not yet written.
+     */
+    int remaining() {
+        if (mBuffer != null) return mBuffer.remaining();
+        return mRemaining + (mChunk == null ? 0 : mChunk.remaining());
+    }
+
+    /**
+     * Returns if every byte of the body was written.
+     */
+    boolean isDone() {
+        if (mBuffer != null) return !mBuffer.hasRemaining();
+        return mRemaining == 0 && (mChunk == null || !mChunk.hasRemaining());
+    }
+
+    /**
+     * Mark the body as handled by the {@link StompWriter}, written or not, and wake up the sender.
+     */
+    synchronized void finish() {
+        mFinished = true;
+        notifyAll();
+    }
+
+    /**
+     * Wait until the body was handled by the {@link StompWriter}.
+     * @param millis maximum time to wait
+     * @return {@code true} once handled
+     * @throws InterruptedIOException
+     */
+    synchronized boolean await(long millis) throws InterruptedIOException {
+        if (!mFinished) {
+            try {
+                wait(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        return mFinished;
+    }
+
+    /**
+     * Write as much of the body as the target accepts. A blocking target takes the body in chunks, a
+     * non-blocking one may take nothing at all.
+     * @param target
+     * @return the number of bytes written
+     * @throws IOException {@link EOFException} when the source ends early
+     */
+    long transferTo(WritableByteChannel target) throws IOException {
+        if (mBuffer != null) return target.write(mBuffer);
+        if (mChannel != null) {
+            if (mRemaining == 0) return 0;
+            final long count = mChannel.transferTo(mPosition, mRemaining, target);
+            if (count == 0 && mPosition >= mChannel.size()) throw new EOFException();
+            mPosition += count;
+            mRemaining -= count;
+            return count;
+        }
+        if (mChunk == null) {
+            mChunk = ByteBuffer.allocate(Math.min(CHUNK, Math.max(1, mLength)));
+            mChunk.flip();
+        }
+        if (!mChunk.hasRemaining()) {
+            if (mRemaining == 0) return 0;
+            mChunk.clear();
+            final int count = mInput.read(mChunk.array(), 0, Math.min(mChunk.capacity(), mRemaining));
+            if (count < 0) throw new EOFException();
+            mChunk.limit(count);
+            mRemaining -= count;
+        }
+        return target.write(mChunk);
+    }
+
+    /**
+     * Write the whole body to a blocking stream.
+     * @param output
+     * @throws IOException
+     */
+    void writeTo(OutputStream output) throws IOException {
+        final WritableByteChannel target = Channels.newChannel(output);
+        while (!isDone()) transferTo(target);
+    }
+}
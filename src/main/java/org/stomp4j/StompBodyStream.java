@@ -0,0 +1,207 @@
+package org.stomp4j;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * StompBodyStream Class
+ *
+ * <p>Body of a received frame that is streamed instead of copied into a payload array, see
+ * {@link StompConnection#setStreamThreshold(int)}.
+ *
+ * <a name="label_pipe"><h3>Pipe</h3></a>
+ * The connection's reader feeds the body into a small ring buffer as it comes off the socket, and the
+ * listener reads it from there. When the ring is full, the reader stops reading the socket until the
+ * listener caught up, so a body of any size takes at most {@link #CAPACITY} bytes of heap. After the body,
+ * the reader waits until the stream is closed before it decodes the next frame; the connection closes it
+ * once the listeners returned, skipping whatever they did not read.
+ *
+ * <p>A blocking reader waits in {@link #await()}. A {@link StompReactor} cannot wait, it passes a wake-up
+ * task to {@link #park(Runnable)} instead and stops reading until the task runs.
+ *
+ * @author Rory Slegtenhorst <rory.slegtenhorst@gmail.com>
+ */
+class StompBodyStream extends InputStream implements Stomp {
+
+    static final int CAPACITY = 65536;
+
+    private final int mLength;
+    private final byte[] mRing;
+    private int mRead = 0; // Ring position of the first unread byte
+    private int mCount = 0; // Unread bytes in the ring
+    private int mOffered = 0; // Bytes of the body fed so far
+    private boolean mClosed = false;
+    private IOException mError = null;
+    private Runnable mWakeup = null;
+
+    StompBodyStream(int length) {
+        mLength = length;
+        mRing = new byte[Math.max(1, Math.min(length, CAPACITY))];
+    }
+
+    /**
+     * Returns the length of the body in bytes.
+     */
+    int length() {
+        return mLength;
+    }
+
+    /**
+     * Feed body bytes, called by the reader. Bytes offered after the stream was closed are dropped.
+     * @param data
+     * @param offset
+     * @param len
+     * @return the number of bytes taken, less than {@code len} when the ring is full
+     */
+    synchronized int offer(byte[] data, int offset, int len) {
+        len = Math.min(len, mLength - mOffered);
+        if (mClosed || mError != null) {
+            mOffered += len;
+            return len;
+        }
+        final int count = Math.min(len, mRing.length - mCount);
+        final int write = (mRead + mCount) % mRing.length;
+        final int first = Math.min(count, mRing.length - write);
+        System.arraycopy(data, offset, mRing, write, first);
+        System.arraycopy(data, offset + first, mRing, 0, count - first);
+        mCount += count;
+        mOffered += count;
+        if (count > 0) notifyAll();
+        return count;
+    }
+
+    /**
+     * Returns if the reader has to wait: the ring is full, or the whole body was fed and the stream is
+     * still open.
+     */
+    synchronized boolean isStalled() {
+        if (mClosed || mError != null) return false;
+        return mOffered == mLength || mCount == mRing.length;
+    }
+
+    /**
+     * Returns if the whole body was fed to the stream.
+     */
+    synchronized boolean isComplete() {
+        return mOffered == mLength;
+    }
+
+    /**
+     * Wait until the reader can continue, see {@link #isStalled()}.
+     * @throws InterruptedIOException
+     */
+    synchronized void await() throws InterruptedIOException {
+        while (isStalled()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * Have {@code wakeup} run once the reader can continue.
+     * @param wakeup
+     * @return {@code false} when the reader can continue right away, and the task is not kept
+     */
+    synchronized boolean park(Runnable wakeup) {
+        if (!isStalled()) return false;
+        mWakeup = wakeup;
+        return true;
+    }
+
+    /**
+     * Fail the stream, readers get the error once the buffered bytes are read. Called when the transport closed.
+     * @param e
+     */
+    void fail(IOException e) {
+        final Runnable wakeup;
+        synchronized (this) {
+            if (mError == null && mOffered < mLength) mError = e;
+            wakeup = wakeup();
+        }
+        if (wakeup != null) wakeup.run();
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] single = new byte[1];
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int len) throws IOException {
+        if (len == 0) return 0;
+        final Runnable wakeup;
+        final int count;
+        synchronized (this) {
+            while (mCount == 0) {
+                if (mClosed || mOffered == mLength) return -1;
+                if (mError != null) throw new EOFException(mError.getMessage());
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            count = Math.min(len, mCount);
+            final int first = Math.min(count, mRing.length - mRead);
+            System.arraycopy(mRing, mRead, buffer, offset, first);
+            System.arraycopy(mRing, 0, buffer, offset + first, count - first);
+            mRead = (mRead + count) % mRing.length;
+            mCount -= count;
+            // Wake the reader once half the ring is free, not for every read
+            wakeup = mCount <= mRing.length >> 1 ? wakeup() : null;
+        }
+        if (wakeup != null) wakeup.run();
+        return count;
+    }
+
+    @Override
+    public synchronized int available() {
+        return mCount;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) return 0;
+        final byte[] scratch = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            final int count = read(scratch, 0, (int) Math.min(n - skipped, scratch.length));
+            if (count < 0) break;
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    /**
+     * Close the stream, the rest of the body is skipped and the reader continues with the next frame.
+     */
+    @Override
+    public void close() {
+        final Runnable wakeup;
+        synchronized (this) {
+            if (mClosed) return;
+            mClosed = true;
+            mCount = 0;
+            wakeup = wakeup();
+        }
+        if (wakeup != null) wakeup.run();
+    }
+
+    /**
+     * Wake up blocked threads, returns the parked task to run outside the lock.
+     */
+    private Runnable wakeup() {
+        notifyAll();
+        final Runnable wakeup = mWakeup;
+        mWakeup = null;
+        return wakeup;
+    }
+}
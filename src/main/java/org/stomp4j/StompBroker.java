@@ -0,0 +1,678 @@
+package org.stomp4j;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * StompBroker Class
+ *
+ * <p>In-memory message broker, shared by any number of {@link StompServer} sessions in the same JVM. Meant
+ * for integration and load tests, nothing is persisted.
+ *
+ * <a name="label_destinations"><h3>Destinations</h3></a>
+ * Destinations starting with {@code /topic/} fan out: every subscriber gets every message sent while it is
+ * subscribed. All other destinations are queues: every message goes to a single consumer, round-robin over
+ * the consumers that have room for it. Messages sent to a queue without (available) consumers wait for one.
+ *
+ * <a name="label_acks"><h3>Acknowledgements</h3></a>
+ * Subscriptions in {@code client} or {@code client-individual} mode keep their messages until they are
+ * acknowledged; an {@code ACK} in {@code client} mode covers all earlier messages of the subscription. A
+ * {@code prefetch-count} (or {@code activemq.prefetchSize}) header on {@code SUBSCRIBE} limits the number of
+ * unacknowledged messages a queue consumer gets. On {@code NACK}, {@code UNSUBSCRIBE} or the end of the
+ * session, unacknowledged queue messages go back to the front of the queue, marked {@code redelivered}. A
+ * nacked topic message is redelivered to the same subscriber, others are dropped with the subscription.
+ *
+ * <a name="label_delivery"><h3>Delivery</h3></a>
+ * Sending never blocks on consumers. Queue messages are appended to a lock-free deque and handed out by
+ * whichever thread gets to dispatch first, one thread at a time, so they leave in order. Every subscription
+ * has its own outbox, written to its session by a delivery task on the broker's executor, one task per
+ * subscription at a time. A slow subscriber only holds up its own task.
+ *
+ * <a name="label_persistence"><h3>Persistence</h3></a>
+ * A broker created with a {@link StompJournal} appends every {@code persistent:true} queue message to it, and
+ * sends the {@code RECEIPT} for such a {@code SEND} once the journal synced it. Acknowledged messages are marked in
+ * the journal; the ones that were not are queued again, marked {@code redelivered}, by the next broker created on
+ * the same journal. Topic messages are never journaled.
+ *
+ * <a name="label_transactions"><h3>Transactions</h3></a>
+ * {@code SEND}, {@code ACK} and {@code NACK} frames of a transaction are held by the session until
+ * {@code COMMIT}, and dropped on {@code ABORT}.
+ *
+ * @author Rory Slegtenhorst <rory.slegtenhorst@gmail.com>
+ */
+public class StompBroker implements Stomp {
+
+    static final String TOPIC_PREFIX = "/topic/";
+    static final int BATCH = 64; // Messages per delivery task run, keeps the executor fair
+
+    private static final ExecutorService mDefaultExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "StompBroker-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private static final Subscription[] NO_SUBSCRIPTIONS = new Subscription[0];
+
+    private final Executor mExecutor;
+    private final StompJournal mJournal;
+    private final ConcurrentHashMap<String, Destination> mDestinations = new ConcurrentHashMap<String, Destination>();
+    private final AtomicLong mLastMessageId = new AtomicLong(0);
+    private final AtomicLong mLastSessionId = new AtomicLong(0);
+
+    /**
+     * Create a broker that delivers on a shared pool of daemon threads.
+     */
+    public StompBroker() {
+        this(mDefaultExecutor);
+    }
+
+    /**
+     * Create a broker that delivers on the given executor. Delivery tasks block while a session does not
+     * keep up, so the executor should not be too small. It is not shut down by the broker.
+     * @param executor
+     */
+    public StompBroker(Executor executor) {
+        this(executor, null);
+    }
+
+    /**
+     * Create a broker that keeps persistent messages in the journal, and delivers on a shared pool of daemon
+     * threads. Unacknowledged messages in the journal are queued right away.
+     * @param journal
+     */
+    public StompBroker(StompJournal journal) {
+        this(mDefaultExecutor, journal);
+    }
+
+    /**
+     * Create a broker that keeps persistent messages in the journal, and delivers on the given executor.
+     * @param executor
+     * @param journal optional, may be {@code null}
+     */
+    public StompBroker(Executor executor, StompJournal journal) {
+        if (executor == null) throw new NullPointerException();
+        mExecutor = executor;
+        mJournal = journal;
+        if (journal != null) {
+            mLastMessageId.set(journal.lastId());
+            for (StompJournal.Entry entry : journal.recovered()) {
+                destination(entry.mDestination).send(new Message(entry.mId, entry.mDestination, entry.mPayload, entry.mHeaders, true, true));
+            }
+        }
+    }
+
+    /**
+     * Returns the number of messages waiting on a queue for a consumer.
+     * @param destination
+     */
+    public int getPending(String destination) {
+        final Destination queue = mDestinations.get(destination);
+        return queue == null ? 0 : queue.mBacklog.size();
+    }
+
+    Session newSession(Peer peer) {
+        return new Session(peer);
+    }
+
+    private Destination destination(String name) {
+        Destination destination = mDestinations.get(name);
+        if (destination == null) {
+            final Destination created = new Destination(name);
+            destination = mDestinations.putIfAbsent(name, created);
+            if (destination == null) destination = created;
+        }
+        return destination;
+    }
+
+    /**
+     * Called once a message was consumed, marks persistent messages in the journal.
+     */
+    private void acknowledged(Message message) {
+        if (!message.mPersistent) return;
+        try {
+            mJournal.ack(message.mSequence);
+        } catch (IOException e) {
+            // Not marked, so it is redelivered after a restart
+            if (DEBUG) e.printStackTrace();
+        }
+    }
+
+    private void execute(Runnable task) {
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    /**
+     * The client end of a {@link Session}.
+     */
+    interface Peer {
+        /**
+         * Write a frame to the client. May be called by any thread, implementations serialize writes.
+         * @param frame
+         * @throws IOException
+         */
+        void write(StompFrame frame) throws IOException;
+    }
+
+    /**
+     * A message as sent, shared by all its deliveries.
+     */
+    static final class Message {
+        final long mSequence;
+        final String mId;
+        final String mDestination;
+        final byte[] mPayload;
+        final StompHeaders mHeaders;
+        final boolean mRedelivered;
+        final boolean mPersistent; // In the journal
+
+        Message(long sequence, String destination, byte[] payload, StompHeaders headers, boolean redelivered, boolean persistent) {
+            this(sequence, Long.toString(sequence), destination, payload, headers, redelivered, persistent);
+        }
+
+        private Message(long sequence, String id, String destination, byte[] payload, StompHeaders headers, boolean redelivered, boolean persistent) {
+            mSequence = sequence;
+            mId = id;
+            mDestination = destination;
+            mPayload = payload;
+            mHeaders = headers;
+            mRedelivered = redelivered;
+            mPersistent = persistent;
+        }
+
+        Message redelivered() {
+            return mRedelivered ? this : new Message(mSequence, mId, mDestination, mPayload, mHeaders, true, mPersistent);
+        }
+
+        StompFrame toFrame(String subscription) {
+            final StompHeaders headers = new StompHeaders(mHeaders.size() + 4);
+            headers.put(HEADER_SUBSCRIPTION, subscription);
+            headers.put(HEADER_MESSAGE_ID, mId);
+            headers.put(HEADER_DESTINATION, mDestination);
+            if (mRedelivered) headers.put(HEADER_REDELIVERED, VALUE_REDELIVERED);
+            for (int i = 0; i < mHeaders.size(); i++)
+                headers.putIfAbsent(mHeaders.name(i), mHeaders.value(i));
+            return new StompFrame(MESSAGE, mPayload, headers);
+        }
+    }
+
+    /**
+     * A queue or topic, and its subscriptions.
+     */
+    private final class Destination {
+        private final String mName;
+        private final boolean mTopic;
+        private final ConcurrentLinkedDeque<Message> mBacklog = new ConcurrentLinkedDeque<Message>(); // Queues only
+        private final AtomicInteger mWip = new AtomicInteger(0);
+        private volatile Subscription[] mSubscriptions = NO_SUBSCRIPTIONS; // Replaced as a whole, guarded by this
+        private int mNext = 0; // Round-robin position, only touched in dispatch()
+
+        Destination(String name) {
+            mName = name;
+            mTopic = name.startsWith(TOPIC_PREFIX);
+        }
+
+        void send(Message message) {
+            if (mTopic) {
+                for (Subscription subscription : mSubscriptions) subscription.deliver(message);
+            } else {
+                mBacklog.offer(message);
+                dispatch();
+            }
+        }
+
+        /**
+         * Put unacknowledged queue messages back in front, in their original order.
+         */
+        void requeue(List<Message> messages) {
+            if (mTopic || messages.isEmpty()) return;
+            for (int i = messages.size() - 1; i >= 0; i--) mBacklog.offerFirst(messages.get(i).redelivered());
+            dispatch();
+        }
+
+        synchronized void add(Subscription subscription) {
+            final Subscription[] current = mSubscriptions;
+            final Subscription[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = subscription;
+            mSubscriptions = updated;
+        }
+
+        synchronized void remove(Subscription subscription) {
+            final Subscription[] current = mSubscriptions;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == subscription) {
+                    final Subscription[] updated = new Subscription[current.length - 1];
+                    System.arraycopy(current, 0, updated, 0, i);
+                    System.arraycopy(current, i + 1, updated, i, updated.length - i);
+                    mSubscriptions = updated;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Hand queued messages to consumers with room for them. Only one thread at a time gets past the
+         * counter; callers that find it busy leave their work to it.
+         */
+        void dispatch() {
+            if (mTopic || mWip.getAndIncrement() != 0) return;
+            int missed = 1;
+            do {
+                while (!mBacklog.isEmpty()) {
+                    final Subscription consumer = next();
+                    if (consumer == null) break;
+                    final Message message = mBacklog.poll();
+                    if (message == null) break;
+                    consumer.deliver(message);
+                }
+                missed = mWip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private Subscription next() {
+            final Subscription[] subscriptions = mSubscriptions;
+            for (int i = 0; i < subscriptions.length; i++) {
+                final Subscription subscription = subscriptions[(mNext + i) % subscriptions.length];
+                if (subscription.hasRoom()) {
+                    mNext = (mNext + i + 1) % subscriptions.length;
+                    return subscription;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A subscription of a session, with its outbox and unacknowledged messages.
+     */
+    private final class Subscription implements Runnable {
+        private final Session mSession;
+        private final String mId;
+        private final Destination mDestination;
+        private final String mMode;
+        private final int mPrefetch;
+
+        private final Queue<Message> mOutbox = new ConcurrentLinkedQueue<Message>();
+        private final AtomicInteger mInFlight = new AtomicInteger(0); // Outbox and unacknowledged
+        private final AtomicBoolean mScheduled = new AtomicBoolean(false);
+        private final LinkedHashMap<String, Message> mUnacked = new LinkedHashMap<String, Message>(); // Guarded by this
+        private volatile boolean mClosed = false;
+
+        Subscription(Session session, String id, Destination destination, String mode, int prefetch) {
+            mSession = session;
+            mId = id;
+            mDestination = destination;
+            mMode = mode;
+            mPrefetch = prefetch;
+        }
+
+        boolean hasRoom() {
+            return !mClosed && (mPrefetch <= 0 || mInFlight.get() < mPrefetch);
+        }
+
+        void deliver(Message message) {
+            mInFlight.incrementAndGet();
+            mOutbox.add(message);
+            if (mScheduled.compareAndSet(false, true)) execute(this);
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int count = 0; count < BATCH; count++) {
+                    final Message message = mOutbox.poll();
+                    if (message == null) break;
+                    final boolean auto = VALUE_ACK_AUTO.equals(mMode);
+                    final boolean closed;
+                    synchronized (this) {
+                        // Either close() finds the message unacknowledged, or we see it closed, never both
+                        closed = mClosed;
+                        if (!closed && !auto) mUnacked.put(message.mId, message);
+                    }
+                    if (closed) {
+                        // Closed while queued, the message was not counted by close()
+                        mInFlight.decrementAndGet();
+                        mDestination.requeue(singletonList(message));
+                        continue;
+                    }
+                    if (!auto) {
+                        mSession.write(message.toFrame(mId)); // Handed back by close() when this fails
+                        continue;
+                    }
+                    try {
+                        mSession.write(message.toFrame(mId));
+                    } catch (IOException e) {
+                        // Not unacknowledged anywhere, so close() does not hand it back
+                        mInFlight.decrementAndGet();
+                        mDestination.requeue(singletonList(message));
+                        throw e;
+                    }
+                    acknowledged(message);
+                    release(1);
+                }
+            } catch (IOException e) {
+                mSession.close();
+            } finally {
+                mScheduled.set(false);
+            }
+            if (!mOutbox.isEmpty() && mScheduled.compareAndSet(false, true)) execute(this);
+        }
+
+        void ack(String messageId) {
+            int count = 0;
+            List<Message> persistent = null; // To mark in the journal, outside our lock
+            synchronized (this) {
+                if (VALUE_ACK.equals(mMode)) {
+                    // Cumulative, everything up to and including the message
+                    if (mUnacked.containsKey(messageId)) {
+                        final Iterator<Message> iterator = mUnacked.values().iterator();
+                        while (iterator.hasNext()) {
+                            final Message message = iterator.next();
+                            iterator.remove();
+                            count++;
+                            if (message.mPersistent) {
+                                if (persistent == null) persistent = new ArrayList<Message>();
+                                persistent.add(message);
+                            }
+                            if (message.mId.equals(messageId)) break;
+                        }
+                    }
+                } else {
+                    final Message message = mUnacked.remove(messageId);
+                    if (message != null) {
+                        count = 1;
+                        if (message.mPersistent) persistent = singletonList(message);
+                    }
+                }
+            }
+            if (persistent != null) {
+                for (Message message : persistent) acknowledged(message);
+            }
+            if (count > 0) release(count);
+        }
+
+        void nack(String messageId) {
+            final Message message;
+            synchronized (this) {
+                message = mUnacked.remove(messageId);
+            }
+            if (message == null) return;
+            if (mDestination.mTopic) {
+                mInFlight.decrementAndGet();
+                deliver(message.redelivered());
+            } else {
+                release(1);
+                mDestination.requeue(singletonList(message));
+            }
+        }
+
+        /**
+         * Stop delivering, and hand back everything that was not acknowledged.
+         */
+        void close() {
+            final List<Message> messages = new ArrayList<Message>();
+            synchronized (this) {
+                if (mClosed) return;
+                mClosed = true;
+                messages.addAll(mUnacked.values());
+                mUnacked.clear();
+            }
+            mDestination.remove(this);
+            Message message;
+            while ((message = mOutbox.poll()) != null) messages.add(message);
+            mInFlight.addAndGet(-messages.size());
+            mDestination.requeue(messages);
+        }
+
+        private void release(int count) {
+            mInFlight.addAndGet(-count);
+            mDestination.dispatch();
+        }
+    }
+
+    private static List<Message> singletonList(Message message) {
+        final List<Message> list = new ArrayList<Message>(1);
+        list.add(message);
+        return list;
+    }
+
+    /**
+     * The broker side of a client connection: handles its frames and owns its subscriptions.
+     *
+     * <p>{@link #onFrame(StompFrame)} is called by a single reader at a time; deliveries are written to the
+     * {@link Peer} by the broker's executor.
+     */
+    final class Session {
+        private final Peer mPeer;
+        private final Map<String, Subscription> mSubscriptions = new ConcurrentHashMap<String, Subscription>();
+        // Used by the reader, and cleared by close() from the executor as well; the lists are reader only
+        private final Map<String, List<StompFrame>> mTransactions = new ConcurrentHashMap<String, List<StompFrame>>();
+        private long mSyncPosition = 0; // Journal position to sync before the receipt of the current frame, reader only
+        private volatile boolean mClosed = false; // Set once the client is gone, until it connects again
+
+        Session(Peer peer) {
+            mPeer = peer;
+        }
+
+        /**
+         * Handle a frame from the client, and write the response (if any). Once the session was closed, only a
+         * {@code CONNECT} is handled: a subscription made by a late frame would never be closed.
+         * @param frame
+         * @throws IOException when the response could not be written
+         */
+        void onFrame(StompFrame frame) throws IOException {
+            final String cmd = frame.getCommand();
+            StompFrame result = null;
+            if (mClosed && !CONNECT.equals(cmd)) return;
+            if (CONNECT.equals(cmd)) {
+                mClosed = false;
+                result = new StompFrame(CONNECTED);
+                result.addHeader(HEADER_SESSION, "session-" + mLastSessionId.incrementAndGet());
+                result.addHeader(HEADER_HEARTBEAT, VALUE_HEARTBEAT);
+                result.addHeader(HEADER_SERVER, "server-loopback");
+                result.addHeader(HEADER_VERSION, VALUE_ACCEPT_VERSION);
+            } else if (SEND.equals(cmd) || ACK.equals(cmd) || NACK.equals(cmd)) {
+                final String transaction = frame.getHeader(HEADER_TRANSACTION);
+                if (transaction == null) {
+                    result = execute(frame);
+                } else {
+                    final List<StompFrame> frames = mTransactions.get(transaction);
+                    if (frames != null) frames.add(frame);
+                    else result = newErrorFrame(MSG_INVALID_VALUE, MSG_INVALID_VALUE + " for '" + HEADER_TRANSACTION + "'");
+                }
+            } else if (SUBSCRIBE.equals(cmd)) {
+                result = subscribe(frame);
+            } else if (UNSUBSCRIBE.equals(cmd)) {
+                final String id = frame.getHeader(HEADER_ID);
+                if (id != null) {
+                    final Subscription subscription = mSubscriptions.remove(id);
+                    if (subscription != null) subscription.close();
+                    else result = newErrorFrame(MSG_INVALID_VALUE, MSG_INVALID_VALUE + " for '" + HEADER_ID + "'");
+                } else result = newErrorFrame(MSG_HEADER_REQ, "Required header '" + HEADER_ID + "' missing");
+            } else if (BEGIN.equals(cmd) || COMMIT.equals(cmd) || ABORT.equals(cmd)) {
+                result = transaction(frame);
+            } else if (DISCONNECT.equals(cmd)) {
+                closeSubscriptions();
+            }
+
+            final String receipt = frame.getHeader(HEADER_RECEIPT_REQUEST);
+            final long position = mSyncPosition;
+            mSyncPosition = 0;
+            if (result != null) {
+                if (receipt != null && ERROR.equals(result.getCommand())) result.addHeader(HEADER_RECEIPT, receipt);
+                write(result);
+            } else if (receipt != null) {
+                result = new StompFrame(RECEIPT);
+                result.addHeader(HEADER_RECEIPT, receipt);
+                if (position > 0) receiptWhenSynced(position, result);
+                else write(result);
+            }
+        }
+
+        /**
+         * Write the receipt for persistent messages once the journal synced them. It is written by the executor,
+         * the journal's syncer should not wait for a slow client.
+         */
+        private void receiptWhenSynced(long position, final StompFrame receipt) {
+            final Runnable writer = new Runnable() {
+                @Override
+                public void run() {
+                    if (mClosed) return; // Nobody is waiting for it anymore
+                    try {
+                        write(receipt);
+                    } catch (IOException e) {
+                        close();
+                    }
+                }
+            };
+            mJournal.whenSynced(position, new Runnable() {
+                @Override
+                public void run() {
+                    StompBroker.this.execute(writer);
+                }
+            });
+        }
+
+        /**
+         * The client is gone; unacknowledged messages go back to their queues.
+         */
+        void close() {
+            mClosed = true;
+            closeSubscriptions();
+            mTransactions.clear();
+        }
+
+        void write(StompFrame frame) throws IOException {
+            mPeer.write(frame);
+        }
+
+        private void closeSubscriptions() {
+            for (Iterator<Subscription> iterator = mSubscriptions.values().iterator(); iterator.hasNext(); ) {
+                final Subscription subscription = iterator.next();
+                iterator.remove();
+                subscription.close();
+            }
+        }
+
+        private StompFrame execute(StompFrame frame) {
+            final String cmd = frame.getCommand();
+            if (SEND.equals(cmd)) {
+                final String destination = frame.getHeader(HEADER_DESTINATION);
+                if (destination == null)
+                    return newErrorFrame(MSG_HEADER_REQ, "Required header '" + HEADER_DESTINATION + "' missing");
+                final StompHeaders source = frame.headers();
+                final StompHeaders headers = new StompHeaders(source.size());
+                for (int i = 0; i < source.size(); i++) {
+                    final String name = source.name(i);
+                    if (HEADER_DESTINATION.equals(name) || HEADER_RECEIPT_REQUEST.equals(name) || HEADER_TRANSACTION.equals(name)) continue;
+                    headers.put(name, source.value(i));
+                }
+                final Destination target = destination(destination);
+                final long sequence;
+                final boolean persistent = mJournal != null && !target.mTopic && VALUE_PERSISTENT.equals(frame.getHeader(HEADER_PERSISTENT));
+                if (persistent) {
+                    try {
+                        sequence = mJournal.add(mLastMessageId, destination, headers, frame.getPayload());
+                    } catch (IOException e) {
+                        return newErrorFrame(MSG_JOURNAL_ERROR, MSG_JOURNAL_ERROR + ": " + e.getMessage());
+                    }
+                    mSyncPosition = mJournal.position();
+                } else {
+                    sequence = mLastMessageId.incrementAndGet();
+                }
+                target.send(new Message(sequence, destination, frame.getPayload(), headers, false, persistent));
+                return null;
+            }
+            final String id = frame.getHeader(HEADER_SUBSCRIPTION);
+            final String messageId = frame.getHeader(HEADER_MESSAGE_ID);
+            if (id == null) return newErrorFrame(MSG_HEADER_REQ, "Required header '" + HEADER_SUBSCRIPTION + "' missing");
+            if (messageId == null) return newErrorFrame(MSG_HEADER_REQ, "Required header '" + HEADER_MESSAGE_ID + "' missing");
+            final Subscription subscription = mSubscriptions.get(id);
+            if (subscription == null) return null; // Un-subscribed meanwhile, its messages went back already
+            if (ACK.equals(cmd)) subscription.ack(messageId);
+            else subscription.nack(messageId);
+            return null;
+        }
+
+        private StompFrame subscribe(StompFrame frame) {
+            final String id = frame.getHeader(HEADER_ID);
+            if (id == null) return newErrorFrame(MSG_HEADER_REQ, "Required header '" + HEADER_ID + "' missing");
+            final String destination = frame.getHeader(HEADER_DESTINATION);
+            if (destination == null) return newErrorFrame(MSG_HEADER_REQ, "Required header '" + HEADER_DESTINATION + "' missing");
+            if (mSubscriptions.containsKey(id)) return newErrorFrame(MSG_INVALID_VALUE, MSG_INVALID_VALUE + " for '" + HEADER_ID + "'");
+
+            String mode = frame.getHeader(HEADER_ACK);
+            if (mode == null) mode = VALUE_ACK_AUTO;
+            else if (!VALUE_ACK_AUTO.equals(mode) && !VALUE_ACK.equals(mode) && !VALUE_ACK_CLIENT_INDIVIDUAL.equals(mode))
+                return newErrorFrame(MSG_INVALID_VALUE, MSG_INVALID_VALUE + " for '" + HEADER_ACK + "'");
+            String prefetch = frame.getHeader(HEADER_PREFETCH_COUNT);
+            if (prefetch == null) prefetch = frame.getHeader(HEADER_PREFETCH_ACTIVEMQ);
+            int limit = 0;
+            try {
+                if (prefetch != null) limit = Integer.parseInt(prefetch.trim());
+            } catch (NumberFormatException e) {
+                return newErrorFrame(MSG_INVALID_VALUE, MSG_INVALID_VALUE + " for '" + HEADER_PREFETCH_COUNT + "'");
+            }
+
+            final Destination target = destination(destination);
+            final Subscription subscription = new Subscription(this, id, target, mode, limit);
+            mSubscriptions.put(id, subscription);
+            target.add(subscription);
+            target.dispatch();
+            return null;
+        }
+
+        private StompFrame transaction(StompFrame frame) {
+            final String transaction = frame.getHeader(HEADER_TRANSACTION);
+            if (transaction == null) return newErrorFrame(MSG_HEADER_REQ, "Required header '" + HEADER_TRANSACTION + "' missing");
+            final String cmd = frame.getCommand();
+            if (BEGIN.equals(cmd)) {
+                if (mTransactions.containsKey(transaction))
+                    return newErrorFrame(MSG_INVALID_VALUE, MSG_INVALID_VALUE + " for '" + HEADER_TRANSACTION + "'");
+                mTransactions.put(transaction, new ArrayList<StompFrame>());
+                return null;
+            }
+            final List<StompFrame> frames = mTransactions.remove(transaction);
+            if (frames == null) return newErrorFrame(MSG_INVALID_VALUE, MSG_INVALID_VALUE + " for '" + HEADER_TRANSACTION + "'");
+            if (COMMIT.equals(cmd)) {
+                for (StompFrame pending : frames) {
+                    final StompFrame error = execute(pending);
+                    if (error != null) return error;
+                }
+            }
+            return null;
+        }
+    }
+
+    static StompFrame newErrorFrame(String message, String body) {
+        StompFrame result = new StompFrame(ERROR, body.getBytes());
+        result.addHeader(HEADER_MESSAGE, message);
+        result.addHeader(HEADER_CONTENT_TYPE, VALUE_CONTENT_TYPE);
+        return result;
+    }
+}
@@ -1,24 +1,31 @@
 package org.stomp4j;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
+import java.net.ProtocolException;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.URL;
 import java.net.URLConnection;
-import java.util.LinkedHashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.Vector;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * StompConnection Class
@@ -30,42 +37,92 @@ import java.util.concurrent.TimeUnit;
 public class StompConnection extends URLConnection implements Stomp {
 
     private final SocketAddress mSocketAddress;
-    private final Socket mSocket;
+    private volatile StompTransport mTransport = null;
+    private volatile URL mEndpoint = null; // URL of the current transport
+
+    private URL[] mFailover = new URL[0];
+    private int mReconnectDelay = 0;
+    private int mReconnectMaxDelay = 0;
+    private volatile int mReconnectAttempt = 0;
+    private volatile boolean mReconnecting = false;
+    private final AtomicBoolean mReconnectScheduled = new AtomicBoolean(false);
+    private volatile boolean mResubscribe = false;
+    private volatile boolean mClosing = false;
 
     private String mUsername = null;
     private String mPassword = null;
-    private String mTransaction = null;
+    private volatile String mTransaction = null; // Connection-wide transaction, see begin(String)
+    private final Map<String, StompTransaction> mTransactions = new ConcurrentHashMap<String, StompTransaction>();
+    private final AtomicLong mLastTransactionId = new AtomicLong(0);
 
-    private static int mHeartBeatRecvDelay = 0;
-    private static int mHeartBeatSendDelay = 0;
+    private int mHeartBeatRecvDelay = 0;
+    private int mHeartBeatSendDelay = 0;
+    private volatile StompHeartBeat mHeartBeat = null;
 
     private Boolean mConnected = false;
 
-    private Integer mLastSubscriptionId = 0;
-    private final Map<String, Integer> mSubscriptionIds = new LinkedHashMap<String, Integer>();
-    private final Map<Integer, String> mIdSubscriptions = new LinkedHashMap<Integer, String>();
-    private final Map<String, List<StompListener>> mSubscriptions = new LinkedHashMap<String, List<StompListener>>();
+    private final StompRoutes mRoutes = new StompRoutes(this);
 
-    @SuppressWarnings("rawtypes")
-    private static Future mFuture;
-    private static final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor(); // Heart-beat writer
-    private static final FrameListener mFrameListener = new FrameListener();
+    private int mAckBatch = StompAcks.DEFAULT_BATCH;
+    private int mAckDelay = StompAcks.DEFAULT_DELAY;
+    private int mPrefetch = 0;
+    private int mStreamThreshold = 0;
+    private boolean mPooling = false;
+    private boolean mDirect = false;
+    private StompPool mPool = null;
+
+    private volatile FrameListener mFrameListener = new FrameListener();
+    private volatile StompMetrics mMetrics = null;
 
-    private StompListenerThread mListenerThread = null;
     private Listener mListener = null;
+
+    private int mWriteBatch = 0;
+    private int mWriteLinger = 0;
+    private volatile StompWriter mWriter = null;
+    private final ReentrantLock mWriteLock = new ReentrantLock(); // Writes without a StompWriter
+    private final Queue<StompFrame> mDeferred = new ConcurrentLinkedQueue<StompFrame>(); // Reactor writes, in order
+    private final AtomicBoolean mDeferring = new AtomicBoolean(false);
+
+    private final Runnable mDeferredWriter = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                mWriteLock.lock();
+                try {
+                    for (StompFrame frame = mDeferred.poll(); frame != null; frame = mDeferred.poll()) {
+                        try {
+                            writeFrameLocked(frame);
+                        } catch (IOException e) {
+                            // The transport reports write failures itself
+                        }
+                    }
+                } finally {
+                    mWriteLock.unlock();
+                }
+                mDeferring.set(false);
+                // A frame may have been deferred after the last poll, but before the flag was cleared
+                if (mDeferred.isEmpty() || !mDeferring.compareAndSet(false, true)) return;
+            }
+        }
+    };
+
+    private volatile StompDispatcher mDispatcher = null;
+    private volatile int mSession = 0; // Counts closed transports, written by onClosed only
+
+    private volatile StompSpool mSpool = null;
+    private final AtomicBoolean mSpoolDraining = new AtomicBoolean(false);
+    private volatile Semaphore mSpoolWindow = new Semaphore(StompSpool.WINDOW); // Spooled frames on the writer
+
+    private volatile StompReceipts mReceipts = new StompReceipts(StompReceipts.DEFAULT_WINDOW, StompReceipts.DEFAULT_TIMEOUT);
     
     protected StompConnection() {
         super(null);
         mSocketAddress = null;
-        mSocket = null;
     }
 
     protected StompConnection(URL url) {
         super(url);
-        int port = url.getPort();
-        if (port == -1) port = url.getDefaultPort();
-        mSocketAddress = new InetSocketAddress(url.getHost(), port);
-        mSocket = new Socket();
+        mSocketAddress = address(url);
     }
 
     /**
@@ -73,19 +130,70 @@ public class StompConnection extends URLConnection implements Stomp {
      * @throws IOException
      */
     public void abort() throws IOException {
-        if (mSocket != null && !mSocket.isConnected()) throw new ConnectException(MSG_NOT_CONNECTED);
-        if (mTransaction != null)
-            sendAbort();
+        if (!isOpen()) throw new ConnectException(MSG_NOT_CONNECTED);
+        if (mTransaction != null) {
+            flushAcks();
+            sendAbort(null);
+        }
     }
 
     /**
-     * Begin a Stomp transaction.
+     * Abort a Stomp transaction, and request a receipt for it.
+     * @return future completed when the server confirmed the {@code ABORT}, or completed immediately without a transaction
+     * @throws IOException
+     * @see #sendAsync(StompMessage)
+     */
+    public CompletableFuture<Void> abortAsync() throws IOException {
+        if (!isOpen()) throw new ConnectException(MSG_NOT_CONNECTED);
+        final CompletableFuture<Void> future = new CompletableFuture<Void>();
+        if (mTransaction == null) {
+            future.complete(null);
+            return future;
+        }
+        flushAcks();
+        final String receipt = mReceipts.register(future);
+        try {
+            sendAbort(receipt);
+        } catch (IOException e) {
+            mReceipts.fail(receipt, e);
+        }
+        return future;
+    }
+
+    /**
+     * Begin a transaction, and return its handle.
+     * 
+     * <p>Every call begins a transaction of its own, with an id of its own, so threads sharing the connection
+     * can each run their own transactions at the same time. Only frames sent through the handle are part of it.
+     * The {@code BEGIN} is written like any other frame, the handle can be used right away.
+     * @return StompTransaction
+     * @throws IOException
+     * @see StompTransaction
+     */
+    public StompTransaction begin() throws IOException {
+        if (!isOpen()) throw new ConnectException(MSG_NOT_CONNECTED);
+        final StompTransaction transaction = new StompTransaction(this, "tx-" + mLastTransactionId.incrementAndGet());
+        mTransactions.put(transaction.getId(), transaction);
+        try {
+            sendTransaction(BEGIN, transaction.getId(), null);
+        } catch (IOException e) {
+            mTransactions.remove(transaction.getId());
+            throw e;
+        }
+        return transaction;
+    }
+
+    /**
+     * Begin a connection-wide Stomp transaction. Until it is committed or aborted, every {@code SEND},
+     * {@code ACK} and {@code NACK} of the connection, from any thread, is part of it, and further calls are
+     * ignored. Use {@link #begin()} for transactions of their own.
      * @param transaction
      * @throws IOException
      */
     public void begin(String transaction) throws IOException {
-        if (mSocket != null && !mSocket.isConnected()) throw new ConnectException(MSG_NOT_CONNECTED);
+        if (!isOpen()) throw new ConnectException(MSG_NOT_CONNECTED);
         if (mTransaction == null && transaction != null) {
+            flushAcks();
             sendBegin(transaction);
         }
     }
@@ -95,9 +203,34 @@ public class StompConnection extends URLConnection implements Stomp {
      * @throws IOException
      */
     public void commit() throws IOException {
-        if (mSocket != null && !mSocket.isConnected()) throw new ConnectException(MSG_NOT_CONNECTED);
-        if (mTransaction != null)
-            sendCommit();
+        if (!isOpen()) throw new ConnectException(MSG_NOT_CONNECTED);
+        if (mTransaction != null) {
+            flushAcks();
+            sendCommit(null);
+        }
+    }
+
+    /**
+     * Commit a Stomp transaction, and request a receipt for it.
+     * @return future completed when the server confirmed the {@code COMMIT}, or completed immediately without a transaction
+     * @throws IOException
+     * @see #sendAsync(StompMessage)
+     */
+    public CompletableFuture<Void> commitAsync() throws IOException {
+        if (!isOpen()) throw new ConnectException(MSG_NOT_CONNECTED);
+        final CompletableFuture<Void> future = new CompletableFuture<Void>();
+        if (mTransaction == null) {
+            future.complete(null);
+            return future;
+        }
+        flushAcks();
+        final String receipt = mReceipts.register(future);
+        try {
+            sendCommit(receipt);
+        } catch (IOException e) {
+            mReceipts.fail(receipt, e);
+        }
+        return future;
     }
 
     /**
@@ -105,9 +238,12 @@ public class StompConnection extends URLConnection implements Stomp {
      */
     @Override
     public void connect() throws IOException {
-        if (mSocket != null && mSocket.isConnected()) throw new ConnectException(MSG_ALREADY_CONNECTED);
+        if (isOpen()) throw new ConnectException(MSG_ALREADY_CONNECTED);
+        mClosing = false;
+        mReconnecting = false;
+        mReconnectAttempt = 0;
 
-        if (mUsername == null && mPassword == null) {
+        if (mUsername == null && mPassword == null && url != null) {
             String userInfo = url.getUserInfo();
             if (userInfo != null) {
                 int pos = userInfo.indexOf(":");
@@ -121,44 +257,124 @@ public class StompConnection extends URLConnection implements Stomp {
             }
         }
 
+        try {
+            open(url);
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw e;
+        }
+    }
+
+    /**
+     * Open a transport to the endpoint, and send the {@code CONNECT} frame.
+     * @param endpoint
+     * @throws IOException
+     */
+    private void open(URL endpoint) throws IOException {
         if (mListener != null) mListener.onConnecting();
 
-        if (mSocket != null) {
-            try {
-                mSocket.connect(mSocketAddress, getConnectTimeout());
-            } catch (IOException e) {
-                e.printStackTrace();
-                throw e;
-            }
-        }
+        final StompTransport transport = newTransport(endpoint);
+        mEndpoint = endpoint;
+        mTransport = transport;
+        mWriter = mWriteBatch > 0 ? new StompWriter(this, transport, mWriteBatch, mWriteLinger) : null;
+        transport.open(getConnectTimeout());
+        final StompMetrics metrics = mMetrics;
+        if (metrics != null) metrics.register();
         sendConnect();
     }
 
     /**
-     * Disconnect from the Stomp server. No {@code DISCONNECT} frame is sent.
-     * @throws IOException
+     * Disconnect from the Stomp server. No {@code DISCONNECT} frame is sent. Stops reconnecting.
+     *
+     * <p>Frames queued by write coalescing (see {@link #setWriteCoalescing(int, int)}) are written first, for at
+     * most {@value StompWriter#DRAIN_TIMEOUT} milliseconds. The connection is closed either way.
+     * @throws IOException when not connected, or when frames were dropped because they could not be written in time
      */
     public void disconnect() throws IOException {
-        if (mSocket != null && !mSocket.isConnected()) throw new ConnectException(MSG_NOT_CONNECTED);
-        if (mListenerThread != null) {
-            mListenerThread.interrupt();
-            mListenerThread = null;
+        mClosing = true;
+        if (!isOpen()) {
+            if (!mReconnecting) throw new ConnectException(MSG_NOT_CONNECTED);
+            mReconnecting = false;
+            synchronized(this) {
+                notify();
+            }
+            return;
         }
-        if (mSocket != null) mSocket.close();
+        final StompTransport transport = mTransport;
+        final StompWriter writer = mWriter;
+        final long deadline = System.currentTimeMillis() + StompWriter.DRAIN_TIMEOUT;
+        int dropped = 0;
+        boolean flushed = false;
+        try {
+            if (writer != null && !writer.awaitEmpty(StompWriter.DRAIN_TIMEOUT)) dropped = writer.discard();
+            flushed = dropped == 0 && transport.awaitFlushed(Math.max(0, deadline - System.currentTimeMillis()));
+        } finally {
+            transport.close();
+        }
+        if (dropped > 0) throw new SocketException(MSG_FRAMES_DROPPED + ": " + dropped);
+        if (!flushed) throw new SocketException(MSG_FRAMES_DROPPED);
     }
 
     /**
      * Send a message to the Stomp server.
+     * 
+     * <p>With a spool (see {@link #setSpool(File, long, SpoolOverflow)}), messages sent outside a transaction
+     * while not connected, while the write pipeline is backed up, or while older messages are still spooled,
+     * are appended to the spool instead. Streamed messages are never spooled.
+     * 
+     * <p>A streamed message (see {@link StompMessage#isStreamed()}), or one with a buffer payload (see
+     * {@link StompMessage#getPayloadBuffer()}), is written before this call returns, even with write coalescing.
+     * On {@code stomp+nio}, what the socket does not take right away is queued, and the caller waits until the
+     * reactor wrote it; the reactor keeps reading and acknowledging meanwhile. The buffer can be reused, or the
+     * message released, right after. Except when sent by a listener on the reactor itself (without a dispatch
+     * executor), which never waits: the send returns right away, and the rest is written from the source later,
+     * so leave it unchanged until e.g. the receipt of {@link #sendAsync(StompMessage)}.
      * @param message {@link StompMessage} to be sent
      * @throws IOException
      */
     public void send(StompMessage message) throws IOException {
-        if (mSocket != null && !mSocket.isConnected()) throw new ConnectException(MSG_NOT_CONNECTED);
+        final StompSpool spool = mSpool;
+        if (spool != null && mTransaction == null && message != null && !message.isStreamed()) {
+            final StompWriter writer = mWriter;
+            if (!mConnected || !isOpen() || !spool.isEmpty() || (writer != null && writer.size() >= StompSpool.WINDOW)) {
+                spool.append(StompIO.messageToFrame(message));
+                if (mConnected) drainSpool();
+                return;
+            }
+        }
+        if (!isOpen()) throw new ConnectException(MSG_NOT_CONNECTED);
         if (message != null) {
-            sendMessage(message);
+            sendMessage(message, null);
         }
     }
 
+    /**
+     * Send a message to the Stomp server, and request a receipt for it.
+     * 
+     * <p>The returned future completes when the matching {@code RECEIPT} frame arrives. It fails with a
+     * {@link java.net.ProtocolException} when the server answers with an {@code ERROR} frame, with a
+     * {@link java.util.concurrent.TimeoutException} when no receipt arrived within the receipt timeout, and with
+     * the cause when the connection is closed first.
+     * 
+     * <p>At most the receipt window (see {@link #setReceiptWindow(int, int)}) of frames can be unconfirmed.
+     * When the window is full, this call waits for a slot. Receipts are processed by the connection's reader,
+     * so do not call this from a {@link StompListener} while the window might be full.
+     * @param message {@link StompMessage} to be sent
+     * @return future completed on the server's receipt
+     * @throws IOException when not connected, or no slot became available within the receipt timeout
+     */
+    public CompletableFuture<Void> sendAsync(StompMessage message) throws IOException {
+        if (!isOpen()) throw new ConnectException(MSG_NOT_CONNECTED);
+        final CompletableFuture<Void> future = new CompletableFuture<Void>();
+        final String receipt = mReceipts.register(future);
+        try {
+            sendMessage(message, receipt);
+        } catch (IOException e) {
+            mReceipts.fail(receipt, e);
+        }
+        return future;
+    }
+
     /**
      * Set credentials for the Stomp server. Needs to be set before calling {@link #connect}.
      * @param username
@@ -166,21 +382,263 @@ public class StompConnection extends URLConnection implements Stomp {
      * @throws IOException
      */
     public void setCredentials(String username, String password) throws IOException {
-        if (mSocket != null && mSocket.isConnected()) throw new ConnectException(MSG_ALREADY_CONNECTED);
+        if (isOpen()) throw new ConnectException(MSG_ALREADY_CONNECTED);
         mUsername = username;
         mPassword = password;
     }
 
     /**
      * Set the heartbeat timer values in milliseconds. Needs to be set before calling {@link #connect}.
-     * @param recvDelay Delay for receiving heartbeats
-     * @param sendDelay Delay for sending heartbeats
+     * 
+     * <p>The actual periods are negotiated with the server's {@code CONNECTED} frame. Heart-beats are only
+     * sent when nothing else was written for the send period. When nothing at all was received for twice
+     * the negotiated receive period, the connection is closed and reported as an exception.
+     * @param recvDelay Delay for receiving heartbeats, 0 for none
+     * @param sendDelay Delay for sending heartbeats, 0 for none
      * @throws IOException
      */
     public void setHeartBeat(int recvDelay, int sendDelay) throws IOException {
-    	if (mSocket != null && mSocket.isConnected()) throw new ConnectException(MSG_ALREADY_CONNECTED);
-    	if (recvDelay > 0) mHeartBeatRecvDelay = recvDelay;
-        if (sendDelay > 0) mHeartBeatSendDelay = sendDelay;
+    	if (isOpen()) throw new ConnectException(MSG_ALREADY_CONNECTED);
+    	mHeartBeatRecvDelay = Math.max(0, recvDelay);
+        mHeartBeatSendDelay = Math.max(0, sendDelay);
+    }
+
+    /**
+     * Reconnect when the connection is lost. Needs to be set before calling {@link #connect}.
+     * 
+     * <p>Attempts go to this connection's URL first, then to the failover URLs in order, and around again.
+     * Before every attempt the connection waits for the delay, which starts at {@code initialDelay} and doubles
+     * with every failed attempt up to {@code maxDelay}, and is randomized between half and all of it so
+     * clients do not all come back at the same moment. Once {@code CONNECTED}, the delay is reset, and all
+     * subscriptions are sent again with their listeners in place. Messages that were not acknowledged
+     * before the connection was lost are redelivered by the broker. {@link StompPublisher} subscribers are
+     * terminated instead, as their pending acknowledgements are lost.
+     * 
+     * <p>The {@link Listener} sees every attempt ({@code onConnecting}), and every loss ({@code onException}
+     * or {@code onDisconnected}). Threads waiting on the connection are only notified when it stops
+     * reconnecting, after {@link #disconnect()}. A transaction in progress is dropped with the connection.
+     * @param initialDelay Delay in milliseconds before the first attempt, 0 disables reconnecting
+     * @param maxDelay Maximum delay in milliseconds between attempts
+     * @param failover URLs to try after this connection's URL
+     * @throws IOException
+     */
+    public void setReconnect(int initialDelay, int maxDelay, URL... failover) throws IOException {
+        if (isOpen()) throw new ConnectException(MSG_ALREADY_CONNECTED);
+        mReconnectDelay = Math.max(0, initialDelay);
+        mReconnectMaxDelay = Math.max(mReconnectDelay, maxDelay);
+        mFailover = failover == null ? new URL[0] : failover.clone();
+    }
+
+    /**
+     * Enable the coalescing outbound pipeline. Needs to be set before calling {@link #connect}.
+     * 
+     * <p>Frames are queued without taking a lock, and written in batches of up to {@code maxBatch} frames
+     * with a single flush. A partial batch waits at most {@code maxLingerMicros} for more frames. Frames sent
+     * while the pipeline is enabled are written asynchronously; a write error is reported to the
+     * {@link Listener}, and thrown by the next call. Senders wait while {@value StompWriter#CAPACITY} frames
+     * are queued already.
+     * @param maxBatch Maximum number of frames per write, 0 disables the pipeline
+     * @param maxLingerMicros Maximum time in microseconds to wait for a batch to fill up
+     * @throws IOException
+     */
+    public void setWriteCoalescing(int maxBatch, int maxLingerMicros) throws IOException {
+        if (isOpen()) throw new ConnectException(MSG_ALREADY_CONNECTED);
+        mWriteBatch = maxBatch;
+        mWriteLinger = maxLingerMicros;
+    }
+
+    /**
+     * Set the thresholds for cumulative acknowledgements in {@link AckMode#CLIENT} mode. Needs to be set before calling {@link #connect}.
+     * 
+     * <p>One {@code ACK} is sent for the latest accepted message, once {@code count} messages are waiting for
+     * it, or {@code delay} milliseconds after the first one, whichever comes first.
+     * @param count Maximum number of messages covered by one {@code ACK}
+     * @param delay Maximum time in milliseconds an {@code ACK} is held back, 0 to send right away
+     * @throws IOException
+     */
+    public void setAckBatch(int count, int delay) throws IOException {
+        if (isOpen()) throw new ConnectException(MSG_ALREADY_CONNECTED);
+        mAckBatch = count;
+        mAckDelay = delay;
+    }
+
+    /**
+     * Set the default prefetch for new subscriptions. Needs to be set before calling {@link #connect}.
+     * @param prefetch Maximum number of messages in flight per subscription, 0 for no limit
+     * @throws IOException
+     * @see #subscribe(String, AckMode, int, StompListener...)
+     */
+    public void setPrefetch(int prefetch) throws IOException {
+        if (isOpen()) throw new ConnectException(MSG_ALREADY_CONNECTED);
+        mPrefetch = Math.max(0, prefetch);
+    }
+
+    /**
+     * Stream the bodies of large messages instead of reading them into a payload. Needs to be set before calling
+     * {@link #connect}.
+     * 
+     * <p>A {@code MESSAGE} with a larger {@code content-length} is handed to the listeners as soon as its headers
+     * arrived. Its body is read with {@link StompMessage#getPayloadStream()} while it comes off the socket, through a
+     * buffer of at most {@value StompBodyStream#CAPACITY} bytes; reading from the socket pauses while the listener
+     * falls behind. Streamed messages are handled one at a time, on the dispatch executor when there is one (see
+     * {@link #setDispatchExecutor(Executor)}), and on the shared writer pool otherwise, as the reader is busy
+     * feeding the stream. The connection reads no further frames until the listeners returned, and then skips
+     * what they left unread. Server heart-beats are not seen meanwhile, so slow listeners need a generous
+     * heart-beat tolerance.
+     * @param threshold Content length in bytes above which bodies are streamed, 0 to never stream (the default)
+     * @throws IOException
+     */
+    public void setStreamThreshold(int threshold) throws IOException {
+        if (isOpen()) throw new ConnectException(MSG_ALREADY_CONNECTED);
+        mStreamThreshold = Math.max(0, threshold);
+    }
+
+    /**
+     * Returns the content length above which received bodies are streamed, 0 when they are not.
+     */
+    int getStreamThreshold() {
+        return mStreamThreshold;
+    }
+
+    /**
+     * Receive messages into pooled objects. Needs to be set before calling {@link #connect}.
+     * 
+     * <p>Received {@code MESSAGE} frames, their payload arrays and the {@link StompMessage}s handed to the
+     * listeners are taken from a pool of this connection, and go back to it once the listeners returned, so a
+     * steady stream of messages allocates next to nothing. Payload arrays come in power of two size classes up
+     * to {@value StompPool#MAX_PAYLOAD} bytes: {@link StompMessage#getPayload()} is usually longer than
+     * {@link StompMessage#getContentLength()}. A listener that keeps a message, or its payload, past
+     * {@code onMessage} calls {@link StompMessage#retain()}, and {@link StompMessage#release()} once done.
+     * Publishers release each message once it was passed to {@code onNext}, see {@link StompPublisher}.
+     * @param enabled {@code false} by default
+     * @throws IOException
+     */
+    public void setMessagePooling(boolean enabled) throws IOException {
+        if (isOpen()) throw new ConnectException(MSG_ALREADY_CONNECTED);
+        mPooling = enabled;
+        mPool = mPooling || mDirect ? new StompPool(mDirect) : null;
+    }
+
+    /**
+     * Receive message payloads into direct (off-heap) buffers. Needs to be set before calling {@link #connect}.
+     * 
+     * <p>Implies message pooling (see {@link #setMessagePooling(boolean)}): the direct buffers come from the
+     * connection's pool, and go back to it once the message is released, so direct memory is reused instead of
+     * waiting for the garbage collector. On {@code stomp+nio}, bodies are read from the socket straight into the
+     * buffer. Listeners get the payload with {@link StompMessage#getPayloadBuffer()}, and can forward the message
+     * with {@link #send(StompMessage)} without it being copied to the heap. A {@code stomp+nio} listener that
+     * forwards to another {@code stomp+nio} connection needs a dispatch executor for that (see
+     * {@link #setDispatchExecutor(Executor)}): the reactor does not wait for a full socket, and writes the rest
+     * from the buffer after the listener returned, by when it may be reused. Buffers are pooled up to
+     * {@value StompPool#MAX_DIRECT} bytes; use {@link #setStreamThreshold(int)} for larger bodies.
+     * @param enabled {@code false} by default
+     * @throws IOException
+     */
+    public void setDirectPayloads(boolean enabled) throws IOException {
+        if (isOpen()) throw new ConnectException(MSG_ALREADY_CONNECTED);
+        mDirect = enabled;
+        mPool = mPooling || mDirect ? new StompPool(mDirect) : null;
+    }
+
+    /**
+     * Returns the pending receipts, used by {@link StompTransaction}.
+     */
+    StompReceipts getReceipts() {
+        return mReceipts;
+    }
+
+    /**
+     * Returns the pool received messages are decoded into, or {@code null}.
+     */
+    StompPool getPool() {
+        return mPool;
+    }
+
+    /**
+     * Count frames, bytes and latencies of this connection, and export them over JMX while connected.
+     * Needs to be set before calling {@link #connect}. Without metrics, nothing is counted or timed.
+     * @param enabled
+     * @throws IOException
+     * @see StompMetricsMXBean
+     */
+    public void setMetricsEnabled(boolean enabled) throws IOException {
+        if (isOpen()) throw new ConnectException(MSG_ALREADY_CONNECTED);
+        if (enabled == (mMetrics != null)) return;
+        final StompMetrics metrics = enabled ? new StompMetrics(this) : null;
+        mMetrics = metrics;
+        mFrameListener = metrics == null ? new FrameListener() : new MeteredFrameListener(metrics);
+    }
+
+    /**
+     * Keep messages passed to {@link #send(StompMessage)} in a spool file while they cannot be sent, and send
+     * them in order once connected. Needs to be set before calling {@link #connect}.
+     * 
+     * <p>The spool is a memory-mapped file of at most {@code budget} bytes, so spooled messages take no heap.
+     * Messages are spooled while the connection is down, while the coalescing pipeline (see
+     * {@link #setWriteCoalescing(int, int)}) has a backlog, and as long as older messages are spooled. After
+     * the {@code CONNECTED} frame, the spool is drained on the shared writer pool. Messages left in the file
+     * when the process stops are sent by the next connection using it. Messages sent in a transaction and
+     * {@link #sendAsync(StompMessage)} are never spooled.
+     * @param file spool file, created when needed; {@code null} disables spooling
+     * @param budget maximum size of the file in bytes
+     * @param overflow what to do with a message that does not fit
+     * @throws IOException
+     * @see SpoolOverflow
+     */
+    public void setSpool(File file, long budget, SpoolOverflow overflow) throws IOException {
+        if (isOpen()) throw new ConnectException(MSG_ALREADY_CONNECTED);
+        final StompSpool previous = mSpool;
+        mSpool = file == null ? null : StompSpool.open(file, budget, overflow == null ? SpoolOverflow.FAIL : overflow);
+        if (previous != null) previous.close();
+    }
+
+    /**
+     * Returns the number of messages in the spool, 0 without one.
+     */
+    public int getSpooled() {
+        final StompSpool spool = mSpool;
+        return spool == null ? 0 : spool.size();
+    }
+
+    /**
+     * Returns the metrics of this connection, or {@code null} when they are not enabled.
+     * @see #setMetricsEnabled(boolean)
+     */
+    public StompMetricsMXBean getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Set the receipt window and timeout for the asynchronous methods. Needs to be set before calling {@link #connect}.
+     * @param window Maximum number of frames waiting for a receipt
+     * @param timeout Time in milliseconds to wait for a receipt, or for a slot in the window
+     * @throws IOException
+     */
+    public void setReceiptWindow(int window, int timeout) throws IOException {
+        if (isOpen()) throw new ConnectException(MSG_ALREADY_CONNECTED);
+        mReceipts = new StompReceipts(window, timeout);
+    }
+
+    /**
+     * Run {@link StompListener} callbacks on an executor instead of the connection's reader.
+     * 
+     * <p>Every subscription gets a serial lane: its messages are handled one at a time and in order, while
+     * different subscriptions run in parallel. The {@code ACK} or {@code NACK} is sent once all listeners of a
+     * message returned. The executor is not shut down by the connection.
+     * @param executor Executor for listener callbacks, {@code null} to call them on the reader (the default)
+     * @see #newDispatchExecutor(int)
+     */
+    public void setDispatchExecutor(Executor executor) {
+        mDispatcher = executor == null ? null : new StompDispatcher(this, executor);
+    }
+
+    /**
+     * Create an executor of daemon threads for {@link #setDispatchExecutor(Executor)}.
+     * @param threads Number of threads, 0 for a virtual thread per task when the runtime supports it
+     * @return Executor
+     */
+    public static Executor newDispatchExecutor(int threads) {
+        return StompDispatcher.newExecutor(threads);
     }
 
     public void setEventListener(Listener listener) {
@@ -188,43 +646,130 @@ public class StompConnection extends URLConnection implements Stomp {
     }
 
     public void subscribe(String destination, StompListener... listeners) throws IOException {
-        if (mSocket != null && !mSocket.isConnected()) throw new ConnectException(MSG_NOT_CONNECTED);
-        if (destination != null && listeners != null && listeners.length > 0) {
+        subscribe(destination, AckMode.CLIENT, listeners);
+    }
 
-            if (mSubscriptions.containsKey(destination)) {
-                // Existing subscription, add listeners to the list
-                for (StompListener listener : listeners)
-                    mSubscriptions.get(destination).add(listener);
-            } else {
-                List<StompListener> list = new Vector<StompListener>(listeners.length);
-                for (StompListener listener : listeners)
-                    list.add(listener);
-                final Integer id = getUniqueSubscriberId();
-                mIdSubscriptions.put(id, destination);
-                mSubscriptionIds.put(destination, id);
-                mSubscriptions.put(destination, list);
-            }
+    /**
+     * Subscribe to the destination with the given acknowledgement mode. Adding listeners to an existing
+     * subscription keeps its mode.
+     * @param destination
+     * @param mode
+     * @param listeners
+     * @throws IOException
+     * @see AckMode
+     */
+    public void subscribe(String destination, AckMode mode, StompListener... listeners) throws IOException {
+        subscribe(destination, mode, mPrefetch, listeners);
+    }
+
+    /**
+     * Subscribe to the destination with the given acknowledgement mode and prefetch.
+     * 
+     * <p>The prefetch is sent to the broker in the {@code activemq.prefetchSize} and {@code prefetch-count}
+     * headers, and enforced locally when a dispatch executor is set (see {@link #setDispatchExecutor(Executor)}):
+     * once {@code prefetch} messages of the subscription are waiting for their listeners, the connection stops
+     * reading from the socket until they caught up. Without a dispatch executor, listeners run on the reader,
+     * which bounds it already.
+     * @param destination
+     * @param mode
+     * @param prefetch Maximum number of messages in flight for this subscription, 0 for no limit
+     * @param listeners
+     * @throws IOException
+     */
+    public void subscribe(String destination, AckMode mode, int prefetch, StompListener... listeners) throws IOException {
+        if (!isOpen()) throw new ConnectException(MSG_NOT_CONNECTED);
+        subscribe(destination, mode, prefetch, null, listeners);
+    }
 
-            sendSubscribe(destination);
+    /**
+     * Subscribe to the destination, and request a receipt for the {@code SUBSCRIBE} frame.
+     * @param destination
+     * @param listeners
+     * @return future completed when the server confirmed the subscription
+     * @throws IOException
+     * @see #sendAsync(StompMessage)
+     */
+    public CompletableFuture<Void> subscribeAsync(String destination, StompListener... listeners) throws IOException {
+        return subscribeAsync(destination, AckMode.CLIENT, listeners);
+    }
+
+    /**
+     * Subscribe to the destination with the given acknowledgement mode, and request a receipt for the {@code SUBSCRIBE} frame.
+     * @param destination
+     * @param mode
+     * @param listeners
+     * @return future completed when the server confirmed the subscription
+     * @throws IOException
+     * @see #subscribe(String, AckMode, StompListener...)
+     */
+    public CompletableFuture<Void> subscribeAsync(String destination, AckMode mode, StompListener... listeners) throws IOException {
+        if (!isOpen()) throw new ConnectException(MSG_NOT_CONNECTED);
+        final CompletableFuture<Void> future = new CompletableFuture<Void>();
+        if (destination == null || listeners == null || listeners.length == 0) {
+            future.complete(null);
+            return future;
+        }
+        final String receipt = mReceipts.register(future);
+        try {
+            subscribe(destination, mode, mPrefetch, receipt, listeners);
+        } catch (IOException e) {
+            mReceipts.fail(receipt, e);
+        }
+        return future;
+    }
+
+    private void subscribe(String destination, AckMode mode, int prefetch, String receipt, StompListener... listeners) throws IOException {
+        if (destination != null && listeners != null && listeners.length > 0) {
+            // Adds the listeners to an existing subscription, or creates a new one
+            final StompRoutes.Route route = mRoutes.subscribe(destination, mode == null ? AckMode.CLIENT : mode, mAckBatch, mAckDelay, Math.max(0, prefetch), listeners);
+            sendSubscribe(route, receipt);
         }
     }
 
+    /**
+     * Returns a demand-driven view of the destination, using the default prefetch.
+     * @param destination
+     * @return StompPublisher
+     * @see #publisher(String, int)
+     */
+    public StompPublisher publisher(String destination) {
+        return publisher(destination, mPrefetch);
+    }
+
+    /**
+     * Returns a demand-driven view of the destination. Each {@link StompPublisher#subscribe(StompPublisher.Subscriber)}
+     * subscribes in {@link AckMode#CLIENT} mode, and acknowledges a message once it was passed to the subscriber,
+     * so the broker sends no more than {@code prefetch} messages ahead of the subscriber's demand.
+     * @param destination
+     * @param prefetch Maximum number of messages in flight, 0 for the publisher's default
+     * @return StompPublisher
+     */
+    public StompPublisher publisher(String destination, int prefetch) {
+        if (destination == null) throw new NullPointerException();
+        return new StompPublisher(this, destination, prefetch);
+    }
+
+    void subscribe(String destination, int prefetch, StompPublisher.Emitter emitter) throws IOException {
+        if (!isOpen()) throw new ConnectException(MSG_NOT_CONNECTED);
+        final StompRoutes.Route route = mRoutes.publish(destination, mAckBatch, mAckDelay, prefetch, emitter);
+        emitter.attach(route);
+        sendSubscribe(route, null);
+    }
+
     /**
      * Un-subscribe from the destination on the server and remove all listeners.
      * @param destination
      * @throws IOException
      */
     public void unsubscribe(String destination) throws IOException {
-        if (mSocket != null && !mSocket.isConnected()) throw new ConnectException(MSG_NOT_CONNECTED);
-        if (mSubscriptionIds.containsKey(destination)) {
-            final Integer id = mSubscriptionIds.get(destination);
-            if (id != null) {
-                mSubscriptions.get(destination).clear();
-                mSubscriptions.remove(destination);
-                mSubscriptionIds.remove(destination);
-                mIdSubscriptions.remove(id);
-                sendUnsubscribe(id);
-            }
+        if (!isOpen()) throw new ConnectException(MSG_NOT_CONNECTED);
+        final StompRoutes.Route route = mRoutes.unsubscribe(destination);
+        if (route != null) {
+            // Acknowledge what was handled, or it would be redelivered to the next subscriber
+            route.mAcks.flush();
+            final StompDispatcher dispatcher = mDispatcher;
+            if (dispatcher != null) dispatcher.remove(route.mSubscription);
+            sendUnsubscribe(route.mSubscription);
         }
     }
 
@@ -236,13 +781,9 @@ public class StompConnection extends URLConnection implements Stomp {
      * @throws IOException
      */
     public void unsubscribe(String destination, StompListener... listeners) throws IOException {
-        if (mSocket != null && !mSocket.isConnected()) throw new ConnectException(MSG_NOT_CONNECTED);
-        if (mSubscriptions.containsKey(destination)) {
-            for (StompListener listener : listeners)
-                mSubscriptions.get(destination).remove(listener);
-            if (mSubscriptions.get(destination).size() == 0)
-                unsubscribe(destination);
-        }
+        if (!isOpen()) throw new ConnectException(MSG_NOT_CONNECTED);
+        if (listeners != null && mRoutes.remove(destination, listeners) == 0)
+            unsubscribe(destination);
     }
 
     /**
@@ -251,7 +792,8 @@ public class StompConnection extends URLConnection implements Stomp {
      * @throws IOException
      */
     protected InputStream getInput() throws IOException {
-        if (mSocket != null) return mSocket.getInputStream();
+        final StompTransport transport = mTransport;
+        if (transport != null) return transport.getInputStream();
         return null;
     }
 
@@ -261,7 +803,8 @@ public class StompConnection extends URLConnection implements Stomp {
      * @throws IOException
      */
     protected OutputStream getOutput() throws IOException {
-        if (mSocket != null) return mSocket.getOutputStream();
+        final StompTransport transport = mTransport;
+        if (transport != null) return transport.getOutputStream();
         return null;
     }
 
@@ -273,60 +816,136 @@ public class StompConnection extends URLConnection implements Stomp {
     }
 
     /**
-     * Simple utility function that increases the last subscription id;
-     * 
-     * @return last subscription id
+     * Returns if the transport is open. Unlike {@link #isConnected()} this does not wait for the CONNECTED frame.
+     */
+    private boolean isOpen() {
+        final StompTransport transport = mTransport;
+        return transport != null && transport.isOpen();
+    }
+
+    /**
+     * Create the transport for this connection's URL scheme. {@code stomp+nio} URLs are served by the
+     * shared {@link StompReactor} pool, everything else uses a blocking socket and a reader thread.
+     * Without an URL (the {@link StompServer} loopback), the streams come from {@link #getInput()} and
+     * {@link #getOutput()}.
+     * @return StompTransport
      */
-    private Integer getUniqueSubscriberId() {
-        return ++mLastSubscriptionId;
+    StompTransport newTransport(URL endpoint) {
+        if (endpoint == null) return new StompStreamTransport(this);
+        final SocketAddress address = endpoint == url ? mSocketAddress : address(endpoint);
+        if (SCHEMA_STOMP_NIO.equals(endpoint.getProtocol())) return new StompNioTransport(this, address);
+        return new StompStreamTransport(this, new Socket(), address);
+    }
+
+    private static SocketAddress address(URL url) {
+        int port = url.getPort();
+        if (port == -1) port = url.getDefaultPort();
+        return new InetSocketAddress(url.getHost(), port);
+    }
+
+    /**
+     * Try the next endpoint after the backoff delay. The attempt runs on the shared writer pool, the
+     * {@link StompTimer} only schedules it.
+     */
+    private void scheduleReconnect() {
+        // A failed attempt may have been reported by its transport already
+        if (!mReconnectScheduled.compareAndSet(false, true)) return;
+        mReconnecting = true;
+        final int attempt = mReconnectAttempt++;
+        final long delay = Math.min(mReconnectMaxDelay, (long) mReconnectDelay << Math.min(attempt, 30));
+        final long jittered = (delay >> 1) + ThreadLocalRandom.current().nextLong((delay >> 1) + 1);
+        final Runnable reconnect = new Runnable() {
+            @Override
+            public void run() {
+                mReconnectScheduled.set(false);
+                if (mClosing || !mReconnecting || isOpen()) return;
+                final URL endpoint = attempt % (mFailover.length + 1) == 0 ? url : mFailover[attempt % (mFailover.length + 1) - 1];
+                try {
+                    open(endpoint);
+                } catch (IOException e) {
+                    onException(e);
+                    if (!mClosing) scheduleReconnect();
+                }
+            }
+        };
+        StompTimer.getInstance().schedule(new Runnable() {
+            @Override
+            public void run() {
+                StompWriter.execute(reconnect);
+            }
+        }, jittered, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Write the pending cumulative acknowledgements of all subscriptions.
+     * @throws IOException
+     */
+    private void flushAcks() throws IOException {
+        for (StompRoutes.Route route : mRoutes.routes()) route.mAcks.flush();
     }
 
     //--------------------------------------------------------------------------------
-    private void sendAbort() throws IOException {
-        StompFrame frame = new StompFrame(ABORT);
-        frame.addHeader(HEADER_TRANSACTION, mTransaction);
+    private void sendAbort(String receipt) throws IOException {
         try {
-            writeFrame(frame);
+            sendTransaction(ABORT, mTransaction, receipt);
         } finally {
             mTransaction = null;
         }
     }
 
-    private void sendAck(String sub, String id) throws IOException {
+    void sendAck(String sub, String id) throws IOException {
+        sendAck(sub, id, mTransaction);
+    }
+
+    void sendAck(String sub, String id, String transaction) throws IOException {
         StompFrame frame = new StompFrame(ACK);
         frame.addHeader(HEADER_SUBSCRIPTION, sub);
         frame.addHeader(HEADER_MESSAGE_ID, id);
-        if (mTransaction != null)
-            frame.addHeader(HEADER_TRANSACTION, mTransaction);
+        if (transaction != null)
+            frame.addHeader(HEADER_TRANSACTION, transaction);
         writeFrame(frame);
     }
 
     private void sendBegin(String transaction) throws IOException {
         mTransaction = transaction;
-        StompFrame frame = new StompFrame(BEGIN);
-        frame.addHeader(HEADER_TRANSACTION, mTransaction);
-        writeFrame(frame);
+        sendTransaction(BEGIN, transaction, null);
     }
 
-    private void sendCommit() throws IOException {
-        StompFrame frame = new StompFrame(COMMIT);
-        frame.addHeader(HEADER_TRANSACTION, mTransaction);
+    private void sendCommit(String receipt) throws IOException {
         try {
-            writeFrame(frame);
+            sendTransaction(COMMIT, mTransaction, receipt);
         } finally {
             mTransaction = null;
         }
     }
 
-    private void sendConnect() throws IOException {
-        if (mListenerThread == null) {
-            mListenerThread = new StompListenerThread(this, getInput());
-        }
+    private void sendTransaction(String command, String transaction, String receipt) throws IOException {
+        StompFrame frame = new StompFrame(command);
+        frame.addHeader(HEADER_TRANSACTION, transaction);
+        if (receipt != null)
+            frame.addHeader(HEADER_RECEIPT_REQUEST, receipt);
+        writeFrame(frame);
+    }
 
+    /**
+     * Write the {@code COMMIT} or {@code ABORT} of a transaction handle, see {@link StompTransaction}.
+     * @param transaction
+     * @param command
+     * @param receipt optional, may be {@code null}
+     * @throws IOException
+     */
+    void endTransaction(StompTransaction transaction, String command, String receipt) throws IOException {
+        mTransactions.remove(transaction.getId());
+        if (!isOpen()) throw new ConnectException(MSG_NOT_CONNECTED);
+        sendTransaction(command, transaction.getId(), receipt);
+    }
+
+    private void sendConnect() throws IOException {
         StompFrame frame = new StompFrame(CONNECT);
         frame.addHeader(HEADER_ACCEPT_VERSION, VALUE_ACCEPT_VERSION);
-        frame.addHeader(HEADER_HOST, url.getHost());
-        frame.addHeader(HEADER_HEARTBEAT, mHeartBeatRecvDelay + "," +mHeartBeatSendDelay);
+        final URL endpoint = mEndpoint;
+        frame.addHeader(HEADER_HOST, endpoint == null ? VALUE_HOST : endpoint.getHost());
+        frame.addHeader(HEADER_HEARTBEAT, getHeartBeat());
         if (mUsername != null && mPassword != null) {
         	frame.addHeader(HEADER_USERNAME, mUsername);
         	frame.addHeader(HEADER_PASSWORD, mPassword);
@@ -335,40 +954,108 @@ public class StompConnection extends URLConnection implements Stomp {
         writeFrame(frame);
     }
 
-    private void sendHeartBeat() throws IOException {
+    void sendHeartBeat() throws IOException {
     	StompFrame frame = new StompFrame(HEARTBEAT);
     	writeFrame(frame);
     }
 
-    private void sendMessage(StompMessage message) throws IOException {
+    /**
+     * Send the spooled frames, on the shared writer pool. Only one drain runs at a time; it stops when every
+     * frame was handed out or the connection is lost. A frame is only removed from the spool once it was
+     * flushed; with write coalescing at most {@link StompSpool#WINDOW} of them are on their way at a time.
+     */
+    private void drainSpool() {
+        if (mSpoolDraining.get() || !mSpoolDraining.compareAndSet(false, true)) return;
+        StompWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                final StompSpool spool = mSpool;
+                try {
+                    while (spool != null && mConnected) {
+                        final StompWriter writer = mWriter;
+                        final Semaphore window = mSpoolWindow;
+                        // Released by the writer as it flushes spooled frames
+                        if (writer != null && !window.tryAcquire(100, TimeUnit.MILLISECONDS)) continue;
+                        final StompFrame frame = spool.next();
+                        if (frame == null) {
+                            if (writer != null) window.release();
+                            break;
+                        }
+                        final long position = spool.cursor();
+                        if (writer == null) {
+                            writeFrame(frame);
+                            spool.release(position);
+                            continue;
+                        }
+                        frame.setFlushed(new Runnable() {
+                            @Override
+                            public void run() {
+                                spool.release(position);
+                                window.release();
+                            }
+                        });
+                        writer.enqueue(frame);
+                    }
+                } catch (IOException e) {
+                    // Kept in the spool, the next CONNECTED drains it again
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    mSpoolDraining.set(false);
+                }
+                // Frames spooled after the last one was handed out, by a sender that saw the drain still running
+                if (spool != null && mConnected && spool.hasNext()) drainSpool();
+            }
+        });
+    }
+
+    private void sendMessage(StompMessage message, String receipt) throws IOException {
+        sendMessage(message, receipt, mTransaction);
+    }
+
+    void sendMessage(StompMessage message, String receipt, String transaction) throws IOException {
+        if (!isOpen()) throw new ConnectException(MSG_NOT_CONNECTED);
         StompFrame frame = StompIO.messageToFrame(message);
 
-        if (mTransaction != null)
-            frame.addHeader(HEADER_TRANSACTION, mTransaction);
+        if (transaction != null)
+            frame.addHeader(HEADER_TRANSACTION, transaction);
+        if (receipt != null)
+            frame.addHeader(HEADER_RECEIPT_REQUEST, receipt);
 
         writeFrame(frame);
     }
 
-    private void sendNack(String sub, String id) throws IOException {
+    void sendNack(String sub, String id) throws IOException {
+        sendNack(sub, id, mTransaction);
+    }
+
+    void sendNack(String sub, String id, String transaction) throws IOException {
         StompFrame frame = new StompFrame(NACK);
         frame.addHeader(HEADER_SUBSCRIPTION, sub);
         frame.addHeader(HEADER_MESSAGE_ID, id);
-        if (mTransaction != null)
-            frame.addHeader(HEADER_TRANSACTION, mTransaction);
+        if (transaction != null)
+            frame.addHeader(HEADER_TRANSACTION, transaction);
         writeFrame(frame);
     }
 
-    private void sendSubscribe(String destination) throws IOException {
+    private void sendSubscribe(StompRoutes.Route route, String receipt) throws IOException {
         StompFrame frame = new StompFrame(SUBSCRIBE);
-        frame.addHeader(HEADER_ID, mSubscriptionIds.get(destination).toString());
-        frame.addHeader(HEADER_DESTINATION, destination);
-        frame.addHeader(HEADER_ACK, VALUE_ACK);
+        frame.addHeader(HEADER_ID, route.mSubscription);
+        frame.addHeader(HEADER_DESTINATION, route.mDestination);
+        frame.addHeader(HEADER_ACK, route.mAcks.getMode().getValue());
+        if (route.mPrefetch > 0) {
+            final String prefetch = Integer.toString(route.mPrefetch);
+            frame.addHeader(HEADER_PREFETCH_ACTIVEMQ, prefetch);
+            frame.addHeader(HEADER_PREFETCH_COUNT, prefetch);
+        }
+        if (receipt != null)
+            frame.addHeader(HEADER_RECEIPT_REQUEST, receipt);
         writeFrame(frame);
     }
 
-    private void sendUnsubscribe(Integer id) throws IOException {
+    private void sendUnsubscribe(String id) throws IOException {
         StompFrame frame = new StompFrame(UNSUBSCRIBE);
-        frame.addHeader(HEADER_ID, id.toString());
+        frame.addHeader(HEADER_ID, id);
         writeFrame(frame);
     }
     //--------------------------------------------------------------------------------
@@ -379,42 +1066,73 @@ public class StompConnection extends URLConnection implements Stomp {
      * and sends appropriate ACK and NACK responses.
      * @param frame
      */
-    private void handleStompFrame(StompFrame frame) throws IOException {
+    private void handleStompFrame(final StompFrame frame) throws IOException {
     	final String cmd = frame.getCommand();
 
     	if (CONNECTED.equals(cmd)) {
+            final StompHeartBeat heartBeat = StompHeartBeat.negotiate(this, getHeartBeat(), frame.getHeader(HEADER_HEARTBEAT));
+            mHeartBeat = heartBeat;
+            if (heartBeat != null) heartBeat.start();
             mConnected = true;
+            mReconnecting = false;
+            mReconnectAttempt = 0;
+            if (mResubscribe) {
+                // Reconnected, the listeners are still in place
+                mResubscribe = false;
+                for (StompRoutes.Route route : mRoutes.routes()) sendSubscribe(route, null);
+            }
+            final StompSpool spool = mSpool;
+            if (spool != null) {
+                // Frames handed to the previous connection may not have been flushed
+                spool.rewind();
+                mSpoolWindow = new Semaphore(StompSpool.WINDOW);
+                drainSpool();
+            }
             if (mListener != null) mListener.onConnected();
     	} else if (MESSAGE.equals(cmd)) {
-            String id = frame.getHeaders().get(HEADER_SUBSCRIPTION);
-            if (mIdSubscriptions.containsKey(Integer.parseInt(id))) {
-                String destination = mIdSubscriptions.get(Integer.parseInt(id));
-                boolean isAcknowledged = true; // All listeners need to return true for the message to be acknowledged
+            final String id = frame.getHeader(HEADER_SUBSCRIPTION);
+            final StompRoutes.Route route = mRoutes.get(id);
+            final StompDispatcher dispatcher = mDispatcher;
+            if (route == null) {
+                if (frame.getStream() != null) frame.getStream().close();
                 try {
-                    for (StompListener listener : mSubscriptions.get(destination)) {
+                    sendNack(id, frame.getHeader(HEADER_MESSAGE_ID));
+                } finally {
+                    frame.recycle();
+                }
+            } else if (dispatcher != null) {
+                dispatcher.dispatch(route, frame);
+            } else if (frame.getStream() != null) {
+                // The reader feeds the stream, the listeners read it elsewhere
+                final int session = mSession;
+                StompWriter.execute(new Runnable() {
+                    @Override
+                    public void run() {
                         try {
-                            // AND isAcknowledged with the result and store it. It will never flip
-                            // back to true...
-                            isAcknowledged &= listener.onMessage(StompIO.frameToMessage(frame));
-                        } catch (Exception e) {
-                            // Ignore any listener exceptions
+                            handleMessage(route, frame, session);
+                        } catch (IOException e) {
+                            // The transport reports write failures itself
                         }
                     }
-                } finally {
-                    if (isAcknowledged) sendAck(id, frame.getHeaders().get(HEADER_MESSAGE_ID));
-                    else sendNack(id, frame.getHeaders().get(HEADER_MESSAGE_ID));
-                }
+                });
             } else {
-                sendNack(id, frame.getHeaders().get(HEADER_MESSAGE_ID));
+                handleMessage(route, frame, mSession);
             }
     	} else if (RECEIPT.equals(cmd)) {
+            final String receipt = frame.getHeader(HEADER_RECEIPT);
+            mReceipts.complete(receipt);
             if (mListener != null)
-                mListener.onReceipt(frame.getHeaders().get(HEADER_RECEIPT));
+                mListener.onReceipt(receipt);
     	} else if (ERROR.equals(cmd)) {
+            // An error without receipt-id is fatal, the server closes the connection after sending it
+            final ProtocolException error = new ProtocolException(frame.getHeader(HEADER_MESSAGE));
+            final String receipt = frame.getHeader(HEADER_RECEIPT);
+            if (receipt == null || !mReceipts.fail(receipt, error))
+                mReceipts.failAll(error);
             if (mListener != null)
                 mListener.onError(StompIO.frameToMessage(frame));
     	} else {
-            if (mSocket == null) {
+            if (url == null) {
                 handleServerMessage(frame);
             } else {
                 if (mListener != null)
@@ -423,6 +1141,66 @@ public class StompConnection extends URLConnection implements Stomp {
     	}
     }
 
+    /**
+     * Calls the listeners of the subscription, and sends the {@code ACK} or {@code NACK} once they all returned.
+     * Runs on the reader, or on the subscription's lane of the {@link StompDispatcher}. A pooled frame goes back
+     * to its pool afterwards. A frame read before the connection was lost is not acknowledged anymore.
+     * @param route
+     * @param frame
+     * @param session {@link #getSession()} when the frame was taken up
+     * @throws IOException
+     */
+    void handleMessage(StompRoutes.Route route, StompFrame frame, int session) throws IOException {
+        try {
+            routeMessage(route, frame, session);
+        } finally {
+            frame.recycle();
+        }
+    }
+
+    private void routeMessage(StompRoutes.Route route, StompFrame frame, int session) throws IOException {
+        final StompAcks acks = route.mAcks;
+        final StompPublisher.Emitter emitter = route.mEmitter;
+        if (emitter != null && !route.mRemoved) {
+            // Acknowledged once the subscriber asked for it, a stream is closed once it was handed over
+            emitter.offer(StompIO.frameToMessage(frame), frame.getHeader(HEADER_MESSAGE_ID));
+        } else if (!route.mRemoved) {
+            boolean isAcknowledged = true; // All listeners need to return true for the message to be acknowledged
+            boolean isSettled = false; // Acknowledged by a listener as part of a transaction, see StompTransaction#ack
+            final StompMetrics metrics = mMetrics;
+            final long start = metrics != null ? System.nanoTime() : 0;
+            try {
+                final StompMessage message = StompIO.frameToMessage(frame); // Shared by all listeners
+                for (StompListener listener : route.mListeners) {
+                    try {
+                        // AND isAcknowledged with the result and store it. It will never flip
+                        // back to true...
+                        isAcknowledged &= listener.onMessage(message);
+                    } catch (Exception e) {
+                        // Ignore any listener exceptions
+                    }
+                }
+                isSettled = message.isSettled();
+                message.release(); // Skips what the listeners left of a streamed body, recycles a pooled one
+            } finally {
+                if (metrics != null) metrics.onListener(System.nanoTime() - start);
+                if (isSettled) {
+                    // Acknowledged in a transaction already
+                } else if (session != mSession) {
+                    // The server redelivers it, the message-id is unknown on the next connection
+                } else if (isAcknowledged) {
+                    acks.ack(frame.getHeader(HEADER_MESSAGE_ID));
+                } else {
+                    acks.nack(frame.getHeader(HEADER_MESSAGE_ID));
+                }
+            }
+        } else {
+            // Un-subscribed while the message was queued on its lane
+            if (frame.getStream() != null) frame.getStream().close();
+            if (session == mSession) sendNack(route.mSubscription, frame.getHeader(HEADER_MESSAGE_ID));
+        }
+    }
+
     /**
      * Used internally by {@link StompServer}.
      * @param frame
@@ -430,6 +1208,81 @@ public class StompConnection extends URLConnection implements Stomp {
      */
     protected void handleServerMessage(StompFrame frame) throws IOException {}
 
+    /**
+     * Called by the {@link StompTransport} for every frame read.
+     * @param frame
+     * @throws IOException
+     */
+    void onFrame(StompFrame frame) throws IOException {
+        onRead();
+        handleStompFrame(frame);
+    }
+
+    /**
+     * Called by the {@link StompTransport} once, when reading stopped.
+     * @param transport
+     * @param e
+     */
+    void onClosed(StompTransport transport, IOException e) {
+        if (transport != mTransport) return;
+        mConnected = false;
+        final boolean reconnect = mReconnectDelay > 0 && !mClosing && url != null;
+        final StompHeartBeat heartBeat = mHeartBeat;
+        if (heartBeat != null) heartBeat.stop();
+        // Frames still queued on the lanes belong to the lost connection, the server redelivers them
+        final StompDispatcher dispatcher = mDispatcher;
+        if (dispatcher != null) dispatcher.clear();
+        mSession++;
+        for (StompRoutes.Route route : mRoutes.routes()) {
+            route.mAcks.clear();
+            if (route.mEmitter != null) {
+                if (reconnect) mRoutes.unsubscribe(route.mDestination);
+                route.mEmitter.closed(e);
+            }
+        }
+        final StompMetrics metrics = mMetrics;
+        if (metrics != null) metrics.unregister();
+        mReceipts.failAll(e);
+        // The server dropped the open transactions with the connection
+        for (StompTransaction transaction : mTransactions.values()) transaction.lost(e);
+        mTransactions.clear();
+        mDeferred.clear(); // Acknowledgements for the lost connection
+        if (reconnect) {
+            mTransaction = null;
+            mResubscribe = true;
+        }
+        try {
+            onException(e);
+        } finally {
+            if (reconnect) {
+                scheduleReconnect();
+            } else {
+                synchronized(this) {
+                    notify();
+                }
+            }
+        }
+    }
+
+    StompIO.Listener getFrameListener() {
+        return mFrameListener;
+    }
+
+    /**
+     * Returns if the transports should time encoding and decoding, see {@link #setMetricsEnabled(boolean)}.
+     */
+    boolean isMetered() {
+        return mMetrics != null;
+    }
+
+    /**
+     * Returns the number of frames waiting for the {@link StompWriter}.
+     */
+    int getQueuedFrames() {
+        final StompWriter writer = mWriter;
+        return writer == null ? 0 : writer.size();
+    }
+
     private void onException(Exception e) {
         if (mListener == null) {
             if (!MSG_SOCKET_CLOSED.equals(e.getMessage())) e.printStackTrace();
@@ -442,41 +1295,152 @@ public class StompConnection extends URLConnection implements Stomp {
         }
     }
 
-    private void preWrite(StompFrame frame) {
-        // Fetch any existing heart-beat future, and cancel it.
-        if (!HEARTBEAT.equals(frame.getCommand())) {
-            if (mFuture != null) mFuture.cancel(true);
-        }
+    /**
+     * Called by the {@link StompHeartBeat} when nothing was received within the tolerance.
+     * @param e
+     */
+    void onHeartBeatTimeout(IOException e) {
+        final StompTransport transport = mTransport;
+        if (transport != null) transport.abort(e);
+    }
+
+    /**
+     * Returns the number of transports closed so far, used to tell frames of a lost connection apart.
+     */
+    int getSession() {
+        return mSession;
+    }
+
+    /**
+     * Called by the {@link StompDispatcher} on the reader, when a subscription's lane is full.
+     */
+    void suspendReads() {
+        final StompTransport transport = mTransport;
+        if (transport != null) transport.suspendReads();
+    }
+
+    /**
+     * Called by the {@link StompDispatcher} from any thread, when no lane is full anymore.
+     */
+    void resumeReads() {
+        final StompTransport transport = mTransport;
+        if (transport != null) transport.resumeReads();
+    }
+
+    /**
+     * Called by the {@link StompHeartBeat}, nothing is read on purpose while reads are paused.
+     */
+    boolean isReadPaused() {
+        final StompTransport transport = mTransport;
+        return transport != null && transport.isReadPaused();
+    }
+
+    /**
+     * Called for every frame and heart-beat read, only records the time.
+     */
+    void onRead() {
+        final StompHeartBeat heartBeat = mHeartBeat;
+        if (heartBeat != null) heartBeat.onRead();
     }
 
-    private void postWrite() {
-        // Create a new heart-beat future here
-        if (mHeartBeatSendDelay > 0) {
-            mFuture = mExecutor.schedule(new StompHeartBeatWriter(this), mHeartBeatSendDelay, TimeUnit.MILLISECONDS);
+    /**
+     * Called after every write, only records the time.
+     */
+    void onWrite() {
+        final StompHeartBeat heartBeat = mHeartBeat;
+        if (heartBeat != null) heartBeat.onWrite();
+    }
+
+    /**
+     * Returns the {@code heart-beat} header value for {@code CONNECT}: what we can send, what we want to receive.
+     */
+    private String getHeartBeat() {
+        return mHeartBeatSendDelay + "," + mHeartBeatRecvDelay;
+    }
+
+    void writeFrame(StompFrame frame) throws IOException {
+        final StompWriter writer = mWriter;
+        final StompTransport transport = mTransport;
+        if (writer != null && frame.getBody() != null) {
+            writer.write(frame);
+        } else if (writer != null) {
+            writer.enqueue(frame);
+        } else if (transport != null && transport.isReactor()) {
+            writeFrameDeferred(frame);
+        } else {
+            writeFrameDirect(frame);
         }
     }
 
-    synchronized private void writeFrame(StompFrame frame) throws IOException {
-        preWrite(frame);
+    private void writeFrameDirect(StompFrame frame) throws IOException {
+        lockWrites(mWriteLock);
+        final StompTransport transport;
         try {
-            // StompFrame's reader.ReadLine is blocking for the duration of mSocket.getReadTimeout() which defaults to 0.
-            // When implementing heart-beats, we have to modify the read timeout and throw exceptions when the
-            // heart-beat timeout has been reached.
-            // Worst of all, if properly implemented, each explicit read statement should be equipped with additional
-            // heart-beat detection code. As we are using a simple BufferedReader, access to each individual read statement
-        	// is virtually impossible, unless we roll our own readLine method using read(byte).
-            StompIO.writeFrame(frame, getOutput(), mFrameListener);
+            transport = writeFrameLocked(frame);
         } finally {
-            postWrite();
+            mWriteLock.unlock();
+        }
+        // Waits for the reactor without the lock, it may write acknowledgements meanwhile
+        if (frame.getBody() != null) transport.awaitWritten(frame.getBody());
+    }
+
+    private StompTransport writeFrameLocked(StompFrame frame) throws IOException {
+        // Heart-beats are not scheduled per write, the StompHeartBeat only looks at the time of the last write
+        final StompTransport transport = mTransport;
+        if (transport == null) throw new ConnectException(MSG_NOT_CONNECTED);
+        transport.write(frame, mFrameListener);
+        onWrite();
+        return transport;
+    }
+
+    /**
+     * Write a frame on the reactor of a non-blocking transport, which must not wait for the write lock: the
+     * holder may be waiting for the reactor. When the lock is taken, or frames are deferred already, the frame
+     * is written on the shared writer pool instead, after the frames deferred before it.
+     * @param frame
+     * @throws IOException
+     */
+    private void writeFrameDeferred(StompFrame frame) throws IOException {
+        if (mWriteLock.tryLock()) {
+            try {
+                if (mDeferred.isEmpty()) {
+                    writeFrameLocked(frame);
+                    return;
+                }
+            } finally {
+                mWriteLock.unlock();
+            }
         }
+        mDeferred.add(frame);
+        if (!mDeferring.get() && mDeferring.compareAndSet(false, true))
+            StompWriter.execute(mDeferredWriter);
     }
 
-    private static class FrameListener implements StompIO.Listener {
+    /**
+     * Called while a thread waits for room in the {@link StompWriter} queue. Overridden by {@link StompServer},
+     * see {@link #lockWrites(Lock)}.
+     */
+    void onWriteWait() {
+    }
+
+    /**
+     * Take the lock that serializes writes without write coalescing. Overridden by {@link StompServer}, whose
+     * reader must not wait for a writer that waits for the reader.
+     * @param lock
+     * @throws IOException
+     */
+    void lockWrites(Lock lock) throws IOException {
+        lock.lock();
+    }
+
+    private class FrameListener implements StompIO.Listener {
     	@Override
     	public void onReadBegin(){}
 
     	@Override
-    	public void onReadEmpty(){}
+    	public void onReadEmpty(){
+    	    onRead();
+    	}
 
     	@Override
     	public void onReadEnd(final boolean finalized){}
@@ -489,56 +1453,88 @@ public class StompConnection extends URLConnection implements Stomp {
 
     	@Override
     	public void onWriteEnd(){}
-    }
 
-    private static class StompHeartBeatWriter implements Runnable {
-    	private StompConnection mConnection;
-    	public StompHeartBeatWriter(StompConnection connection) {
-    		mConnection = connection;
-    	}
-		@Override
-		public void run() {
-			try {
-				mConnection.sendHeartBeat();
-			} catch (IOException e) {
-				// Do something here!!!
-			}
-		}
+    	@Override
+    	public void onReadFrame(StompFrame frame, int bytes, long nanos){}
+
+    	@Override
+    	public void onWriteFrame(StompFrame frame, int bytes, long nanos){}
     }
 
-    private static class StompListenerThread implements Runnable {
+    /**
+     * Frame listener that feeds the connection's {@link StompMetrics}.
+     */
+    private class MeteredFrameListener extends FrameListener {
+        private final StompMetrics mMetrics;
+        private boolean mTrailing = false; // Only touched by the reader
 
-        private InputStream mInput;
+        MeteredFrameListener(StompMetrics metrics) {
+            mMetrics = metrics;
+        }
 
-        private Thread mThread;
-        private StompConnection mConnection;
+        @Override
+        public void onReadEmpty() {
+            super.onReadEmpty();
+            // The end-of-line that usually follows a frame is not a heart-beat
+            if (mTrailing) mTrailing = false;
+            else mMetrics.onHeartBeat();
+        }
 
-        public StompListenerThread(StompConnection connection, InputStream input) {
-            mConnection = connection;
-            mInput = input;
-            mThread = new Thread(this);
-            mThread.start();
+        @Override
+        public void onReadFrame(StompFrame frame, int bytes, long nanos) {
+            mTrailing = true;
+            mMetrics.onRead(frame, bytes, nanos);
         }
 
         @Override
-        public void run() {
-            try {
-                while (true) {
-                    StompFrame frame = StompIO.readFrame(mInput, mFrameListener);
-                    if ("".equals(frame.getCommand())) throw new SocketException(MSG_SOCKET_CLOSED);
-                    mConnection.handleStompFrame(frame);
-                }
-            } catch (IOException e) {
-                mConnection.onException(e);
-            } finally {
-                synchronized(mConnection) {
-                    mConnection.notify();
-                }
-            }
+        public void onWriteFrame(StompFrame frame, int bytes, long nanos) {
+            mMetrics.onWrite(frame, bytes, nanos);
+        }
+    }
+
+    /**
+     * StompConnection.SpoolOverflow Enum
+     * 
+     * <p>What {@link StompConnection#send(StompMessage)} does when the spool has no room for a message, see
+     * {@link StompConnection#setSpool(File, long, SpoolOverflow)}.
+     * <ul>
+     * <li>{@link #FAIL}: throw an {@link IOException}, the message is not spooled</li>
+     * <li>{@link #DROP_NEWEST}: discard the message</li>
+     * <li>{@link #DROP_OLDEST}: discard the oldest spooled messages until it fits</li>
+     * </ul>
+     */
+    public enum SpoolOverflow {
+        FAIL,
+        DROP_NEWEST,
+        DROP_OLDEST
+    }
+
+    /**
+     * StompConnection.AckMode Enum
+     * 
+     * <p>How messages of a subscription are acknowledged, see {@link StompConnection#subscribe(String, AckMode, StompListener...)}.
+     * <ul>
+     * <li>{@link #AUTO}: the server does not expect acknowledgements, the listeners' results are ignored</li>
+     * <li>{@link #CLIENT}: cumulative, one {@code ACK} covers all messages before it, see {@link StompConnection#setAckBatch(int, int)}</li>
+     * <li>{@link #CLIENT_INDIVIDUAL}: one {@code ACK} or {@code NACK} per message</li>
+     * </ul>
+     */
+    public enum AckMode {
+        AUTO(VALUE_ACK_AUTO),
+        CLIENT(VALUE_ACK),
+        CLIENT_INDIVIDUAL(VALUE_ACK_CLIENT_INDIVIDUAL);
+
+        private final String mValue;
+
+        AckMode(String value) {
+            mValue = value;
         }
 
-        public void interrupt() {
-            mThread.interrupt();
+        /**
+         * Returns the value of the {@code ack} header.
+         */
+        public String getValue() {
+            return mValue;
         }
     }
 
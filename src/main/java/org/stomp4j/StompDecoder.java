@@ -0,0 +1,609 @@
+package org.stomp4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * StompDecoder Class
+ *
+ * <p>Incremental, byte oriented {@link StompFrame} decoder. An instance lives as long as the connection
+ * it belongs to, so bytes read ahead of the current frame are kept for the next one.
+ *
+ * <a name="label_buffer"><h3>Buffer</h3></a>
+ * Bytes are accumulated in a heap {@link ByteBuffer}. Readers either fill it directly through
+ * {@link #getBuffer()} (NIO channels), copy into it using {@link #feed(ByteBuffer)}, or let
+ * {@link #read(InputStream, StompIO.Listener)} pull from a blocking stream. Everything between the
+ * read position and the buffer position is undecoded data.
+ *
+ * <a name="label_state"><h3>State</h3></a>
+ * Decoding is a small state machine (command, headers, body). When the buffer runs dry halfway through a
+ * frame, {@link #decode(StompIO.Listener)} returns {@code null} and continues where it left off once more
+ * bytes are available. Commands and well-known header names are matched on their bytes and resolve to the
+ * constants in {@link Stomp}, so no {@link String} is built for them. Bodies with a {@code content-length}
+ * header are copied in bulk into a payload array of exactly that size.
+ *
+ * <a name="label_stream"><h3>Streaming</h3></a>
+ * Once {@link #setStreamThreshold(int)} is set, a {@code MESSAGE} with a larger {@code content-length} is
+ * returned as soon as its headers are decoded, with a {@link StompBodyStream} instead of a payload. Following
+ * calls feed the body to that stream, and only decode the next frame once the stream was closed. While the
+ * stream is full (see {@link #park(Runnable)}), the reader has to stop reading, or the buffer would grow.
+ *
+ * <a name="label_pool"><h3>Pooling</h3></a>
+ * With a {@link StompPool} (see {@link #setPool(StompPool)}), a {@code MESSAGE} is decoded into a frame and a
+ * payload array taken from the pool, so a steady stream of messages does not allocate either. The payload
+ * array then has the size class of the content length, see {@link StompFrame#getPayloadLength()}. A direct
+ * pool gives a direct {@link ByteBuffer} instead; NIO readers fill it straight from the channel through
+ * {@link #getReadBuffer()}, so the body does not pass through the heap. Blocking streams can only read into
+ * arrays, their bodies are copied from the buffer.
+ *
+ * <a name="label_intern"><h3>Interning</h3></a>
+ * Other header names, and the values of headers that tend to repeat (destination, subscription,
+ * content-type, ...), go through a small direct-mapped cache of the strings built before. A hit compares
+ * the bytes and returns the earlier {@link String}, so a stream of messages for the same destination does
+ * not allocate a new destination string per frame. Values like {@code message-id}, and those of custom headers
+ * (correlation ids, timestamps, ...), are decoded directly and never cached.
+ *
+ * <a name="label_metrics"><h3>Metrics</h3></a>
+ * Every decoded frame is reported to {@link StompIO.Listener#onReadFrame} with its size on the wire. Once
+ * {@link #setTimed(boolean)} is on, the time spent decoding it is added up over the {@code decode} calls it
+ * took, leaving out the time spent waiting for bytes.
+ *
+ * <p>This class is not thread-safe; it is owned by the single reader of a connection.
+ *
+ * @author Rory Slegtenhorst <rory.slegtenhorst@gmail.com>
+ */
+class StompDecoder implements Stomp {
+
+    static final int DEFAULT_CAPACITY = 8192;
+
+    private static final Charset UTF_8 = Charset.forName(VALUE_CHARSET);
+
+    private static final byte LF = '\n';
+    private static final byte CR = '\r';
+    private static final byte COLON = ':';
+    private static final byte NUL = 0;
+
+    private static final int STATE_COMMAND = 0;
+    private static final int STATE_HEADERS = 1;
+    private static final int STATE_BODY = 2;
+    private static final int STATE_STREAM = 3;
+
+    private static final String[] COMMANDS = new String[] {
+        CONNECTED, MESSAGE, RECEIPT, ERROR,
+        CONNECT, SEND, SUBSCRIBE, UNSUBSCRIBE, BEGIN, COMMIT, ABORT, ACK, NACK, DISCONNECT
+    };
+
+    private static final String[] HEADERS = new String[] {
+        HEADER_DESTINATION, HEADER_SUBSCRIPTION, HEADER_MESSAGE_ID, HEADER_CONTENT_LENGTH,
+        HEADER_CONTENT_TYPE, HEADER_ACK, HEADER_ID, HEADER_TRANSACTION, HEADER_RECEIPT,
+        HEADER_PERSISTENT, HEADER_ACCEPT_VERSION, HEADER_HOST, HEADER_USERNAME, HEADER_PASSWORD,
+        HEADER_HEARTBEAT, HEADER_SESSION, HEADER_SERVER, HEADER_VERSION, HEADER_MESSAGE,
+        HEADER_CHARSET, HEADER_REDELIVERED
+    };
+
+    private static final String[] INTERNED = new String[] {
+        HEADER_DESTINATION, HEADER_SUBSCRIPTION, HEADER_CONTENT_TYPE, HEADER_ACK,
+        HEADER_TRANSACTION, HEADER_PERSISTENT, HEADER_SESSION, HEADER_SERVER, HEADER_VERSION, HEADER_HEARTBEAT,
+        HEADER_CHARSET, HEADER_REDELIVERED
+    };
+
+    private static final byte[][] COMMAND_BYTES = toBytes(COMMANDS);
+    private static final byte[][] HEADER_BYTES = toBytes(HEADERS);
+
+    private static final int INTERN_SIZE = 256; // Power of two
+    private static final int INTERN_MAX_LENGTH = 128;
+
+    private ByteBuffer mBuffer;
+    private int mReadPos = 0;
+    private int mScanPos = 0;
+
+    private int mState = STATE_COMMAND;
+    private String mCommand = null;
+    private StompHeaders mHeaders = null;
+    private int mContentLength = -1;
+    private byte[] mPayload = null;
+    private ByteBuffer mPayloadBuffer = null; // Direct payload of a pooled frame
+    private int mPayloadPos = 0;
+    private boolean mFinalized = false;
+    private int mStreamThreshold = 0;
+    private volatile StompBodyStream mStream = null;
+    private StompPool mPool = null;
+    private StompFrame mFrame = null; // Pooled frame being decoded
+
+    private boolean mTimed = false;
+    private int mFrameBytes = 0;
+    private long mFrameNanos = 0;
+
+    private final String[] mInterned = new String[INTERN_SIZE];
+    private final byte[][] mInternedBytes = new byte[INTERN_SIZE][];
+
+    public StompDecoder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public StompDecoder(int capacity) {
+        mBuffer = ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Measure the time spent decoding each frame, see {@link StompIO.Listener#onReadFrame}.
+     * @param timed
+     */
+    void setTimed(boolean timed) {
+        mTimed = timed;
+    }
+
+    /**
+     * Stream the bodies of messages larger than the threshold, 0 to never stream.
+     * @param threshold content length in bytes
+     */
+    void setStreamThreshold(int threshold) {
+        mStreamThreshold = Math.max(0, threshold);
+    }
+
+    /**
+     * Decode messages into frames and payload arrays taken from the pool, {@code null} to allocate them.
+     * @param pool
+     */
+    void setPool(StompPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * Returns if the reader has to stop reading until a streamed body was consumed further. When it has,
+     * {@code wakeup} is run once it can continue.
+     * @param wakeup
+     */
+    boolean park(Runnable wakeup) {
+        return mState == STATE_STREAM && mStream.park(wakeup);
+    }
+
+    /**
+     * Returns if the reader waits for a streamed body to be consumed further. May be called from any thread.
+     */
+    boolean isStalled() {
+        final StompBodyStream stream = mStream;
+        return stream != null && stream.isStalled();
+    }
+
+    /**
+     * Returns if a streamed body can be fed from the buffered bytes, so {@link #decode} gets further
+     * without reading.
+     */
+    boolean canStream() {
+        return mState == STATE_STREAM && mReadPos < mBuffer.position() && !mStream.isStalled();
+    }
+
+    /**
+     * Fail the streamed body being fed, if any. Called when the transport closed, from any thread.
+     * @param e
+     */
+    void abort(IOException e) {
+        final StompBodyStream stream = mStream;
+        if (stream != null) stream.fail(e);
+    }
+
+    /**
+     * Returns the internal buffer, positioned for writing, with at least one byte of free space.
+     * Callers write into it (e.g. {@code channel.read(decoder.getBuffer())}) and then call {@link #decode}.
+     * @return ByteBuffer
+     */
+    ByteBuffer getBuffer() {
+        if (!mBuffer.hasRemaining()) {
+            if (mReadPos > 0) compact();
+            else grow(mBuffer.capacity() << 1);
+        }
+        return mBuffer;
+    }
+
+    /**
+     * Returns the buffer the next channel read should go to: the direct payload of the frame being decoded
+     * when the rest of its body is still to be read, and {@link #getBuffer()} otherwise.
+     * @return ByteBuffer
+     */
+    ByteBuffer getReadBuffer() {
+        if (mState == STATE_BODY && mPayloadBuffer != null && mReadPos == mBuffer.position()
+                && mPayloadBuffer.hasRemaining()) {
+            return mPayloadBuffer;
+        }
+        return getBuffer();
+    }
+
+    /**
+     * Copy all remaining bytes of {@code source} into the decoder.
+     * @param source
+     */
+    void feed(ByteBuffer source) {
+        while (source.hasRemaining()) {
+            ByteBuffer buffer = getBuffer();
+            if (source.remaining() <= buffer.remaining()) {
+                buffer.put(source);
+            } else {
+                int limit = source.limit();
+                source.limit(source.position() + buffer.remaining());
+                buffer.put(source);
+                source.limit(limit);
+            }
+        }
+    }
+
+    /**
+     * Returns if the last decoded frame was properly terminated by a NULL octet.
+     */
+    boolean isFinalized() {
+        return mFinalized;
+    }
+
+    /**
+     * Returns if there are undecoded bytes, or a partially decoded frame, in the decoder.
+     */
+    boolean hasPending() {
+        return mState != STATE_COMMAND || mReadPos < mBuffer.position();
+    }
+
+    /**
+     * Read the next frame from a blocking stream. Bytes are pulled from {@code input} in bulk only when the
+     * buffered data does not hold a complete frame.
+     * @param input
+     * @param listener optional, may be {@code null}
+     * @return StompFrame
+     * @throws IOException {@link SocketException} when the stream is closed
+     */
+    StompFrame read(InputStream input, StompIO.Listener listener) throws IOException {
+        StompFrame frame;
+        while ((frame = decode(listener)) == null) {
+            if (mState == STATE_STREAM) {
+                mStream.await();
+                if (canStream()) continue;
+            }
+            int count;
+            if (mState == STATE_BODY && mPayload != null && mReadPos == mBuffer.position()) {
+                // Nothing buffered, read the body straight into the payload
+                if (mPayloadPos < mContentLength)
+                    count = input.read(mPayload, mPayloadPos, mContentLength - mPayloadPos);
+                else
+                    count = readInto(input);
+                if (count > 0 && mPayloadPos < mContentLength) mPayloadPos += count;
+            } else {
+                count = readInto(input);
+            }
+            if (count < 0) throw new SocketException(MSG_SOCKET_CLOSED);
+        }
+        return frame;
+    }
+
+    private int readInto(InputStream input) throws IOException {
+        ByteBuffer buffer = getBuffer();
+        int count = input.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        if (count > 0) buffer.position(buffer.position() + count);
+        return count;
+    }
+
+    /**
+     * Decode the next frame from the buffered bytes.
+     * @param listener optional, may be {@code null}
+     * @return StompFrame, or {@code null} when more bytes are needed
+     * @throws ProtocolException for an invalid content-length header
+     */
+    StompFrame decode(StompIO.Listener listener) throws ProtocolException {
+        if (!mTimed) {
+            final StompFrame frame = decodeFrame(listener);
+            if (frame != null && listener != null) listener.onReadFrame(frame, mFrameBytes, 0);
+            return frame;
+        }
+        final long start = System.nanoTime();
+        final StompFrame frame = decodeFrame(listener);
+        final long nanos = System.nanoTime() - start;
+        if (frame == null) {
+            // Only count the calls that got a frame further, not the ones looking for the next command
+            if (mState != STATE_COMMAND && mState != STATE_STREAM) mFrameNanos += nanos;
+            return null;
+        }
+        final long total = mFrameNanos + nanos;
+        mFrameNanos = 0;
+        if (listener != null) listener.onReadFrame(frame, mFrameBytes, total);
+        return frame;
+    }
+
+    private StompFrame decodeFrame(StompIO.Listener listener) throws ProtocolException {
+        final byte[] data = mBuffer.array();
+        final int base = mBuffer.arrayOffset();
+        final int end = mBuffer.position();
+
+        if (mState == STATE_STREAM && !stream(data, base, end)) return null;
+
+        while (mState == STATE_COMMAND) {
+            int eol = indexOf(data, base, LF, end);
+            if (eol == -1) return null;
+            int len = lineLength(data, base, mReadPos, eol);
+            if (len == 0) {
+                if (listener != null) listener.onReadEmpty();
+            } else {
+                mCommand = match(COMMAND_BYTES, COMMANDS, data, base + mReadPos, len);
+                if (mCommand != null) {
+                    if (DEBUG) System.out.println("StompDecoder.decode Command: " + mCommand);
+                    if (mPool != null && mCommand == MESSAGE) {
+                        mFrame = mPool.frame();
+                        mHeaders = mFrame.headers();
+                    } else {
+                        mHeaders = new StompHeaders();
+                    }
+                    mContentLength = -1;
+                    mFrameBytes = eol + 1 - mReadPos;
+                    mState = STATE_HEADERS;
+                } else {
+                    if (DEBUG) System.out.println("StompDecoder.decode Skipping invalid command");
+                }
+            }
+            consume(eol + 1);
+        }
+
+        while (mState == STATE_HEADERS) {
+            int eol = indexOf(data, base, LF, end);
+            if (eol == -1) return null;
+            int len = lineLength(data, base, mReadPos, eol);
+            mFrameBytes += eol + 1 - mReadPos;
+            if (len == 0) {
+                if (mStreamThreshold > 0 && mContentLength > mStreamThreshold && mCommand == MESSAGE) {
+                    consume(eol + 1);
+                    return startStream();
+                }
+                mState = STATE_BODY;
+                if (mContentLength >= 0 && isDirect()) mPayloadBuffer = mPool.buffer(mContentLength);
+                else if (mContentLength >= 0) mPayload = allocate(mContentLength);
+                mPayloadPos = 0;
+            } else {
+                decodeHeader(data, base + mReadPos, len);
+            }
+            consume(eol + 1);
+        }
+
+        if (mPayloadBuffer != null) {
+            final int count = Math.min(end - mReadPos, mPayloadBuffer.remaining());
+            if (count > 0) {
+                mPayloadBuffer.put(data, base + mReadPos, count);
+                consume(mReadPos + count);
+            }
+            if (mPayloadBuffer.hasRemaining() || mReadPos == end) return null;
+            mFinalized = data[base + mReadPos] == NUL;
+            if (mFinalized) consume(mReadPos + 1);
+            final ByteBuffer buffer = mPayloadBuffer;
+            buffer.flip();
+            mPayloadBuffer = null;
+            return complete(null, buffer, mContentLength);
+        } else if (mPayload != null) {
+            final int count = Math.min(end - mReadPos, mContentLength - mPayloadPos);
+            if (count > 0) {
+                System.arraycopy(data, base + mReadPos, mPayload, mPayloadPos, count);
+                mPayloadPos += count;
+                consume(mReadPos + count);
+            }
+            if (mPayloadPos < mContentLength || mReadPos == end) return null;
+            // Any "LINE FEED" character following the NULL should be picked up as a heart-beat
+            mFinalized = data[base + mReadPos] == NUL;
+            if (mFinalized) consume(mReadPos + 1);
+            return complete(mPayload, null, mContentLength);
+        } else {
+            int nul = indexOf(data, base, NUL, end);
+            if (nul == -1) return null;
+            final int length = nul - mReadPos;
+            if (isDirect()) {
+                final ByteBuffer buffer = mPool.buffer(length);
+                buffer.put(data, base + mReadPos, length);
+                buffer.flip();
+                mFinalized = true;
+                consume(nul + 1);
+                return complete(null, buffer, length);
+            }
+            byte[] payload = allocate(length);
+            System.arraycopy(data, base + mReadPos, payload, 0, length);
+            mFinalized = true;
+            consume(nul + 1);
+            return complete(payload, null, length);
+        }
+    }
+
+    /**
+     * Returns a payload array for the frame being decoded, from the pool when the frame is pooled.
+     */
+    private byte[] allocate(int length) {
+        return mFrame != null ? mPool.payload(length) : new byte[length];
+    }
+
+    /**
+     * Returns if the frame being decoded gets a direct payload.
+     */
+    private boolean isDirect() {
+        return mFrame != null && mPool.isDirect();
+    }
+
+    private StompFrame complete(byte[] payload, ByteBuffer buffer, int length) {
+        final StompFrame frame = mFrame != null
+                ? mFrame.reset(mCommand, payload, buffer, length, null)
+                : new StompFrame(mCommand, payload, mHeaders);
+        mFrameBytes += mFinalized ? length + 1 : length;
+        mFrame = null;
+        mState = STATE_COMMAND;
+        mCommand = null;
+        mHeaders = null;
+        mPayload = null;
+        mPayloadPos = 0;
+        mContentLength = -1;
+        if (mReadPos == mBuffer.position()) {
+            // Everything is consumed, rewind for free
+            mBuffer.clear();
+            mReadPos = 0;
+            mScanPos = 0;
+        }
+        return frame;
+    }
+
+    private StompFrame startStream() {
+        final StompBodyStream stream = new StompBodyStream(mContentLength);
+        final StompFrame frame = mFrame != null
+                ? mFrame.reset(mCommand, null, null, 0, stream)
+                : new StompFrame(mCommand, mHeaders, stream);
+        mFrameBytes += mContentLength + 1;
+        mFrame = null;
+        mStream = stream;
+        mState = STATE_STREAM;
+        mCommand = null;
+        mHeaders = null;
+        mContentLength = -1;
+        return frame;
+    }
+
+    /**
+     * Feed the buffered bytes to the streamed body, returns {@code true} once it is done and the stream was closed.
+     */
+    private boolean stream(byte[] data, int base, int end) {
+        final StompBodyStream stream = mStream;
+        if (!stream.isComplete()) {
+            consume(mReadPos + stream.offer(data, base + mReadPos, end - mReadPos));
+            if (mReadPos == end) {
+                // Everything is fed, rewind for free
+                mBuffer.clear();
+                mReadPos = 0;
+                mScanPos = 0;
+            }
+            if (!stream.isComplete()) return false;
+        }
+        if (mReadPos == mBuffer.position() || stream.isStalled()) return false;
+        mFinalized = data[base + mReadPos] == NUL;
+        if (mFinalized) consume(mReadPos + 1);
+        mStream = null;
+        mState = STATE_COMMAND;
+        return true;
+    }
+
+    private void decodeHeader(byte[] data, int offset, int len) throws ProtocolException {
+        int colon = -1;
+        for (int pos = offset, end = offset + len; pos < end; pos++) {
+            if (data[pos] == COLON) {
+                colon = pos;
+                break;
+            }
+        }
+        if (colon == -1) {
+            if (DEBUG && VERBOSE) System.out.println("StompDecoder.decode Could not find :");
+            return;
+        }
+        String name = match(HEADER_BYTES, HEADERS, data, offset, colon - offset);
+        if (name == null) name = intern(data, offset, colon - offset);
+        String value = isInterned(name)
+                ? intern(data, colon + 1, offset + len - colon - 1)
+                : new String(data, colon + 1, offset + len - colon - 1, UTF_8);
+        if (DEBUG && VERBOSE) System.out.println("StompDecoder.decode Header: " + name + ", value: " + value);
+        if (name == HEADER_CONTENT_LENGTH) mContentLength = parseLength(data, colon + 1, offset + len);
+        mHeaders.put(name, value);
+    }
+
+    private static boolean isInterned(String name) {
+        for (String interned : INTERNED) {
+            if (interned == name) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the string for the bytes, reusing the one built before for the same bytes when it is still cached.
+     */
+    private String intern(byte[] data, int offset, int len) {
+        if (len > INTERN_MAX_LENGTH) return new String(data, offset, len, UTF_8);
+        int hash = len;
+        for (int pos = offset, end = offset + len; pos < end; pos++)
+            hash = 31 * hash + data[pos];
+        final int slot = (hash ^ (hash >>> 16)) & (INTERN_SIZE - 1);
+        final byte[] cached = mInternedBytes[slot];
+        if (cached != null && cached.length == len) {
+            int pos = 0;
+            while (pos < len && cached[pos] == data[offset + pos]) pos++;
+            if (pos == len) return mInterned[slot];
+        }
+        final byte[] bytes = new byte[len];
+        System.arraycopy(data, offset, bytes, 0, len);
+        final String result = new String(bytes, UTF_8);
+        mInternedBytes[slot] = bytes;
+        mInterned[slot] = result;
+        return result;
+    }
+
+    private void consume(int pos) {
+        mReadPos = pos;
+        mScanPos = pos;
+    }
+
+    /**
+     * Find {@code value} between the scan position and {@code end}. Bytes that have been scanned
+     * before are not scanned again when the search is resumed after more data arrived.
+     */
+    private int indexOf(byte[] data, int base, byte value, int end) {
+        for (int pos = mScanPos; pos < end; pos++) {
+            if (data[base + pos] == value) return pos;
+        }
+        mScanPos = end;
+        return -1;
+    }
+
+    private void compact() {
+        final int count = mBuffer.position() - mReadPos;
+        final byte[] data = mBuffer.array();
+        final int base = mBuffer.arrayOffset();
+        System.arraycopy(data, base + mReadPos, data, base, count);
+        mScanPos -= mReadPos;
+        mReadPos = 0;
+        mBuffer.clear();
+        mBuffer.position(count);
+    }
+
+    private void grow(int capacity) {
+        ByteBuffer buffer = ByteBuffer.allocate(capacity);
+        mBuffer.flip();
+        mBuffer.position(mReadPos);
+        buffer.put(mBuffer);
+        mScanPos -= mReadPos;
+        mReadPos = 0;
+        mBuffer = buffer;
+    }
+
+    private static int lineLength(byte[] data, int base, int start, int eol) {
+        int len = eol - start;
+        if (len > 0 && data[base + eol - 1] == CR) len--;
+        return len;
+    }
+
+    private static int parseLength(byte[] data, int start, int end) throws ProtocolException {
+        // Integer.MAX_VALUE has 10 digits, longer values would overflow into a negative or wrong length
+        if (end - start > 10) throw new ProtocolException(MSG_INVALID_VALUE + ": " + HEADER_CONTENT_LENGTH);
+        long result = 0;
+        for (int pos = start; pos < end; pos++) {
+            int digit = data[pos] - '0';
+            if (digit < 0 || digit > 9) return -1;
+            result = result * 10 + digit;
+        }
+        if (result > Integer.MAX_VALUE) throw new ProtocolException(MSG_INVALID_VALUE + ": " + HEADER_CONTENT_LENGTH);
+        return start == end ? -1 : (int) result;
+    }
+
+    private static String match(byte[][] table, String[] names, byte[] data, int offset, int len) {
+        for (int i = 0; i < table.length; i++) {
+            final byte[] candidate = table[i];
+            if (candidate.length != len) continue;
+            int pos = 0;
+            while (pos < len && candidate[pos] == data[offset + pos]) pos++;
+            if (pos == len) return names[i];
+        }
+        return null;
+    }
+
+    private static byte[][] toBytes(String[] values) {
+        byte[][] result = new byte[values.length][];
+        for (int i = 0; i < values.length; i++)
+            result[i] = values[i].getBytes(UTF_8);
+        return result;
+    }
+}
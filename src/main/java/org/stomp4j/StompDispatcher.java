@@ -0,0 +1,190 @@
+package org.stomp4j;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * StompDispatcher Class
+ *
+ * <p>Runs {@link StompListener} callbacks off the transport's reader, see
+ * {@link StompConnection#setDispatchExecutor(Executor)}.
+ *
+ * <a name="label_lanes"><h3>Lanes</h3></a>
+ * Every subscription id gets its own lane: a lock-free queue of {@code MESSAGE} frames, drained by at most
+ * one task at a time. So messages of one subscription are handled one by one in arrival order, while
+ * different subscriptions run in parallel on the executor. A lane hands its thread back to the executor
+ * after {@link #BATCH} frames, so a busy subscription cannot starve the others.
+ *
+ * <a name="label_backpressure"><h3>Backpressure</h3></a>
+ * A subscription with a prefetch bounds its lane: once that many frames are queued, the lane is full and the
+ * transport stops reading. Reading resumes when every full lane has drained to half its prefetch. So memory
+ * is capped at about the prefetch per subscription, and the broker is slowed down by TCP flow control.
+ *
+ * @author Rory Slegtenhorst <rory.slegtenhorst@gmail.com>
+ */
+class StompDispatcher implements Stomp {
+
+    static final int BATCH = 64;
+
+    private final StompConnection mConnection;
+    private final Executor mExecutor;
+    private final Map<String, Lane> mLanes = new ConcurrentHashMap<String, Lane>();
+    private final AtomicInteger mFullLanes = new AtomicInteger(0);
+
+    StompDispatcher(StompConnection connection, Executor executor) {
+        mConnection = connection;
+        mExecutor = executor;
+    }
+
+    /**
+     * Create a pool of daemon threads for dispatching.
+     * @param threads number of threads, 0 for virtual threads when the runtime has them
+     * @return ExecutorService
+     */
+    static ExecutorService newExecutor(int threads) {
+        if (threads <= 0) {
+            try {
+                Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) method.invoke(null);
+            } catch (Exception e) {
+                // Not available before Java 21, fall back to platform threads
+            }
+        }
+        final ThreadFactory factory = new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "StompDispatcher-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        if (threads <= 0) return Executors.newCachedThreadPool(factory);
+        return Executors.newFixedThreadPool(threads, factory);
+    }
+
+    /**
+     * Queue a {@code MESSAGE} frame on the lane of its subscription.
+     * @param route
+     * @param frame
+     */
+    void dispatch(StompRoutes.Route route, StompFrame frame) {
+        Lane lane = mLanes.get(route.mSubscription);
+        if (lane == null) {
+            final Lane created = new Lane(route);
+            lane = mLanes.putIfAbsent(route.mSubscription, created);
+            if (lane == null) lane = created;
+        }
+        lane.enqueue(frame);
+    }
+
+    /**
+     * Forget the lane of a subscription. Frames already queued are still handled.
+     * @param subscription
+     */
+    void remove(String subscription) {
+        mLanes.remove(subscription);
+    }
+
+    /**
+     * Drop the frames still queued on every lane, when the connection is closed. The server redelivers them
+     * on the next connection, so they are not handled nor acknowledged: streamed bodies are closed and pooled
+     * frames recycled. Reads of the closed transport are not resumed.
+     */
+    void clear() {
+        for (Lane lane : mLanes.values()) lane.clear();
+        mFullLanes.set(0);
+    }
+
+    private class Lane implements Runnable {
+        private final StompRoutes.Route mRoute;
+        private final Queue<StompFrame> mQueue = new ConcurrentLinkedQueue<StompFrame>();
+        private final AtomicBoolean mScheduled = new AtomicBoolean(false);
+        private final AtomicInteger mSize = new AtomicInteger(0);
+        private final AtomicBoolean mFull = new AtomicBoolean(false);
+        private final int mLimit;
+
+        Lane(StompRoutes.Route route) {
+            mRoute = route;
+            mLimit = route.mPrefetch;
+        }
+
+        void enqueue(StompFrame frame) {
+            mQueue.add(frame);
+            if (mLimit > 0 && mSize.incrementAndGet() >= mLimit && mFull.compareAndSet(false, true)) {
+                if (mFullLanes.getAndIncrement() == 0) mConnection.suspendReads();
+                // The lane may have drained before the flag was set
+                drained();
+            }
+            if (!mScheduled.get() && mScheduled.compareAndSet(false, true))
+                schedule();
+        }
+
+        /**
+         * Clear the full flag once the lane is at or below its low watermark, resuming reads for the last full lane.
+         */
+        private void drained() {
+            if (mSize.get() <= (mLimit >> 1) && mFull.compareAndSet(true, false)) {
+                if (mFullLanes.decrementAndGet() == 0) mConnection.resumeReads();
+            }
+        }
+
+        void clear() {
+            for (StompFrame frame = mQueue.poll(); frame != null; frame = mQueue.poll()) {
+                try {
+                    if (frame.getStream() != null) frame.getStream().close();
+                } finally {
+                    frame.recycle();
+                }
+                if (mLimit > 0) mSize.decrementAndGet();
+            }
+            mFull.set(false);
+        }
+
+        private void schedule() {
+            try {
+                mExecutor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // Executor was shut down, keep the messages flowing on the caller's thread
+                run();
+            }
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < BATCH; i++) {
+                // Taken before the poll: a frame of a closed connection is never acknowledged on the next one
+                final int session = mConnection.getSession();
+                final StompFrame frame = mQueue.poll();
+                if (frame == null) break;
+                try {
+                    mConnection.handleMessage(mRoute, frame, session);
+                } catch (IOException e) {
+                    // A failed ACK or NACK write is reported by the transport
+                } catch (RuntimeException e) {
+                    if (DEBUG) e.printStackTrace();
+                }
+                if (mLimit > 0) {
+                    mSize.decrementAndGet();
+                    if (mFull.get()) drained();
+                }
+            }
+            mScheduled.set(false);
+            // A frame may have been added after the last poll, but before the flag was cleared
+            if (!mQueue.isEmpty() && mScheduled.compareAndSet(false, true))
+                schedule();
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package org.stomp4j;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * StompEncoder Class
+ *
+ * <p>Byte oriented {@link StompFrame} encoder. Frames are written into a reusable heap {@link ByteBuffer}
+ * that is handed to the transport in one piece, so a frame costs one buffer fill and one write.
+ *
+ * <a name="label_constants"><h3>Constants</h3></a>
+ * The byte forms of all commands and well-known header names in {@link Stomp} are prepared once.
+ * Header values are written character by character when they are plain ASCII (the common case),
+ * and only go through the UTF-8 encoder when they are not. Payloads are copied in bulk.
+ *
+ * <a name="label_large"><h3>Large payloads</h3></a>
+ * {@link #write(StompFrame, OutputStream)} does not copy payloads larger than {@link #LARGE_PAYLOAD} into
+ * the buffer. Instead the head of the frame is flushed, and the payload is written directly from its array.
+ * The buffer is shrunk back to its initial capacity after an oversized frame was flushed. Streamed bodies (see
+ * {@link StompBody}) are written the same way, from their source. Transports that write bodies themselves use
+ * {@link #encodeStreamed(StompFrame)} and {@link #encodeTail()}.
+ *
+ * <a name="label_metrics"><h3>Metrics</h3></a>
+ * The size of the last encoded frame is kept for {@link StompIO.Listener#onWriteFrame}. Once
+ * {@link #setTimed(boolean)} is on, so is the time it took to encode, not counting stream writes.
+ *
+ * <p>This class is not thread-safe; callers serialize access (see {@link StompConnection}).
+ *
+ * @author Rory Slegtenhorst <rory.slegtenhorst@gmail.com>
+ */
+class StompEncoder implements Stomp {
+
+    static final int DEFAULT_CAPACITY = 8192;
+    static final int LARGE_PAYLOAD = 65536;
+
+    private static final Charset UTF_8 = Charset.forName(VALUE_CHARSET);
+
+    private static final byte LF = '\n';
+    private static final byte COLON = ':';
+    private static final byte NUL = 0;
+
+    private static final String[] HEADERS = new String[] {
+        HEADER_ACCEPT_VERSION, HEADER_HOST, HEADER_USERNAME, HEADER_PASSWORD, HEADER_ID,
+        HEADER_DESTINATION, HEADER_SUBSCRIPTION, HEADER_ACK, HEADER_MESSAGE_ID, HEADER_CONTENT_TYPE,
+        HEADER_CONTENT_LENGTH, HEADER_TRANSACTION, HEADER_RECEIPT, HEADER_RECEIPT_REQUEST, HEADER_CHARSET, HEADER_HEARTBEAT,
+        HEADER_PERSISTENT, HEADER_SESSION, HEADER_SERVER, HEADER_VERSION, HEADER_MESSAGE
+    };
+
+    private static final Map<String, byte[]> COMMAND_BYTES = new HashMap<String, byte[]>();
+    private static final Map<String, byte[]> HEADER_BYTES = new HashMap<String, byte[]>();
+
+    static {
+        for (String command : COMMANDS_CLIENT)
+            COMMAND_BYTES.put(command, (command + "\n").getBytes(UTF_8));
+        for (String command : COMMANDS_SERVER)
+            COMMAND_BYTES.put(command, (command + "\n").getBytes(UTF_8));
+        COMMAND_BYTES.put(HEARTBEAT, new byte[] {LF});
+        for (String header : HEADERS)
+            HEADER_BYTES.put(header, (header + ":").getBytes(UTF_8));
+    }
+
+    private final int mCapacity;
+    private ByteBuffer mBuffer;
+
+    private boolean mTimed = false;
+    private int mFrameBytes = 0;
+    private long mFrameNanos = 0;
+
+    public StompEncoder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public StompEncoder(int capacity) {
+        mCapacity = capacity;
+        mBuffer = ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Returns if the command can be encoded.
+     * @param command
+     */
+    static boolean isValidCommand(String command) {
+        return command != null && COMMAND_BYTES.containsKey(command);
+    }
+
+    /**
+     * Measure the time spent encoding each frame, see {@link #frameNanos()}.
+     * @param timed
+     */
+    void setTimed(boolean timed) {
+        mTimed = timed;
+    }
+
+    /**
+     * Returns the size in bytes of the last encoded frame.
+     */
+    int frameBytes() {
+        return mFrameBytes;
+    }
+
+    /**
+     * Returns the time in nanoseconds it took to encode the last frame, or 0 when not timed.
+     */
+    long frameNanos() {
+        return mFrameNanos;
+    }
+
+    /**
+     * Returns the internal buffer, positioned for writing. Everything between zero and the position
+     * is encoded data that has not been flushed yet.
+     * @return ByteBuffer
+     */
+    ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Returns the number of encoded bytes that have not been flushed yet.
+     */
+    int size() {
+        return mBuffer.position();
+    }
+
+    /**
+     * Discard all encoded data.
+     */
+    void clear() {
+        if (mBuffer.capacity() > mCapacity) mBuffer = ByteBuffer.allocate(mCapacity);
+        else mBuffer.clear();
+    }
+
+    /**
+     * Append a complete frame, including its payload, to the buffer. The body of a {@link ByteBuffer} body is
+     * copied in; other streamed bodies are written by the transport, see {@link #encodeStreamed(StompFrame)}.
+     * @param frame
+     * @throws ProtocolException for invalid frame commands
+     */
+    void encode(StompFrame frame) throws ProtocolException {
+        final long start = mTimed ? System.nanoTime() : 0;
+        final int position = mBuffer.position();
+        if (encodeHead(frame)) {
+            byte[] payload = frame.getPayload();
+            final ByteBuffer buffer = frame.getBody() != null ? frame.getBody().getBuffer() : null;
+            if (payload != null) put(payload, 0, frame.getPayloadLength());
+            else if (buffer != null) put(buffer);
+            encodeTail();
+        }
+        mFrameBytes = mBuffer.position() - position;
+        if (mTimed) mFrameNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Append the command and headers of a frame with a streamed body, and account for the whole frame in
+     * {@link #frameBytes()}. The caller flushes them, writes the body, and then appends {@link #encodeTail()}.
+     * @param frame
+     * @throws ProtocolException for invalid frame commands
+     */
+    void encodeStreamed(StompFrame frame) throws ProtocolException {
+        final long start = mTimed ? System.nanoTime() : 0;
+        final int position = mBuffer.position();
+        encodeHead(frame);
+        mFrameBytes = mBuffer.position() - position + frame.getBody().length() + 2;
+        if (mTimed) mFrameNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Encode a frame and write it, together with anything encoded before, to the output stream.
+     * Large payloads and streamed bodies bypass the buffer.
+     * @param frame
+     * @param output
+     * @throws IOException
+     */
+    void write(StompFrame frame, OutputStream output) throws IOException {
+        long start = mTimed ? System.nanoTime() : 0;
+        final int position = mBuffer.position();
+        int bytes = 0;
+        if (encodeHead(frame)) {
+            final StompBody body = frame.getBody();
+            byte[] payload = frame.getPayload();
+            if (body != null) {
+                bytes = mBuffer.position() - position + body.length();
+                if (mTimed) start -= System.nanoTime(); // Pause the clock for the writes
+                flush(output);
+                body.writeTo(output);
+                if (mTimed) start += System.nanoTime();
+            } else if (payload != null && frame.getPayloadLength() > LARGE_PAYLOAD) {
+                bytes = mBuffer.position() - position + frame.getPayloadLength();
+                if (mTimed) start -= System.nanoTime(); // Pause the clock for the writes
+                flush(output);
+                output.write(payload, 0, frame.getPayloadLength());
+                if (mTimed) start += System.nanoTime();
+            } else if (payload != null) {
+                put(payload, 0, frame.getPayloadLength());
+            }
+            encodeTail();
+        }
+        mFrameBytes = bytes == 0 ? mBuffer.position() - position : bytes + mBuffer.position();
+        if (mTimed) mFrameNanos = System.nanoTime() - start;
+        flush(output);
+    }
+
+    /**
+     * Write all encoded data to the output stream with a single write, and reset the buffer.
+     * @param output
+     * @throws IOException
+     */
+    void flush(OutputStream output) throws IOException {
+        try {
+            if (mBuffer.position() > 0)
+                output.write(mBuffer.array(), mBuffer.arrayOffset(), mBuffer.position());
+            output.flush();
+        } finally {
+            clear();
+        }
+    }
+
+    /**
+     * Encode the command and headers, returns {@code false} when the frame has no body (heart-beats).
+     */
+    private boolean encodeHead(StompFrame frame) throws ProtocolException {
+        final String command = frame.getCommand();
+        final byte[] bytes = command == null ? null : COMMAND_BYTES.get(command);
+        if (bytes == null) throw new ProtocolException(MSG_INVALID_COMMAND);
+        put(bytes, 0, bytes.length);
+        if (HEARTBEAT.equals(command)) return false;
+
+        final StompHeaders headers = frame.headers();
+        for (int i = 0; i < headers.size(); i++) {
+            final byte[] name = HEADER_BYTES.get(headers.name(i));
+            if (name != null) {
+                put(name, 0, name.length);
+            } else {
+                putString(headers.name(i));
+                put(COLON);
+            }
+            putString(headers.value(i));
+            put(LF);
+        }
+        put(LF);
+        return true;
+    }
+
+    /**
+     * Append the end of a frame, the NULL octet and a line feed.
+     */
+    void encodeTail() {
+        ensure(2);
+        mBuffer.put(NUL);
+        mBuffer.put(LF);
+    }
+
+    private void putString(String value) {
+        if (value == null) return;
+        final int len = value.length();
+        ensure(len);
+        final byte[] data = mBuffer.array();
+        int pos = mBuffer.arrayOffset() + mBuffer.position();
+        for (int i = 0; i < len; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                // Not ASCII, let the charset encoder handle the whole value
+                byte[] bytes = value.getBytes(UTF_8);
+                put(bytes, 0, bytes.length);
+                return;
+            }
+            data[pos + i] = (byte) c;
+        }
+        mBuffer.position(mBuffer.position() + len);
+    }
+
+    private void put(byte value) {
+        ensure(1);
+        mBuffer.put(value);
+    }
+
+    private void put(byte[] value, int offset, int len) {
+        ensure(len);
+        mBuffer.put(value, offset, len);
+    }
+
+    private void put(ByteBuffer value) {
+        ensure(value.remaining());
+        mBuffer.put(value);
+    }
+
+    private void ensure(int count) {
+        if (mBuffer.remaining() >= count) return;
+        int capacity = mBuffer.capacity() << 1;
+        while (capacity - mBuffer.position() < count) capacity <<= 1;
+        ByteBuffer buffer = ByteBuffer.allocate(capacity);
+        mBuffer.flip();
+        buffer.put(mBuffer);
+        mBuffer = buffer;
+    }
+}
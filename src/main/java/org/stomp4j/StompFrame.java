@@ -1,11 +1,9 @@
 package org.stomp4j;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.ProtocolException;
-import java.util.LinkedHashMap;
+import java.nio.ByteBuffer;
 import java.util.Map;
 
 /**
@@ -17,40 +15,161 @@ import java.util.Map;
  * of the Stomp communication protocol.
  * 
  * <a name="label_spec"><h3>Stomp Specification 1.1</h3></a>
- * The {@code readFrame} method provides a minimal effort implementation to access frames
- * from an {@link InputStream} using {@link BufferedReader#readLine()}. Validation is performed
- * on reading commands. Headers are parsed using {@link String#split(String regex)}, require a
- * colon, and allows colons in header values (as ActiveMQ actually does with it's session-id header).
+ * The {@code readFrame} method reads frames from an {@link InputStream} using a {@link StompDecoder}
+ * that is kept for the lifetime of the stream. Validation is performed on reading commands. Headers
+ * require a colon, and allow colons in header values (as ActiveMQ actually does with it's session-id header).
  * 
  * <p>The {@code writeFrame} method throws a {@link ProtocolException} for invalid frame commands.
  * The remainder of the frame is not validated for illegal content (headers and payload) and is
- * simply written to the {@link OutputStream} using a {@link BufferedWriter} as-is.
+ * simply encoded as-is by a {@link StompEncoder}, and written to the {@link OutputStream} in one go.
+ * 
+ * <p>Headers are kept in a {@link StompHeaders}, and are read with {@link #getHeader(String)} without copying.
+ * 
+ * <p>Large bodies need not be in the payload array: an outgoing frame can carry a {@link StompBody} that the
+ * transport streams after the head, and a received frame a {@link StompBodyStream} that the reader is still
+ * feeding. The payload of such frames is {@code null}.
+ * 
+ * <p>Frames taken from a {@link StompPool} are reused: their payload array can be longer than the payload, see
+ * {@link #getPayloadLength()}, and they must not be touched after {@link #recycle()}. A pool with direct
+ * payloads (see {@link StompConnection#setDirectPayloads(boolean)}) fills in {@link #getPayloadBuffer()}
+ * instead of the payload array.
  * 
  * @author Rory Slegtenhorst <rory.slegtenhorst@gmail.com>
  */
 class StompFrame implements Stomp {
 
-    private final String mCommand;
-    private final Map<String, String> mHeaders;
-    private final byte[] mPayload;
+    private String mCommand;
+    private final StompHeaders mHeaders;
+    private byte[] mPayload;
+    private ByteBuffer mBuffer; // Direct payload of a pooled frame
+    private int mLength;
+    private final StompBody mBody;
+    private StompBodyStream mStream;
+    private final StompPool mPool;
+    private Runnable mFlushed; // Run by the StompWriter once the frame was flushed
 
     public StompFrame(String command) {
-        this(command, null);
+        this(command, (byte[]) null);
     }
 
     public StompFrame(String command, byte[] payload) {
-        this(command, payload, new LinkedHashMap<String, String>());
+        this(command, payload, new StompHeaders());
     }
 
-    public StompFrame(String command, byte[] payload, Map<String, String> headers) {
+    StompFrame(String command, byte[] payload, StompHeaders headers) {
         mCommand = command;
         mPayload = payload;
+        mLength = payload == null ? 0 : payload.length;
         mHeaders = headers;
+        mBody = null;
+        mStream = null;
+        mPool = null;
+    }
+
+    /**
+     * Create an empty frame that belongs to the pool.
+     * @param pool
+     */
+    StompFrame(StompPool pool) {
+        mHeaders = new StompHeaders();
+        mBody = null;
+        mPool = pool;
+    }
+
+    /**
+     * Create an outgoing frame with a streamed body.
+     * @param command
+     * @param body
+     */
+    StompFrame(String command, StompBody body) {
+        mCommand = command;
+        mPayload = null;
+        mHeaders = new StompHeaders();
+        mBody = body;
+        mStream = null;
+        mPool = null;
+    }
+
+    /**
+     * Create a received frame with a streamed body.
+     * @param command
+     * @param headers
+     * @param stream
+     */
+    StompFrame(String command, StompHeaders headers, StompBodyStream stream) {
+        mCommand = command;
+        mPayload = null;
+        mHeaders = headers;
+        mBody = null;
+        mStream = stream;
+        mPool = null;
+    }
+
+    /**
+     * Fill in a pooled frame, its headers are filled in by the decoder.
+     * @param command
+     * @param payload array from the pool, or {@code null} for a direct payload or a streamed body
+     * @param buffer direct buffer from the pool, positioned at zero and limited to the length, or {@code null}
+     * @param length bytes of the payload in use
+     * @param stream streamed body, or {@code null}
+     * @return this frame
+     */
+    StompFrame reset(String command, byte[] payload, ByteBuffer buffer, int length, StompBodyStream stream) {
+        mCommand = command;
+        mPayload = payload;
+        mBuffer = buffer;
+        mLength = length;
+        mStream = stream;
+        return this;
+    }
+
+    /**
+     * Returns the pool this frame belongs to, or {@code null}.
+     */
+    StompPool getPool() {
+        return mPool;
+    }
+
+    /**
+     * Give a pooled frame back to its pool, does nothing for other frames.
+     */
+    void recycle() {
+        if (mPool != null) mPool.recycle(this);
+    }
+
+    /**
+     * Returns the payload and lets go of it, used by the {@link StompPool}.
+     */
+    byte[] detachPayload() {
+        final byte[] payload = mPayload;
+        mPayload = null;
+        return payload;
+    }
+
+    /**
+     * Returns the direct payload and lets go of it, used by the {@link StompPool}.
+     */
+    ByteBuffer detachBuffer() {
+        final ByteBuffer buffer = mBuffer;
+        mBuffer = null;
+        return buffer;
+    }
+
+    /**
+     * Forget everything but the header arrays, used by the {@link StompPool}.
+     */
+    void clear() {
+        mCommand = null;
+        mPayload = null;
+        mBuffer = null;
+        mLength = 0;
+        mStream = null;
+        mFlushed = null;
+        mHeaders.clear();
     }
 
     public void addHeader(String name, String value) {
-    	if (!mHeaders.containsKey(name))
-    		mHeaders.put(name, value);
+    	mHeaders.putIfAbsent(name, value);
     }
 
     public String getCommand() {
@@ -58,25 +177,85 @@ class StompFrame implements Stomp {
     }
 
     public String getContentType() {
-        return mHeaders.containsKey(HEADER_CONTENT_TYPE) ? mHeaders.get(HEADER_CONTENT_TYPE) : null;
+        return mHeaders.get(HEADER_CONTENT_TYPE);
+    }
+
+    /**
+     * Returns a single header value without copying the headers, or {@code null}.
+     * @param name
+     */
+    String getHeader(String name) {
+        return mHeaders.get(name);
     }
 
     public byte[] getPayload() {
         return mPayload;
     }
 
+    /**
+     * Returns the number of payload bytes, which can be less than the length of a pooled payload array.
+     */
+    int getPayloadLength() {
+        return mLength;
+    }
+
+    /**
+     * Returns the direct payload of a received frame, or {@code null}. Used by {@link StompMessage}.
+     */
+    ByteBuffer getPayloadBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Returns the streamed body of an outgoing frame, or {@code null}.
+     */
+    StompBody getBody() {
+        return mBody;
+    }
+
+    /**
+     * Have the {@link StompWriter} run {@code task} once the frame was flushed. It is not run when the frame
+     * is dropped.
+     * @param task
+     */
+    void setFlushed(Runnable task) {
+        mFlushed = task;
+    }
+
+    Runnable getFlushed() {
+        return mFlushed;
+    }
+
+    /**
+     * Returns the streamed body of a received frame, or {@code null}.
+     */
+    StompBodyStream getStream() {
+        return mStream;
+    }
+
+    /**
+     * Returns a read-only view of the headers.
+     */
     public Map<String, String> getHeaders() {
-        Map<String, String> headers = new LinkedHashMap<String, String>();
-        headers.putAll(mHeaders);
-        return headers;
+        return mHeaders.asMap();
+    }
+
+    /**
+     * Returns the headers without copying them. Used by {@link StompEncoder}.
+     */
+    StompHeaders headers() {
+        return mHeaders;
     }
 
     @Override
     public String toString() {
         String result = "StompFrame command: " + mCommand + ", ";
-        for (Map.Entry<String, String> header : mHeaders.entrySet())
-            result += header.getKey() + ":" + header.getValue() + ", ";
-        result += "length: " + (mPayload == null ? -1 : mPayload.length);
+        for (int i = 0; i < mHeaders.size(); i++)
+            result += mHeaders.name(i) + ":" + mHeaders.value(i) + ", ";
+        if (mBody != null) result += "length: " + mBody.length() + " (streamed)";
+        else if (mStream != null) result += "length: " + mStream.length() + " (streamed)";
+        else if (mBuffer != null) result += "length: " + mLength + " (direct)";
+        else result += "length: " + (mPayload == null ? -1 : mLength);
         return result;
     }
 
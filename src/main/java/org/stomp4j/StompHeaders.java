@@ -0,0 +1,193 @@
+package org.stomp4j;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * StompHeaders Class
+ *
+ * <p>Compact header store for {@link StompFrame} and {@link StompMessage}.
+ *
+ * <a name="label_layout"><h3>Layout</h3></a>
+ * Names and values are kept in two parallel arrays, in insertion order. A frame rarely has more than a
+ * handful of headers, so {@link #get(String)} is a linear scan that compares references first: names
+ * produced by the {@link StompDecoder} and the constants in {@link Stomp} are the same instances, so most
+ * lookups never call {@link String#equals(Object)}. Encoding walks the arrays by index, without entry
+ * objects.
+ *
+ * <a name="label_view"><h3>Map view</h3></a>
+ * {@link #asMap()} returns a read-only {@link Map} backed by the arrays, for the public API. It is created
+ * once, and never copies.
+ *
+ * <p>This class is not thread-safe. Headers are filled in by one thread before the frame or message is
+ * handed to others.
+ *
+ * @author Rory Slegtenhorst <rory.slegtenhorst@gmail.com>
+ */
+final class StompHeaders {
+
+    static final int DEFAULT_CAPACITY = 8;
+
+    private String[] mNames;
+    private String[] mValues;
+    private int mSize = 0;
+    private Map<String, String> mView = null;
+
+    StompHeaders() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    StompHeaders(int capacity) {
+        mNames = new String[Math.max(1, capacity)];
+        mValues = new String[mNames.length];
+    }
+
+    /**
+     * Returns the number of headers.
+     */
+    int size() {
+        return mSize;
+    }
+
+    String name(int index) {
+        return mNames[index];
+    }
+
+    String value(int index) {
+        return mValues[index];
+    }
+
+    /**
+     * Returns the value of the header, or {@code null}.
+     * @param name
+     */
+    String get(String name) {
+        final int index = indexOf(name);
+        return index == -1 ? null : mValues[index];
+    }
+
+    boolean contains(String name) {
+        return indexOf(name) != -1;
+    }
+
+    /**
+     * Set a header. An existing header keeps its position, and gets the new value.
+     * @param name
+     * @param value
+     */
+    void put(String name, String value) {
+        final int index = indexOf(name);
+        if (index == -1) add(name, value);
+        else mValues[index] = value;
+    }
+
+    /**
+     * Add a header, unless a header with that name exists.
+     * @param name
+     * @param value
+     */
+    void putIfAbsent(String name, String value) {
+        if (indexOf(name) == -1) add(name, value);
+    }
+
+    /**
+     * Remove all headers, keeping the arrays (and the map view) for reuse by a {@link StompPool}.
+     */
+    void clear() {
+        Arrays.fill(mNames, 0, mSize, null);
+        Arrays.fill(mValues, 0, mSize, null);
+        mSize = 0;
+    }
+
+    /**
+     * Returns a read-only {@link Map} view of the headers.
+     */
+    Map<String, String> asMap() {
+        Map<String, String> view = mView;
+        if (view == null) {
+            view = new View();
+            mView = view;
+        }
+        return view;
+    }
+
+    private void add(String name, String value) {
+        if (mSize == mNames.length) {
+            mNames = Arrays.copyOf(mNames, mSize << 1);
+            mValues = Arrays.copyOf(mValues, mSize << 1);
+        }
+        mNames[mSize] = name;
+        mValues[mSize] = value;
+        mSize++;
+    }
+
+    private int indexOf(String name) {
+        final String[] names = mNames;
+        for (int i = 0; i < mSize; i++) {
+            if (names[i] == name) return i;
+        }
+        if (name == null) return -1;
+        for (int i = 0; i < mSize; i++) {
+            if (name.equals(names[i])) return i;
+        }
+        return -1;
+    }
+
+    private class View extends AbstractMap<String, String> {
+        private final Set<Map.Entry<String, String>> mEntries = new AbstractSet<Map.Entry<String, String>>() {
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                return new Iterator<Map.Entry<String, String>>() {
+                    private int mIndex = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return mIndex < mSize;
+                    }
+
+                    @Override
+                    public Map.Entry<String, String> next() {
+                        if (mIndex >= mSize) throw new NoSuchElementException();
+                        final int index = mIndex++;
+                        return new AbstractMap.SimpleImmutableEntry<String, String>(mNames[index], mValues[index]);
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return mSize;
+            }
+        };
+
+        @Override
+        public Set<Map.Entry<String, String>> entrySet() {
+            return mEntries;
+        }
+
+        @Override
+        public String get(Object key) {
+            return key instanceof String ? StompHeaders.this.get((String) key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof String && contains((String) key);
+        }
+
+        @Override
+        public int size() {
+            return mSize;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package org.stomp4j;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * StompHeartBeat Class
+ *
+ * <p>Heart-beat state of a single {@link StompConnection}, driven by the shared {@link StompTimer}.
+ *
+ * <a name="label_negotiation"><h3>Negotiation</h3></a>
+ * The client sends {@code heart-beat:cx,cy} in {@code CONNECT}, the server answers {@code heart-beat:sx,sy}
+ * in {@code CONNECTED}. Outgoing heart-beats are sent every {@code max(cx,sy)} milliseconds, unless either
+ * is 0. Incoming heart-beats are expected every {@code max(sx,cy)} milliseconds, unless either is 0.
+ *
+ * <a name="label_idle"><h3>Idle detection</h3></a>
+ * Reads and writes only store a timestamp. One timer task per direction checks the timestamp when the
+ * period could have elapsed, and re-arms itself for the earliest moment it could elapse next. So a
+ * heart-beat is only sent when nothing else was written for a full period, and a busy connection never
+ * cancels or reschedules anything. When nothing at all was received for {@link #TOLERANCE} incoming
+ * periods, the connection is closed and reported with a {@link SocketTimeoutException}. Not while the
+ * connection stopped reading itself, for inbound backpressure or until a streamed body was consumed.
+ *
+ * @author Rory Slegtenhorst <rory.slegtenhorst@gmail.com>
+ */
+class StompHeartBeat implements Stomp {
+
+    static final int TOLERANCE = 2;
+
+    private final StompConnection mConnection;
+    private final long mSendPeriod;
+    private final long mRecvTimeout;
+
+    private volatile long mLastRead = System.nanoTime();
+    private volatile long mLastWrite = System.nanoTime();
+    private volatile boolean mStopped = false;
+
+    private final Runnable mSendCheck = new Runnable() {
+        @Override
+        public void run() {
+            checkSend();
+        }
+    };
+
+    private final Runnable mRecvCheck = new Runnable() {
+        @Override
+        public void run() {
+            checkRecv();
+        }
+    };
+
+    private final Runnable mSender = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                mConnection.sendHeartBeat();
+            } catch (IOException e) {
+                // The transport reports write failures itself
+            }
+        }
+    };
+
+    /**
+     * @param connection
+     * @param sendPeriod negotiated outgoing period in milliseconds, 0 for none
+     * @param recvPeriod negotiated incoming period in milliseconds, 0 for none
+     */
+    StompHeartBeat(StompConnection connection, long sendPeriod, long recvPeriod) {
+        mConnection = connection;
+        mSendPeriod = TimeUnit.MILLISECONDS.toNanos(sendPeriod);
+        mRecvTimeout = TimeUnit.MILLISECONDS.toNanos(recvPeriod) * TOLERANCE;
+    }
+
+    /**
+     * Negotiate the heart-beat periods from both {@code heart-beat} header values.
+     * @param connection
+     * @param client value sent in {@code CONNECT}
+     * @param server value received in {@code CONNECTED}, may be {@code null}
+     * @return StompHeartBeat, or {@code null} when neither side wants heart-beats
+     */
+    static StompHeartBeat negotiate(StompConnection connection, String client, String server) {
+        final long[] cx = parse(client);
+        final long[] sx = parse(server);
+        final long send = (cx[0] == 0 || sx[1] == 0) ? 0 : Math.max(cx[0], sx[1]);
+        final long recv = (sx[0] == 0 || cx[1] == 0) ? 0 : Math.max(sx[0], cx[1]);
+        if (send == 0 && recv == 0) return null;
+        return new StompHeartBeat(connection, send, recv);
+    }
+
+    private static long[] parse(String value) {
+        final long[] result = new long[2];
+        if (value == null) return result;
+        final int pos = value.indexOf(',');
+        if (pos == -1) return result;
+        try {
+            result[0] = Math.max(0, Long.parseLong(value.substring(0, pos).trim()));
+            result[1] = Math.max(0, Long.parseLong(value.substring(pos + 1).trim()));
+        } catch (NumberFormatException e) {
+            result[0] = result[1] = 0;
+        }
+        return result;
+    }
+
+    void start() {
+        final long now = System.nanoTime();
+        mLastRead = now;
+        mLastWrite = now;
+        if (mSendPeriod > 0) schedule(mSendCheck, mSendPeriod);
+        if (mRecvTimeout > 0) schedule(mRecvCheck, mRecvTimeout);
+    }
+
+    void stop() {
+        mStopped = true;
+    }
+
+    void onRead() {
+        mLastRead = System.nanoTime();
+    }
+
+    void onWrite() {
+        mLastWrite = System.nanoTime();
+    }
+
+    private void checkSend() {
+        if (mStopped) return;
+        final long idle = System.nanoTime() - mLastWrite;
+        if (idle >= mSendPeriod) {
+            // Written off the timer thread, a blocking socket write must not stall other connections
+            StompWriter.execute(mSender);
+            schedule(mSendCheck, mSendPeriod);
+        } else {
+            schedule(mSendCheck, mSendPeriod - idle);
+        }
+    }
+
+    private void checkRecv() {
+        if (mStopped) return;
+        if (mConnection.isReadPaused()) {
+            // Not reading, so nothing can be received; the period starts over once reading continues
+            mLastRead = System.nanoTime();
+            schedule(mRecvCheck, mRecvTimeout);
+            return;
+        }
+        final long idle = System.nanoTime() - mLastRead;
+        if (idle >= mRecvTimeout) {
+            mStopped = true;
+            mConnection.onHeartBeatTimeout(new SocketTimeoutException(MSG_HEARTBEAT_TIMEOUT));
+        } else {
+            schedule(mRecvCheck, mRecvTimeout - idle);
+        }
+    }
+
+    private static void schedule(Runnable task, long nanos) {
+        StompTimer.getInstance().schedule(task, nanos, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,73 @@
+package org.stomp4j;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * StompHistogram Class
+ *
+ * <p>Low overhead histogram of non-negative values (latencies in nanoseconds), for {@link StompMetrics}.
+ *
+ * <a name="label_buckets"><h3>Buckets</h3></a>
+ * Values are counted in power-of-two buckets: bucket {@code i} holds the values of {@code i} significant
+ * bits, i.e. {@code [2^(i-1), 2^i)}. Recording is one leading-zero count and two atomic increments, without
+ * locks or allocation. Percentiles are reported as the upper bound of their bucket, so they are accurate
+ * to a factor of two, which is enough to tell microseconds from milliseconds.
+ *
+ * @author Rory Slegtenhorst <rory.slegtenhorst@gmail.com>
+ */
+final class StompHistogram {
+
+    static final int BUCKETS = 64;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mSum = new AtomicLong(0);
+
+    void record(long value) {
+        if (value < 0) value = 0;
+        mBuckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+        mSum.addAndGet(value);
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) mBuckets.set(i, 0);
+        mSum.set(0);
+    }
+
+    /**
+     * Returns count, mean, p50, p90, p99 and max, in that order.
+     */
+    Map<String, Long> snapshot() {
+        final long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = mBuckets.get(i);
+            count += counts[i];
+        }
+        final Map<String, Long> result = new LinkedHashMap<String, Long>();
+        result.put("count", count);
+        result.put("mean", count == 0 ? 0 : mSum.get() / count);
+        result.put("p50", percentile(counts, count, 0.50));
+        result.put("p90", percentile(counts, count, 0.90));
+        result.put("p99", percentile(counts, count, 0.99));
+        result.put("max", percentile(counts, count, 1.0));
+        return result;
+    }
+
+    private static long percentile(long[] counts, long count, double fraction) {
+        if (count == 0) return 0;
+        final long rank = Math.max(1, (long) Math.ceil(count * fraction));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) return upperBound(i);
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    private static long upperBound(int bucket) {
+        return (1L << bucket) - 1; // Bucket 0 holds only 0, the last one ends at Long.MAX_VALUE
+    }
+}
@@ -0,0 +1,579 @@
+package org.stomp4j;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * StompJournal Class
+ *
+ * <p>Append-only journal for the persistent queue messages of a {@link StompBroker}. A {@code SEND} with a
+ * {@code persistent:true} header to a queue is appended before it is queued, and an entry is added once the
+ * message is acknowledged. Messages that were not acknowledged when the broker stopped are queued again (as
+ * {@code redelivered}) by the next broker opened on the same directory.
+ *
+ * <a name="label_segments"><h3>Segments</h3></a>
+ * The journal is a sequence of fixed size segment files ({@code journal-<sequence>.log}), each mapped into memory
+ * as a whole. Records are written straight into the mapping, so appending a message copies its bytes once and
+ * allocates nothing (header names and values that are not plain ASCII excepted). A record carries its length and
+ * a CRC32 of its contents; replay stops at the first record that is missing or does not match, which is where the
+ * previous run stopped writing.
+ *
+ * <a name="label_sync"><h3>Group commit</h3></a>
+ * Appending does not wait for the disk. A single syncer thread forces all segments written since its previous run,
+ * so one {@code fsync} covers everything appended by all connections in the meantime. The broker sends the
+ * {@code RECEIPT} for a persistent {@code SEND} once the message was synced, see {@link #whenSynced(long, Runnable)}.
+ * Acknowledgements are synced along with the next messages; one lost in a crash means a redelivery.
+ *
+ * <a name="label_index"><h3>Index and compaction</h3></a>
+ * Message ids are handed out under the journal's lock, so they increase within a segment. Every segment keeps a
+ * bit per id since its first message, set while the message is not acknowledged, and a count of those bits. Once
+ * the oldest segment has no unacknowledged messages left (and is not the one being written), its file is deleted.
+ * Segments are only deleted oldest first, since their acknowledgement records may refer to older segments; a
+ * message that is never acknowledged keeps the segments after it.
+ *
+ * @author Rory Slegtenhorst <rory.slegtenhorst@gmail.com>
+ */
+public class StompJournal implements Closeable, Stomp {
+
+    static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+
+    private static final Charset UTF_8 = Charset.forName(VALUE_CHARSET);
+    private static final int MAGIC = 0x53544a31; // "STJ1"
+    private static final int RECORD_HEAD = 8; // Length and CRC
+    private static final byte TYPE_ADD = 1;
+    private static final byte TYPE_ACK = 2;
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".log";
+    private static final AtomicInteger mCount = new AtomicInteger(0);
+
+    private final File mDirectory;
+    private final int mSegmentSize;
+    private final CRC32 mCrc = new CRC32(); // Guarded by this
+    private final List<Segment> mSegments = new ArrayList<Segment>(); // Oldest first, guarded by this
+    private final List<Segment> mDirty = new ArrayList<Segment>(); // Written since the last sync, guarded by this
+    private final List<Sync> mWaiting = new ArrayList<Sync>(); // Guarded by this
+    private final Map<Long, Entry> mRecovered = new LinkedHashMap<Long, Entry>(); // Until the broker took them
+    private final Thread mSyncer;
+    private Segment mCurrent = null; // Guarded by this
+    private long mAppended = 0; // Bytes appended by this instance, guarded by this
+    private volatile long mSynced = 0;
+    private long mLastId = 0;
+    private volatile boolean mClosed = false;
+
+    /**
+     * Open the journal in the directory, creating it when needed.
+     * @param directory
+     * @throws IOException
+     */
+    public StompJournal(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Open the journal in the directory, creating it when needed.
+     * @param directory
+     * @param segmentSize size of new segment files in bytes; a message larger than that gets a segment of its own
+     * @throws IOException
+     */
+    public StompJournal(File directory, int segmentSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Cannot create " + directory);
+        mDirectory = directory;
+        mSegmentSize = Math.max(4096, segmentSize);
+        recover();
+        mSyncer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sync();
+            }
+        }, "StompJournal-" + mCount.incrementAndGet());
+        mSyncer.setDaemon(true);
+        mSyncer.start();
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Returns the number of segment files in use.
+     */
+    public synchronized int getSegmentCount() {
+        return mSegments.size();
+    }
+
+    /**
+     * Sync everything appended, and close the segment files. Unacknowledged messages are recovered when the
+     * journal is opened again.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (mClosed) return;
+            mClosed = true;
+            notifyAll();
+        }
+        try {
+            mSyncer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (Segment segment : mSegments) segment.close();
+            mSegments.clear();
+            mCurrent = null;
+        }
+    }
+
+    /**
+     * Append a message, assigning it the next id.
+     * @param ids the broker's message id counter, advanced under the journal's lock
+     * @param destination
+     * @param headers
+     * @param payload
+     * @return the assigned id; see {@link #position()} for the position to sync
+     * @throws IOException
+     */
+    synchronized long add(AtomicLong ids, String destination, StompHeaders headers, byte[] payload) throws IOException {
+        if (mClosed) throw new SocketException(MSG_SOCKET_CLOSED);
+        int size = 1 + 8 + 4 + length(destination) + 4 + 4 + (payload == null ? 0 : payload.length);
+        for (int i = 0; i < headers.size(); i++)
+            size += 4 + length(headers.name(i)) + 4 + length(headers.value(i));
+        final long id = ids.incrementAndGet();
+        final Segment segment = reserve(size);
+        final MappedByteBuffer buffer = segment.mBuffer;
+        final int start = begin(buffer);
+        buffer.put(TYPE_ADD);
+        buffer.putLong(id);
+        putString(buffer, destination);
+        buffer.putInt(headers.size());
+        for (int i = 0; i < headers.size(); i++) {
+            putString(buffer, headers.name(i));
+            putString(buffer, headers.value(i));
+        }
+        if (payload == null) {
+            buffer.putInt(0);
+        } else {
+            buffer.putInt(payload.length);
+            buffer.put(payload);
+        }
+        end(buffer, start);
+        segment.added(id);
+        return id;
+    }
+
+    /**
+     * Record that the message was acknowledged, and delete segments that have nothing left to deliver.
+     * @param id
+     * @throws IOException
+     */
+    synchronized void ack(long id) throws IOException {
+        if (mClosed) return;
+        Segment owner = null;
+        for (int i = mSegments.size() - 1; i >= 0; i--) {
+            final Segment segment = mSegments.get(i);
+            if (segment.mFirstId >= 0 && segment.mFirstId <= id) {
+                owner = segment;
+                break;
+            }
+        }
+        if (owner == null || !owner.acked(id)) return; // Acknowledged before, or recovered from a deleted segment
+        final Segment segment = reserve(1 + 8);
+        final MappedByteBuffer buffer = segment.mBuffer;
+        final int start = begin(buffer);
+        buffer.put(TYPE_ACK);
+        buffer.putLong(id);
+        end(buffer, start);
+        compact();
+    }
+
+    /**
+     * Returns the position after the last record appended.
+     */
+    synchronized long position() {
+        return mAppended;
+    }
+
+    /**
+     * Run the task once everything up to the position is on disk, on the syncer thread or (when it is already)
+     * right away.
+     * @param position
+     * @param task
+     */
+    void whenSynced(long position, Runnable task) {
+        synchronized (this) {
+            if (position > mSynced && !mClosed) {
+                mWaiting.add(new Sync(position, task));
+                notifyAll();
+                return;
+            }
+        }
+        task.run();
+    }
+
+    /**
+     * Returns the messages that were not acknowledged when the journal was last closed, in order, and forgets
+     * about them. Only the first broker using the journal gets them.
+     */
+    synchronized List<Entry> recovered() {
+        final List<Entry> result = new ArrayList<Entry>(mRecovered.values());
+        mRecovered.clear();
+        return result;
+    }
+
+    /**
+     * Returns the highest message id in the journal.
+     */
+    synchronized long lastId() {
+        return mLastId;
+    }
+
+    /**
+     * Syncer loop: force the dirty segments, then run the tasks waiting for it.
+     */
+    private void sync() {
+        final List<Segment> dirty = new ArrayList<Segment>();
+        final List<Sync> done = new ArrayList<Sync>();
+        while (true) {
+            final long target;
+            final boolean closed;
+            synchronized (this) {
+                while (!mClosed && mDirty.isEmpty() && mWaiting.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // Only stopped by close()
+                    }
+                }
+                closed = mClosed;
+                target = mAppended;
+                dirty.addAll(mDirty);
+                mDirty.clear();
+            }
+            for (Segment segment : dirty) {
+                try {
+                    segment.mBuffer.force();
+                } catch (RuntimeException e) {
+                    // Unmapped by close(); what was written is still in the page cache
+                    if (DEBUG) e.printStackTrace();
+                }
+            }
+            dirty.clear();
+            synchronized (this) {
+                mSynced = target;
+                for (Iterator<Sync> iterator = mWaiting.iterator(); iterator.hasNext(); ) {
+                    final Sync sync = iterator.next();
+                    if (sync.mPosition <= target || closed) {
+                        iterator.remove();
+                        done.add(sync);
+                    }
+                }
+            }
+            for (Sync sync : done) {
+                try {
+                    sync.mTask.run();
+                } catch (RuntimeException e) {
+                    if (DEBUG) e.printStackTrace();
+                }
+            }
+            done.clear();
+            if (closed) return;
+        }
+    }
+
+    /**
+     * Returns the segment to write a record with a body of {@code size} bytes to, rolling over when needed.
+     */
+    private Segment reserve(int size) throws IOException {
+        final int needed = RECORD_HEAD + size;
+        Segment segment = mCurrent;
+        if (segment == null || segment.mBuffer.remaining() < needed + RECORD_HEAD) {
+            final long sequence = segment == null ? 0 : segment.mSequence + 1;
+            segment = Segment.create(new File(mDirectory, name(sequence)), sequence, Math.max(mSegmentSize, needed + RECORD_HEAD + 4));
+            final Segment previous = mCurrent;
+            mSegments.add(segment);
+            mCurrent = segment;
+            if (previous != null) compact();
+        }
+        if (mDirty.isEmpty() || mDirty.get(mDirty.size() - 1) != segment) {
+            if (mDirty.isEmpty() && mWaiting.isEmpty()) notifyAll();
+            mDirty.add(segment);
+        }
+        mAppended += needed;
+        return segment;
+    }
+
+    private int begin(MappedByteBuffer buffer) {
+        final int start = buffer.position();
+        buffer.position(start + RECORD_HEAD);
+        return start;
+    }
+
+    /**
+     * Fill in the length and CRC of the record started at {@code start}.
+     */
+    private void end(MappedByteBuffer buffer, int start) {
+        final int end = buffer.position();
+        final int limit = buffer.limit();
+        mCrc.reset();
+        buffer.position(start + RECORD_HEAD);
+        buffer.limit(end);
+        mCrc.update(buffer);
+        buffer.limit(limit);
+        buffer.putInt(start + 4, (int) mCrc.getValue());
+        buffer.putInt(start, end - start - RECORD_HEAD); // Last, a zero length ends the segment
+        buffer.position(end);
+    }
+
+    /**
+     * Delete the oldest segments while they have no unacknowledged messages left.
+     */
+    private void compact() {
+        while (mSegments.size() > 1 && mSegments.get(0).mLive == 0) {
+            final Segment segment = mSegments.remove(0);
+            mDirty.remove(segment);
+            segment.close();
+            if (!segment.mFile.delete() && DEBUG) System.out.println("StompJournal.compact Cannot delete " + segment.mFile);
+        }
+    }
+
+    /**
+     * Scan all segments, collecting the unacknowledged messages, and continue writing after the last valid record.
+     */
+    private void recover() throws IOException {
+        final String[] names = mDirectory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }
+        });
+        if (names == null) throw new IOException("Cannot list " + mDirectory);
+        Arrays.sort(names); // Fixed width sequence numbers
+        for (String name : names) {
+            final long sequence;
+            try {
+                sequence = Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()), 16);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            final Segment segment = Segment.open(new File(mDirectory, name), sequence);
+            if (segment == null) continue;
+            mSegments.add(segment);
+            mCurrent = segment;
+            scan(segment);
+        }
+        // Segments that were fully acknowledged right before the previous run stopped
+        compact();
+    }
+
+    private void scan(Segment segment) {
+        final MappedByteBuffer buffer = segment.mBuffer;
+        while (buffer.remaining() >= RECORD_HEAD) {
+            final int start = buffer.position();
+            final int length = buffer.getInt(start);
+            if (length <= 0 || length > buffer.remaining() - RECORD_HEAD) break;
+            mCrc.reset();
+            final int limit = buffer.limit();
+            buffer.position(start + RECORD_HEAD);
+            buffer.limit(start + RECORD_HEAD + length);
+            mCrc.update(buffer);
+            buffer.limit(limit);
+            if ((int) mCrc.getValue() != buffer.getInt(start + 4)) {
+                buffer.position(start);
+                break;
+            }
+            buffer.position(start + RECORD_HEAD);
+            final byte type = buffer.get();
+            final long id = buffer.getLong();
+            if (type == TYPE_ADD) {
+                final String destination = getString(buffer);
+                final int count = buffer.getInt();
+                final StompHeaders headers = new StompHeaders(count);
+                for (int i = 0; i < count; i++) headers.put(getString(buffer), getString(buffer));
+                final byte[] payload = new byte[buffer.getInt()];
+                buffer.get(payload);
+                mRecovered.put(id, new Entry(id, destination, headers, payload));
+                segment.added(id);
+                mLastId = Math.max(mLastId, id);
+            } else if (type == TYPE_ACK) {
+                mRecovered.remove(id);
+                mLastId = Math.max(mLastId, id); // The segment with the message may be gone
+                for (int i = mSegments.size() - 1; i >= 0; i--) {
+                    final Segment owner = mSegments.get(i);
+                    if (owner.mFirstId >= 0 && owner.mFirstId <= id) {
+                        owner.acked(id);
+                        break;
+                    }
+                }
+            }
+            buffer.position(start + RECORD_HEAD + length);
+        }
+        // Anything after the last valid record is garbage from a crash, zero its length so a later scan stops there too
+        if (buffer.remaining() >= 4) buffer.putInt(buffer.position(), 0);
+    }
+
+    private static String name(long sequence) {
+        final String hex = Long.toHexString(sequence);
+        final StringBuilder result = new StringBuilder(PREFIX.length() + 16 + SUFFIX.length()).append(PREFIX);
+        for (int i = hex.length(); i < 16; i++) result.append('0');
+        return result.append(hex).append(SUFFIX).toString();
+    }
+
+    /**
+     * Returns the UTF-8 length of the string, without encoding it.
+     */
+    private static int length(String value) {
+        final int chars = value.length();
+        int result = chars;
+        for (int i = 0; i < chars; i++) {
+            final char c = value.charAt(i);
+            if (c >= 0x80) {
+                if (c < 0x800) result += 1;
+                else if (Character.isHighSurrogate(c) && i + 1 < chars && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    result += 2;
+                    i++;
+                } else result += 2;
+            }
+        }
+        return result;
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        final int length = length(value);
+        buffer.putInt(length);
+        if (length == value.length()) {
+            for (int i = 0; i < length; i++) buffer.put((byte) value.charAt(i));
+        } else {
+            buffer.put(value.getBytes(UTF_8));
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * A recovered message.
+     */
+    static final class Entry {
+        final long mId;
+        final String mDestination;
+        final StompHeaders mHeaders;
+        final byte[] mPayload;
+
+        Entry(long id, String destination, StompHeaders headers, byte[] payload) {
+            mId = id;
+            mDestination = destination;
+            mHeaders = headers;
+            mPayload = payload;
+        }
+    }
+
+    private static final class Sync {
+        private final long mPosition;
+        private final Runnable mTask;
+
+        Sync(long position, Runnable task) {
+            mPosition = position;
+            mTask = task;
+        }
+    }
+
+    /**
+     * A segment file, mapped as a whole, and the index of its messages.
+     */
+    private static final class Segment {
+        private final File mFile;
+        private final long mSequence;
+        private final RandomAccessFile mRandomAccessFile;
+        private final MappedByteBuffer mBuffer;
+        private long mFirstId = -1;
+        private final BitSet mUnacked = new BitSet(); // Bit (id - first id)
+        private int mLive = 0;
+
+        private Segment(File file, long sequence, RandomAccessFile raf, MappedByteBuffer buffer) {
+            mFile = file;
+            mSequence = sequence;
+            mRandomAccessFile = raf;
+            mBuffer = buffer;
+        }
+
+        static Segment create(File file, long sequence, int size) throws IOException {
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(size);
+                final MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                buffer.putInt(MAGIC);
+                return new Segment(file, sequence, raf, buffer);
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Map an existing segment, or returns {@code null} when it is not one.
+         */
+        static Segment open(File file, long sequence) throws IOException {
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                final long size = raf.length();
+                if (size >= 4 && size <= Integer.MAX_VALUE) {
+                    final MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                    if (buffer.getInt() == MAGIC) return new Segment(file, sequence, raf, buffer);
+                }
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+            raf.close();
+            return null;
+        }
+
+        void added(long id) {
+            if (mFirstId < 0) mFirstId = id;
+            mUnacked.set((int) (id - mFirstId));
+            mLive++;
+        }
+
+        /**
+         * Returns {@code false} when the message was acknowledged before.
+         */
+        boolean acked(long id) {
+            final long index = id - mFirstId;
+            if (index >= Integer.MAX_VALUE || !mUnacked.get((int) index)) return false;
+            mUnacked.clear((int) index);
+            mLive--;
+            return true;
+        }
+
+        void close() {
+            // The mapping itself goes away with the buffer, Java has no way to unmap it earlier
+            try {
+                mRandomAccessFile.close();
+            } catch (IOException e) {
+                if (DEBUG) e.printStackTrace();
+            }
+        }
+    }
+}
@@ -1,27 +1,71 @@
 package org.stomp4j;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
-import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
  * StompMessage Class
  * 
  * <p>API wrapper for {@link StompFrame}.
  * 
+ * <p>Received messages are created once per frame and shared by all listeners of the subscription. The
+ * text body is only decoded on the first {@link #getBody()} call, and {@link #getHeaders()} returns a
+ * read-only view. Charsets named in the content type are looked up once, and cached. As the instance is
+ * shared, listeners should not add headers to a received message.
+ * 
+ * <a name="label_streaming"><h3>Streaming</h3></a>
+ * Large bodies can be sent from an {@link InputStream} or a {@link FileChannel} without loading them, and
+ * received as an {@link InputStream} that is fed while the body comes off the socket (see
+ * {@link StompConnection#setStreamThreshold(int)}). Streamed messages have no payload array, use
+ * {@link #getPayloadStream()}. A received stream is only valid until {@code onMessage} returns.
+ * 
+ * <a name="label_pooling"><h3>Pooling</h3></a>
+ * With {@link StompConnection#setMessagePooling(boolean)}, received messages and their payload arrays are
+ * borrowed from a pool, and go back to it once {@code onMessage} returned. A listener that keeps the message (or
+ * its payload) calls {@link #retain()}, and {@link #release()} once it is done with it. The payload array of a
+ * pooled message is usually longer than its content, see {@link #getContentLength()}. Without pooling, messages
+ * are not reused, and release only matters for streamed bodies.
+ * 
+ * <a name="label_direct"><h3>Direct payloads</h3></a>
+ * A payload can live off-heap, in a direct {@link ByteBuffer}: messages to send are created from one with
+ * {@link #StompMessage(String, ByteBuffer, String)}, and a connection with
+ * {@link StompConnection#setDirectPayloads(boolean)} receives into pooled direct buffers. Either way,
+ * {@link #getPayloadBuffer()} returns a read-only view without copying, and sending such a message writes the
+ * buffer itself, so forwarding a received message to another connection does not touch the heap. The
+ * buffer of a received message goes back to the pool on {@link #release()}, like the array of a pooled one.
+ * {@link #getPayload()} and {@link #getBody()} still work, at the cost of a copy.
+ * 
  * @author Rory Slegtenhorst <rory.slegtenhorst@gmail.com>
  */
 public class StompMessage implements Stomp {
 
     private static final String CHARSET_MATCH = ";" + HEADER_CHARSET + "=";
 
-    private final String mDestination;
-    private final String mBody;
-    private final String mContentType;
-    private final Charset mCharset;
-    private final Integer mContentLength;
-    private final byte[] mPayload;
-    private final Map<String, String> mHeaders = new LinkedHashMap<String, String>();
+    private static final int MAX_CHARSETS = 32;
+    private static final Map<String, Charset> mCharsets = new ConcurrentHashMap<String, Charset>();
+
+    private static final AtomicIntegerFieldUpdater<StompMessage> REFERENCES =
+            AtomicIntegerFieldUpdater.newUpdater(StompMessage.class, "mReferences");
+
+    private String mDestination;
+    private volatile String mBody;
+    private String mContentType;
+    private volatile Charset mCharset;
+    private int mContentLength;
+    private byte[] mPayload;
+    private ByteBuffer mBuffer; // Direct payload, positioned at zero and limited to the content length
+    private final StompBody mSource; // Streamed body of a message to send
+    private StompBodyStream mStream; // Streamed body of a received message
+    private final StompHeaders mHeaders = new StompHeaders();
+    private final StompPool mPool;
+    private volatile int mReferences = 1;
+    private volatile boolean mSettled = false; // Acknowledged by a StompTransaction
 
     private Boolean mPersistent = false;
     private Boolean mIsBinary = true;
@@ -35,6 +79,9 @@ public class StompMessage implements Stomp {
             mContentType = type;
             mCharset = Charset.defaultCharset();
             mPayload = message.getBytes(mCharset);
+            mSource = null;
+            mStream = null;
+            mPool = null;
             mContentLength = mPayload.length;
             mIsBinary = false;
             if (DEBUG) System.out.println("StompMessage.constructor payload: " + mContentLength + " (" + mBody.length() + ")");
@@ -49,27 +96,156 @@ public class StompMessage implements Stomp {
             if (DEBUG) System.out.println("StompMessage.constructor destination: " + destination + ", type: " + type + ", payload: " + (payload == null ? "null" : "byte[" + payload.length + "]") + ", text: " + text);
             mDestination = destination;
             mContentType = type;
-            mCharset = text ? guessCharset(mContentType) : Charset.defaultCharset();
+            mCharset = text ? null : Charset.defaultCharset(); // Text charset is guessed on first use
             mPayload = payload;
+            mSource = null;
+            mStream = null;
+            mPool = null;
             mContentLength = mPayload.length;
             mIsBinary = !text;
-            mBody = mIsBinary ? null : new String(mPayload, mCharset);
-            if (DEBUG) if (mBody != null) System.out.println("StompMessage.constructor body: " + mBody.length());
+            mBody = null; // Decoded on first use
         } finally {
             if (DEBUG) System.out.println("StompMessage.constructor -");
         }
     }
 
-    private Charset guessCharset(String type) {
+    /**
+     * Create a binary message with a body that is read from the stream while it is sent. The stream is read
+     * once, up to {@code length} bytes, and is not closed.
+     * @param destination
+     * @param body
+     * @param length number of bytes to send
+     * @param type content type, may be {@code null}
+     */
+    public StompMessage(String destination, InputStream body, int length, String type) {
+        this(destination, new StompBody(body, length), type);
+    }
+
+    /**
+     * Create a binary message with a body that is sent from a file, see {@link FileChannel#transferTo}. The
+     * position of the channel is not changed, and it is not closed.
+     * @param destination
+     * @param body
+     * @param position position in the file of the first byte to send
+     * @param length number of bytes to send
+     * @param type content type, may be {@code null}
+     */
+    public StompMessage(String destination, FileChannel body, long position, int length, String type) {
+        this(destination, new StompBody(body, position, length), type);
+    }
+
+    /**
+     * Create a binary message with the remaining bytes of the buffer as its payload. The buffer is not copied,
+     * and its position is not changed; it should not be modified until the message was sent. A direct buffer
+     * is written to the socket as it is.
+     * @param destination
+     * @param payload
+     * @param type content type, may be {@code null}
+     */
+    public StompMessage(String destination, ByteBuffer payload, String type) {
+        mDestination = destination;
+        mContentType = type;
+        mCharset = Charset.defaultCharset();
+        mPayload = null;
+        mBuffer = payload.slice();
+        mSource = null;
+        mStream = null;
+        mPool = null;
+        mContentLength = mBuffer.remaining();
+        mIsBinary = true;
+        mBody = null;
+    }
+
+    private StompMessage(String destination, StompBody source, String type) {
+        mDestination = destination;
+        mContentType = type;
+        mCharset = Charset.defaultCharset();
+        mPayload = null;
+        mSource = source;
+        mStream = null;
+        mPool = null;
+        mContentLength = source.length();
+        mIsBinary = true;
+        mBody = null;
+    }
+
+    /**
+     * Create a received message, the frame's headers are copied once.
+     * @param frame
+     */
+    StompMessage(StompFrame frame) {
+        this((StompPool) null);
+        reset(frame);
+    }
+
+    /**
+     * Create an empty message that belongs to the pool, see {@link #reset(StompFrame)}.
+     * @param pool
+     */
+    StompMessage(StompPool pool) {
+        mSource = null;
+        mPool = pool;
+    }
+
+    /**
+     * Fill in a received message from the frame, the frame's headers are copied once.
+     * @param frame
+     */
+    void reset(StompFrame frame) {
+        mDestination = ERROR.equals(frame.getCommand()) ? null : frame.getHeader(HEADER_DESTINATION);
+        mContentType = frame.getContentType();
+        mIsBinary = mContentType == null;
+        mCharset = mIsBinary ? Charset.defaultCharset() : null; // Text charset is guessed on first use
+        mPayload = frame.getPayload();
+        mBuffer = frame.getPayloadBuffer();
+        mStream = frame.getStream();
+        mContentLength = mStream != null ? mStream.length() : frame.getPayloadLength();
+        mBody = null; // Decoded on first use
+        final StompHeaders headers = frame.headers();
+        for (int i = 0; i < headers.size(); i++)
+            addHeader(headers.name(i), headers.value(i));
+    }
+
+    /**
+     * Forget the received message, returns its payload. Used by the {@link StompPool}.
+     */
+    byte[] clear() {
+        final byte[] payload = mPayload;
+        mDestination = null;
+        mContentType = null;
+        mCharset = null;
+        mContentLength = 0;
+        mPayload = null;
+        mBuffer = null;
+        mStream = null;
+        mBody = null;
+        mPersistent = false;
+        mIsBinary = true;
+        mHeaders.clear();
+        mReferences = 1;
+        mSettled = false;
+        return payload;
+    }
+
+    private static Charset guessCharset(String type) {
         String charset = VALUE_CHARSET;
-        if (type != null && type.contains(CHARSET_MATCH)) {
-            charset = type.substring(type.indexOf(CHARSET_MATCH) + CHARSET_MATCH.length());
+        if (type != null) {
+            final int pos = type.indexOf(CHARSET_MATCH);
+            if (pos != -1) charset = type.substring(pos + CHARSET_MATCH.length());
         }
 
-        if (Charset.isSupported(charset)) {
-            return Charset.forName(charset);
+        Charset result = mCharsets.get(charset);
+        if (result == null) {
+            try {
+                if (!Charset.isSupported(charset)) return Charset.defaultCharset();
+                result = Charset.forName(charset);
+            } catch (IllegalArgumentException e) {
+                return Charset.defaultCharset(); // Illegal charset name
+            }
+            // Only supported names are cached, and only a few, peers choose the names
+            if (mCharsets.size() < MAX_CHARSETS) mCharsets.put(charset, result);
         }
-        return Charset.defaultCharset();
+        return result;
     }
 
     public void addHeader(String name, String value) {
@@ -88,7 +264,16 @@ public class StompMessage implements Stomp {
     }
 
     public String getBody() {
-        return mBody;
+        String body = mBody;
+        if (body == null && !mIsBinary && mPayload != null) {
+            // Racing threads decode the same value, any of them may win
+            body = new String(mPayload, 0, mContentLength, getCharset());
+            mBody = body;
+        } else if (body == null && !mIsBinary && mBuffer != null) {
+            body = getCharset().decode(mBuffer.duplicate()).toString();
+            mBody = body;
+        }
+        return body;
     }
 
     public String getContentType() {
@@ -98,21 +283,139 @@ public class StompMessage implements Stomp {
     //TODO:Make this string?
     public Charset getCharset() {
         //mCharset.name();
-        return mCharset;
+        Charset charset = mCharset;
+        if (charset == null) {
+            charset = guessCharset(mContentType);
+            mCharset = charset;
+        }
+        return charset;
     }
 
     public Integer getContentLength() {
         return mContentLength;
     }
 
+    /**
+     * Returns a read-only view of the headers, use {@link #addHeader(String, String)} to add headers.
+     */
     public Map<String, String> getHeaders() {
-        Map<String, String> headers = new LinkedHashMap<String, String>();
-        headers.putAll(mHeaders);
-        return headers;
+        return mHeaders.asMap();
+    }
+
+    /**
+     * Returns the headers without copying them. Used by {@link StompIO#messageToFrame(StompMessage)}.
+     */
+    StompHeaders headers() {
+        return mHeaders;
     }
 
+    /**
+     * Returns the payload, or {@code null} for a streamed message. The array of a pooled message is usually
+     * longer than the content, only the first {@link #getContentLength()} bytes are the payload. A direct
+     * payload is copied into a new array on every call, see {@link #getPayloadBuffer()}.
+     */
     public byte[] getPayload() {
-        return mPayload;
+        if (mBuffer == null) return mPayload;
+        final byte[] payload = new byte[mContentLength];
+        mBuffer.duplicate().get(payload);
+        return payload;
+    }
+
+    /**
+     * Returns a read-only view of the payload, from position zero up to the content length, or {@code null}
+     * for a streamed message. The view is not a copy: for a pooled or direct message, it is only valid until
+     * the message is released.
+     */
+    public ByteBuffer getPayloadBuffer() {
+        if (mBuffer != null) return mBuffer.asReadOnlyBuffer();
+        return mPayload == null ? null : ByteBuffer.wrap(mPayload, 0, mContentLength).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns if the payload is held in a direct buffer.
+     */
+    public Boolean isDirect() {
+        return mBuffer != null && mBuffer.isDirect();
+    }
+
+    /**
+     * Returns the body as a stream. For a received streamed message, this is the stream that is fed while the
+     * body arrives; it can be read once, and only until {@code onMessage} returns. For a streamed message to
+     * send, it is {@code null}.
+     */
+    public InputStream getPayloadStream() {
+        if (mStream != null) return mStream;
+        if (mBuffer != null) return new BufferInputStream(mBuffer.duplicate());
+        return mPayload == null ? null : new ByteArrayInputStream(mPayload, 0, mContentLength);
+    }
+
+    /**
+     * Returns if the body is streamed instead of held in the payload.
+     */
+    public Boolean isStreamed() {
+        return mSource != null || mStream != null;
+    }
+
+    /**
+     * Returns the streamed body of a message to send, or {@code null}. Used by {@link StompIO#messageToFrame(StompMessage)}.
+     */
+    StompBody getSource() {
+        return mSource;
+    }
+
+    /**
+     * Returns the buffer holding the payload, or {@code null}. Used by {@link StompIO#messageToFrame(StompMessage)}.
+     */
+    ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Returns the buffer of a received message and lets go of it, used by the {@link StompPool}.
+     */
+    ByteBuffer detachBuffer() {
+        final ByteBuffer buffer = mBuffer;
+        mBuffer = null;
+        return buffer;
+    }
+
+    /**
+     * Mark the message as acknowledged by a {@link StompTransaction}, the connection does not acknowledge it
+     * once the listeners returned.
+     */
+    void settle() {
+        mSettled = true;
+    }
+
+    boolean isSettled() {
+        return mSettled;
+    }
+
+    /**
+     * Returns if the message was borrowed from a connection's pool.
+     */
+    boolean isPooled() {
+        return mPool != null;
+    }
+
+    /**
+     * Keep a received message after {@code onMessage} returned. Every call needs a matching {@link #release()}.
+     * @return this message
+     */
+    public StompMessage retain() {
+        REFERENCES.incrementAndGet(this);
+        return this;
+    }
+
+    /**
+     * Let go of a received message. Once the last reference is released, a streamed body is closed (the
+     * connection reads on), and a pooled message goes back to its pool; neither may be used afterwards. The
+     * connection releases its own reference when {@code onMessage} returned.
+     */
+    public void release() {
+        if (REFERENCES.decrementAndGet(this) != 0) return;
+        if (mStream != null) mStream.close();
+        if (mPool != null) mPool.recycle(this);
     }
 
     public Boolean isBinary() {
@@ -135,13 +438,52 @@ public class StompMessage implements Stomp {
     @Override
     public String toString() {
 
-        String result = "StompMessage type: " + mContentType + ", length: " + mContentLength + ", charset: " + mCharset.displayName() + "\n";
-        for (Map.Entry<String, String> header : mHeaders.entrySet())
-            result += header.getKey() + ":" + header.getValue() + "\n";
+        String result = "StompMessage type: " + mContentType + ", length: " + mContentLength + ", charset: " + getCharset().displayName() + "\n";
+        for (int i = 0; i < mHeaders.size(); i++)
+            result += mHeaders.name(i) + ":" + mHeaders.value(i) + "\n";
 
-        if (mIsBinary) result += "payload: binary data " + mPayload.length;
-        else result += "payload: " + mBody;
+        if (mPayload == null && mBuffer == null) result += "payload: streamed " + mContentLength;
+        else if (mBuffer != null && mIsBinary) result += "payload: binary data " + mContentLength + " (buffer)";
+        else if (mIsBinary) result += "payload: binary data " + mContentLength;
+        else result += "payload: " + getBody();
 
         return result;
     }
+
+    /**
+     * Stream over a view of the payload buffer.
+     */
+    private static final class BufferInputStream extends InputStream {
+        private final ByteBuffer mView;
+
+        BufferInputStream(ByteBuffer view) {
+            mView = view;
+        }
+
+        @Override
+        public int read() {
+            return mView.hasRemaining() ? mView.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int len) {
+            if (len == 0) return 0;
+            if (!mView.hasRemaining()) return -1;
+            final int count = Math.min(len, mView.remaining());
+            mView.get(buffer, offset, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            final int count = (int) Math.max(0, Math.min(n, mView.remaining()));
+            mView.position(mView.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return mView.remaining();
+        }
+    }
 }
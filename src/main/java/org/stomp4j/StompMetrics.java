@@ -0,0 +1,255 @@
+package org.stomp4j;
+
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * StompMetrics Class
+ *
+ * <p>Per-connection counters and latency histograms, fed by the connection's {@link StompIO.Listener}
+ * and exported as a {@link StompMetricsMXBean}.
+ *
+ * <a name="label_cost"><h3>Cost</h3></a>
+ * A connection without metrics has no instance of this class: its listener's frame hooks are empty, and the
+ * codec never reads the clock. With metrics, a frame costs a command lookup (a reference compare against the
+ * constants in {@link Stomp}, which the decoder and the connection use), two {@link LongAdder} increments,
+ * and a histogram update with the codec time. Counters are written by the reader and the writing threads
+ * without locks; reading them is only as consistent as {@link LongAdder#sum()}.
+ *
+ * @author Rory Slegtenhorst <rory.slegtenhorst@gmail.com>
+ */
+class StompMetrics implements StompMetricsMXBean, Stomp {
+
+    static final String DOMAIN = "org.stomp4j";
+
+    private static final String OTHER = "OTHER";
+    private static final String[] COMMANDS;
+    private static final AtomicInteger INSTANCES = new AtomicInteger(0);
+
+    static {
+        COMMANDS = new String[COMMANDS_CLIENT.length + COMMANDS_SERVER.length];
+        System.arraycopy(COMMANDS_CLIENT, 0, COMMANDS, 0, COMMANDS_CLIENT.length);
+        System.arraycopy(COMMANDS_SERVER, 0, COMMANDS, COMMANDS_CLIENT.length, COMMANDS_SERVER.length);
+    }
+
+    private final StompConnection mConnection;
+    private final String mName;
+
+    private final LongAdder[] mFramesIn = newAdders(COMMANDS.length + 1);
+    private final LongAdder[] mFramesOut = newAdders(COMMANDS.length + 1);
+    private final LongAdder[] mBytesIn = newAdders(COMMANDS.length + 1);
+    private final LongAdder[] mBytesOut = newAdders(COMMANDS.length + 1);
+    private final LongAdder mHeartBeatsIn = new LongAdder();
+    private final LongAdder mHeartBeatsOut = new LongAdder();
+
+    private final StompHistogram mDecode = new StompHistogram();
+    private final StompHistogram mEncode = new StompHistogram();
+    private final StompHistogram mListener = new StompHistogram();
+
+    private ObjectName mObjectName = null; // Guarded by this
+
+    StompMetrics(StompConnection connection) {
+        mConnection = connection;
+        final URL url = connection.getURL();
+        final String target = url == null ? "loopback" : url.getHost() + ":" + (url.getPort() == -1 ? url.getDefaultPort() : url.getPort());
+        mName = target + "-" + INSTANCES.incrementAndGet();
+    }
+
+    void onRead(StompFrame frame, int bytes, long nanos) {
+        final int index = indexOf(frame.getCommand());
+        mFramesIn[index].increment();
+        mBytesIn[index].add(bytes);
+        mDecode.record(nanos);
+    }
+
+    void onWrite(StompFrame frame, int bytes, long nanos) {
+        final String command = frame.getCommand();
+        if (HEARTBEAT.equals(command)) {
+            mHeartBeatsOut.increment();
+            return;
+        }
+        final int index = indexOf(command);
+        mFramesOut[index].increment();
+        mBytesOut[index].add(bytes);
+        mEncode.record(nanos);
+    }
+
+    void onHeartBeat() {
+        mHeartBeatsIn.increment();
+    }
+
+    void onListener(long nanos) {
+        mListener.record(nanos);
+    }
+
+    /**
+     * Register with the platform MBean server. Failures are reported, but do not fail the connection.
+     */
+    synchronized void register() {
+        if (mObjectName != null) return;
+        try {
+            final ObjectName name = new ObjectName(DOMAIN + ":type=StompConnection,name=" + ObjectName.quote(mName));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            mObjectName = name;
+        } catch (JMException e) {
+            if (DEBUG) e.printStackTrace();
+        }
+    }
+
+    synchronized void unregister() {
+        if (mObjectName == null) return;
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(mObjectName)) server.unregisterMBean(mObjectName);
+        } catch (JMException e) {
+            if (DEBUG) e.printStackTrace();
+        } finally {
+            mObjectName = null;
+        }
+    }
+
+    synchronized ObjectName getObjectName() {
+        return mObjectName;
+    }
+
+    @Override
+    public long getFramesIn() {
+        return sum(mFramesIn);
+    }
+
+    @Override
+    public long getFramesOut() {
+        return sum(mFramesOut);
+    }
+
+    @Override
+    public long getBytesIn() {
+        return sum(mBytesIn);
+    }
+
+    @Override
+    public long getBytesOut() {
+        return sum(mBytesOut);
+    }
+
+    @Override
+    public Map<String, Long> getFramesInByCommand() {
+        return byCommand(mFramesIn);
+    }
+
+    @Override
+    public Map<String, Long> getFramesOutByCommand() {
+        return byCommand(mFramesOut);
+    }
+
+    @Override
+    public Map<String, Long> getBytesInByCommand() {
+        return byCommand(mBytesIn);
+    }
+
+    @Override
+    public Map<String, Long> getBytesOutByCommand() {
+        return byCommand(mBytesOut);
+    }
+
+    @Override
+    public long getHeartBeatsIn() {
+        return mHeartBeatsIn.sum();
+    }
+
+    @Override
+    public long getHeartBeatsOut() {
+        return mHeartBeatsOut.sum();
+    }
+
+    @Override
+    public long getAcks() {
+        return mFramesOut[indexOf(ACK)].sum();
+    }
+
+    @Override
+    public long getNacks() {
+        return mFramesOut[indexOf(NACK)].sum();
+    }
+
+    @Override
+    public int getOutboundQueueDepth() {
+        return mConnection.getQueuedFrames();
+    }
+
+    @Override
+    public Map<String, Long> getDecodeLatency() {
+        return mDecode.snapshot();
+    }
+
+    @Override
+    public Map<String, Long> getEncodeLatency() {
+        return mEncode.snapshot();
+    }
+
+    @Override
+    public Map<String, Long> getListenerLatency() {
+        return mListener.snapshot();
+    }
+
+    @Override
+    public void reset() {
+        for (LongAdder[] adders : new LongAdder[][] {mFramesIn, mFramesOut, mBytesIn, mBytesOut}) {
+            for (LongAdder adder : adders) adder.reset();
+        }
+        mHeartBeatsIn.reset();
+        mHeartBeatsOut.reset();
+        mDecode.reset();
+        mEncode.reset();
+        mListener.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "StompMetrics[" + mName + "] in: " + getFramesIn() + " frames/" + getBytesIn() + " bytes, out: "
+                + getFramesOut() + " frames/" + getBytesOut() + " bytes";
+    }
+
+    /**
+     * Returns the counter slot of a command. Commands are nearly always the constants, so the reference
+     * compare hits; anything unknown ends up in the last slot.
+     */
+    private static int indexOf(String command) {
+        for (int i = 0; i < COMMANDS.length; i++) {
+            if (COMMANDS[i] == command) return i;
+        }
+        for (int i = 0; i < COMMANDS.length; i++) {
+            if (COMMANDS[i].equals(command)) return i;
+        }
+        return COMMANDS.length;
+    }
+
+    private static LongAdder[] newAdders(int count) {
+        final LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) adders[i] = new LongAdder();
+        return adders;
+    }
+
+    private static long sum(LongAdder[] adders) {
+        long sum = 0;
+        for (LongAdder adder : adders) sum += adder.sum();
+        return sum;
+    }
+
+    private static Map<String, Long> byCommand(LongAdder[] adders) {
+        final Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < adders.length; i++) {
+            final long value = adders[i].sum();
+            if (value != 0) result.put(i < COMMANDS.length ? COMMANDS[i] : OTHER, value);
+        }
+        return result;
+    }
+}
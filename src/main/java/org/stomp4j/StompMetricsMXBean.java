@@ -0,0 +1,55 @@
+package org.stomp4j;
+
+import java.util.Map;
+
+/**
+ * StompMetricsMXBean Interface
+ *
+ * <p>Counters of a single {@link StompConnection}, see {@link StompConnection#setMetricsEnabled(boolean)}.
+ * Registered with the platform MBean server as {@code org.stomp4j:type=StompConnection,name=...} while the
+ * connection is open.
+ *
+ * <a name="label_counters"><h3>Counters</h3></a>
+ * Frames and bytes are counted per command, in each direction, as they are decoded and encoded. Heart-beats
+ * are counted separately: an end-of-line received between frames counts as a heart-beat, except for the
+ * one that may directly follow a frame. Acknowledgements are the {@code ACK} and {@code NACK} frames written.
+ *
+ * <a name="label_latency"><h3>Latency</h3></a>
+ * Latencies are reported in nanoseconds as {@code count}, {@code mean}, {@code p50}, {@code p90}, {@code p99}
+ * and {@code max}; percentiles are the upper bound of a power-of-two bucket. Decode and encode time covers
+ * the codec only, not waiting for or writing to the socket. Listener time covers all listeners of a message.
+ *
+ * @author Rory Slegtenhorst <rory.slegtenhorst@gmail.com>
+ */
+public interface StompMetricsMXBean {
+
+    public long getFramesIn();
+    public long getFramesOut();
+    public long getBytesIn();
+    public long getBytesOut();
+
+    public Map<String, Long> getFramesInByCommand();
+    public Map<String, Long> getFramesOutByCommand();
+    public Map<String, Long> getBytesInByCommand();
+    public Map<String, Long> getBytesOutByCommand();
+
+    public long getHeartBeatsIn();
+    public long getHeartBeatsOut();
+
+    public long getAcks();
+    public long getNacks();
+
+    /**
+     * Returns the number of frames waiting for the writer, 0 without write coalescing.
+     */
+    public int getOutboundQueueDepth();
+
+    public Map<String, Long> getDecodeLatency();
+    public Map<String, Long> getEncodeLatency();
+    public Map<String, Long> getListenerLatency();
+
+    /**
+     * Set all counters and histograms back to zero.
+     */
+    public void reset();
+}
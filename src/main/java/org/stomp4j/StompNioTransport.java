@@ -0,0 +1,356 @@
+package org.stomp4j;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * StompNioTransport Class
+ *
+ * <p>Non-blocking {@link StompTransport} used for the {@code stomp+nio} scheme. The channel is connected in
+ * blocking mode (honoring the connect timeout), then switched to non-blocking mode and registered with a
+ * shared {@link StompReactor}, so no thread is created per connection.
+ *
+ * <a name="label_read"><h3>Reading</h3></a>
+ * The reactor reads straight into the buffer of the connection's {@link StompDecoder}, and hands every
+ * complete frame to the connection on the reactor thread. Bodies of messages with direct payloads (see
+ * {@link StompConnection#setDirectPayloads(boolean)}) are read into their direct buffer instead. While reads are suspended, frames stay in the
+ * decoder and {@code OP_READ} is switched off, so the socket's receive window fills up and the broker
+ * slows down.
+ *
+ * <a name="label_write"><h3>Writing</h3></a>
+ * Frames are encoded on the calling thread and written to the channel on flush, right away when nothing is queued.
+ * Whatever the socket does not accept is queued, and drained by the reactor once the channel becomes
+ * writable. Once more than {@link #MAX_PENDING} bytes are queued, writers wait for the reactor to catch up (like
+ * the connections of a {@link StompAcceptor}), so a slow broker holds up its writers instead of filling the
+ * heap. The reactor itself never waits: nobody else would drain the queue meanwhile.
+ *
+ * <a name="label_stream"><h3>Streaming</h3></a>
+ * A streamed body (see {@link StompBody}) is written right after its head when nothing is queued, file bodies
+ * with {@link java.nio.channels.FileChannel#transferTo} straight into the socket, and buffer bodies (see
+ * {@link StompMessage#getPayloadBuffer()}) from the buffer itself. What the socket does not take is not copied:
+ * the body itself is queued, and the reactor writes the rest from its source. The sender waits for that in
+ * {@link #awaitWritten(StompBody)}, once the connection no longer holds its write lock, so the reactor can
+ * still write acknowledgements meanwhile. The streamed body of a received frame is fed by the reactor,
+ * which switches {@code OP_READ} off while the {@link StompBodyStream} is full, and back on once it drained.
+ *
+ * @author Rory Slegtenhorst <rory.slegtenhorst@gmail.com>
+ */
+class StompNioTransport extends StompTransport implements StompReactor.Handler {
+
+    static final int MAX_PENDING = 1 << 20; // Queued bytes before writers wait
+
+    private static final int MAX_READS = 16; // Reads per readiness event, keeps the reactor fair
+
+    private final SocketAddress mSocketAddress;
+    private final StompDecoder mDecoder = new StompDecoder();
+    private final StompEncoder mEncoder = new StompEncoder();
+
+    private final Object mWriteLock = new Object();
+    private final Queue<StompBody> mPending = new ArrayDeque<StompBody>(); // Guarded by mWriteLock
+    private long mPendingBytes = 0; // Guarded by mWriteLock
+
+    private SocketChannel mChannel = null;
+    private StompReactor mReactor = null;
+    private volatile SelectionKey mKey = null;
+    private volatile boolean mOpen = false;
+    private volatile boolean mSuspended = false;
+
+    private final Runnable mResume = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                if (decode() && mKey != null && mKey.isValid())
+                    mKey.interestOps(mKey.interestOps() | SelectionKey.OP_READ);
+            } catch (IOException e) {
+                onFailure(e);
+            } catch (RuntimeException e) {
+                onFailure(new IOException(e));
+            }
+        }
+    };
+
+    private final Runnable mWakeup = new Runnable() {
+        @Override
+        public void run() {
+            final StompReactor reactor = mReactor;
+            if (reactor != null) reactor.execute(mResume);
+        }
+    };
+
+    StompNioTransport(StompConnection connection, SocketAddress address) {
+        super(connection);
+        mSocketAddress = address;
+        mDecoder.setTimed(connection.isMetered());
+        mDecoder.setStreamThreshold(connection.getStreamThreshold());
+        mDecoder.setPool(connection.getPool());
+        mEncoder.setTimed(connection.isMetered());
+    }
+
+    @Override
+    void open(int timeout) throws IOException {
+        mChannel = SocketChannel.open();
+        try {
+            mChannel.socket().connect(mSocketAddress, timeout);
+            mChannel.socket().setTcpNoDelay(true);
+            mChannel.configureBlocking(false);
+        } catch (IOException e) {
+            mChannel.close();
+            throw e;
+        }
+        mOpen = true;
+        mReactor = StompReactor.next();
+        mReactor.register(mChannel, SelectionKey.OP_READ, this);
+    }
+
+    @Override
+    boolean isOpen() {
+        return mOpen && !isClosed();
+    }
+
+    @Override
+    void close() throws IOException {
+        mOpen = false;
+        try {
+            if (mChannel != null) mChannel.close();
+        } finally {
+            final SocketException e = new SocketException(MSG_SOCKET_CLOSED);
+            wakeWriters();
+            mDecoder.abort(e);
+            closed(e);
+        }
+    }
+
+    @Override
+    void encode(StompFrame frame, StompIO.Listener listener) throws IOException {
+        try {
+            if (listener != null) listener.onWriteBegin();
+            if (listener != null && HEARTBEAT.equals(frame.getCommand())) listener.onWriteEmpty();
+            if (frame.getBody() != null) {
+                mEncoder.encodeStreamed(frame);
+                flush();
+                writeBody(frame.getBody());
+                mEncoder.encodeTail();
+            } else {
+                mEncoder.encode(frame);
+            }
+            if (listener != null) listener.onWriteFrame(frame, mEncoder.frameBytes(), mEncoder.frameNanos());
+        } finally {
+            if (listener != null) listener.onWriteEnd();
+        }
+    }
+
+    @Override
+    void flush() throws IOException {
+        if (!isOpen()) {
+            mEncoder.clear();
+            throw new SocketException(MSG_SOCKET_CLOSED);
+        }
+        try {
+            synchronized (mWriteLock) {
+                try {
+                    while (mOpen && mPendingBytes > MAX_PENDING && !mReactor.inReactor()) mWriteLock.wait();
+                    if (!mOpen) throw new SocketException(MSG_SOCKET_CLOSED);
+                    final ByteBuffer buffer = mEncoder.getBuffer();
+                    buffer.flip();
+                    if (mPending.isEmpty()) mChannel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        final ByteBuffer remainder = ByteBuffer.allocate(buffer.remaining());
+                        remainder.put(buffer);
+                        remainder.flip();
+                        enqueue(new StompBody(remainder));
+                    }
+                } finally {
+                    mEncoder.clear();
+                }
+            }
+        } catch (InterruptedException e) {
+            // The head of a streamed frame may be on the wire already
+            Thread.currentThread().interrupt();
+            abort(new InterruptedIOException());
+            throw new InterruptedIOException();
+        }
+    }
+
+    @Override
+    boolean isReactor() {
+        final StompReactor reactor = mReactor;
+        return reactor != null && reactor.inReactor();
+    }
+
+    @Override
+    void awaitWritten(StompBody body) throws IOException {
+        if (mReactor.inReactor()) return;
+        try {
+            synchronized (mWriteLock) {
+                while (mOpen && !body.isDone()) mWriteLock.wait();
+                if (!body.isDone()) throw new SocketException(MSG_SOCKET_CLOSED);
+            }
+        } catch (InterruptedException e) {
+            // The reactor would keep writing from a source that belongs to the caller again
+            Thread.currentThread().interrupt();
+            abort(new InterruptedIOException());
+            throw new InterruptedIOException();
+        }
+    }
+
+    @Override
+    boolean awaitFlushed(long millis) throws InterruptedIOException {
+        final long deadline = System.nanoTime() + millis * 1000000L;
+        synchronized (mWriteLock) {
+            if (mReactor.inReactor()) return mOpen && mPending.isEmpty(); // Only the reactor drains the queue
+            try {
+                while (mOpen && !mPending.isEmpty()) {
+                    final long nanos = deadline - System.nanoTime();
+                    if (nanos <= 0) return false;
+                    mWriteLock.wait(Math.max(1, nanos / 1000000L));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            return mOpen;
+        }
+    }
+
+    @Override
+    void suspendReads() {
+        mSuspended = true;
+    }
+
+    @Override
+    boolean isReadPaused() {
+        return mSuspended || mDecoder.isStalled();
+    }
+
+    @Override
+    void resumeReads() {
+        mSuspended = false;
+        final StompReactor reactor = mReactor;
+        if (reactor != null) reactor.execute(mResume);
+    }
+
+    /**
+     * Write a streamed body, after the head was flushed: what the socket takes right away, the rest is queued
+     * without copying it. Closes the transport when it fails, as the frame is incomplete by then.
+     */
+    private void writeBody(StompBody body) throws IOException {
+        try {
+            synchronized (mWriteLock) {
+                if (!mOpen) throw new SocketException(MSG_SOCKET_CLOSED);
+                if (mPending.isEmpty()) {
+                    while (!body.isDone() && body.transferTo(mChannel) > 0) continue;
+                }
+                if (!body.isDone()) enqueue(body);
+            }
+        } catch (IOException e) {
+            abort(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Queue what the socket did not take, for the reactor. Called while holding mWriteLock.
+     */
+    private void enqueue(StompBody body) {
+        mPending.add(body);
+        mPendingBytes += body.remaining();
+        if (mPending.size() == 1 && mKey != null) mReactor.interest(mKey, SelectionKey.OP_WRITE, true);
+    }
+
+    private void wakeWriters() {
+        synchronized (mWriteLock) {
+            mWriteLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void onRegistered(SelectionKey key) {
+        mKey = key;
+        synchronized (mWriteLock) {
+            // Anything queued before the registration completed
+            if (!mPending.isEmpty()) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    @Override
+    public void onReady(SelectionKey key) throws IOException {
+        if (key.isWritable()) drain(key);
+        if (key.isValid() && key.isReadable()) read();
+    }
+
+    @Override
+    public void onFailure(IOException e) {
+        mOpen = false;
+        try {
+            mChannel.close();
+        } catch (IOException ignore) {
+        }
+        wakeWriters();
+        mDecoder.abort(e);
+        closed(e);
+    }
+
+    private void drain(SelectionKey key) throws IOException {
+        synchronized (mWriteLock) {
+            long written = 0;
+            try {
+                for (StompBody body = mPending.peek(); body != null; body = mPending.peek()) {
+                    while (!body.isDone()) {
+                        final long count = body.transferTo(mChannel);
+                        if (count == 0) break;
+                        written += count;
+                    }
+                    if (!body.isDone()) return;
+                    mPending.poll();
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            } finally {
+                mPendingBytes -= written;
+                // Writers may wait for room, or for their body to be written
+                if (written > 0) mWriteLock.notifyAll();
+            }
+        }
+    }
+
+    private void read() throws IOException {
+        for (int reads = 0; reads < MAX_READS; reads++) {
+            if (!decode()) {
+                mKey.interestOps(mKey.interestOps() & ~SelectionKey.OP_READ);
+                return;
+            }
+            int count = mChannel.read(mDecoder.getReadBuffer());
+            if (count < 0) throw new SocketException(MSG_SOCKET_CLOSED);
+            if (count == 0) break;
+        }
+        if (!decode()) mKey.interestOps(mKey.interestOps() & ~SelectionKey.OP_READ);
+    }
+
+    /**
+     * Hand all buffered frames to the connection, returns {@code false} when reads got suspended.
+     */
+    private boolean decode() throws IOException {
+        final StompIO.Listener listener = mConnection.getFrameListener();
+        while (!mSuspended) {
+            final StompFrame frame = mDecoder.decode(listener);
+            if (frame == null) {
+                // A full streamed body stops reading until its listener caught up
+                if (mDecoder.park(mWakeup)) return false;
+                if (mDecoder.canStream()) continue;
+                return true;
+            }
+            if (listener != null) {
+                listener.onReadBegin();
+                listener.onReadEnd(mDecoder.isFinalized());
+            }
+            mConnection.onFrame(frame);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,188 @@
+package org.stomp4j;
+
+import java.nio.ByteBuffer;
+
+/**
+ * StompPool Class
+ *
+ * <p>Per-connection pool of received {@link StompFrame}s, {@link StompMessage}s and payload arrays, see
+ * {@link StompConnection#setMessagePooling(boolean)}.
+ *
+ * <a name="label_classes"><h3>Size classes</h3></a>
+ * Payload arrays come in powers of two, from {@value #MIN_PAYLOAD} bytes up to {@value #MAX_PAYLOAD} bytes. A
+ * payload gets the smallest class it fits in, so the array is usually longer than the content; the content
+ * length says how much of it is used. Larger payloads get an array of their own, that is not pooled.
+ *
+ * <a name="label_direct"><h3>Direct payloads</h3></a>
+ * A direct pool (see {@link StompConnection#setDirectPayloads(boolean)}) hands out direct {@link ByteBuffer}s
+ * instead of arrays, in the same size classes, up to {@value #MAX_DIRECT} bytes. Direct memory is costly to
+ * allocate and only freed by the garbage collector, so these buffers are what makes releasing a message
+ * deterministic: its buffer goes back to the pool and is reused, and the pool is bounded. Larger payloads get a
+ * direct buffer of their own, that is left to the garbage collector; {@link StompConnection#setStreamThreshold(int)}
+ * keeps them off the heap and out of direct memory altogether.
+ *
+ * <a name="label_lifecycle"><h3>Lifecycle</h3></a>
+ * The decoder takes a frame and its payload array from the pool for every {@code MESSAGE}. The message handed
+ * to the listeners takes over the payload, and the frame goes back once the message was acknowledged. The
+ * message and its payload go back when its last reference is released, see {@link StompMessage#release()}.
+ * Only {@code MESSAGE} frames are pooled; everything else is rare enough to allocate.
+ *
+ * <p>Each free list is a small stack guarded by its own lock: the reader takes, listener threads give back.
+ * The lists are bounded, objects returned to a full list are left to the garbage collector, so a burst does not
+ * pin its peak memory.
+ *
+ * @author Rory Slegtenhorst <rory.slegtenhorst@gmail.com>
+ */
+class StompPool implements Stomp {
+
+    static final int MIN_PAYLOAD = 64;
+    static final int MAX_PAYLOAD = 65536;
+    static final int MAX_DIRECT = 1 << 22;
+
+    private static final int MIN_SHIFT = 6; // log2(MIN_PAYLOAD)
+    private static final int CLASSES = 11; // MIN_PAYLOAD up to MAX_PAYLOAD
+    private static final int MAX_FREE = 256; // Frames and messages kept
+    private static final int MAX_FREE_BYTES = 1 << 20; // Bytes of payload arrays kept per class
+    private static final int DIRECT_CLASSES = 17; // MIN_PAYLOAD up to MAX_DIRECT
+    private static final int MAX_FREE_DIRECT = 1 << 23; // Bytes of direct buffers kept per class
+    private static final byte[] EMPTY = new byte[0];
+
+    private final Stack mFrames = new Stack(MAX_FREE);
+    private final Stack mMessages = new Stack(MAX_FREE);
+    private final Stack[] mPayloads = new Stack[CLASSES];
+    private final Stack[] mBuffers; // Direct payloads, or null
+    private final boolean mDirect;
+
+    StompPool(boolean direct) {
+        for (int i = 0; i < CLASSES; i++)
+            mPayloads[i] = new Stack(Math.min(MAX_FREE, MAX_FREE_BYTES >> (MIN_SHIFT + i)));
+        mDirect = direct;
+        mBuffers = direct ? new Stack[DIRECT_CLASSES] : null;
+        for (int i = 0; direct && i < DIRECT_CLASSES; i++)
+            mBuffers[i] = new Stack(Math.min(MAX_FREE, MAX_FREE_DIRECT >> (MIN_SHIFT + i)));
+    }
+
+    /**
+     * Returns if payloads are decoded into direct buffers, see {@link #buffer(int)}.
+     */
+    boolean isDirect() {
+        return mDirect;
+    }
+
+    /**
+     * Returns an empty frame.
+     */
+    StompFrame frame() {
+        final StompFrame frame = (StompFrame) mFrames.pop();
+        return frame != null ? frame : new StompFrame(this);
+    }
+
+    /**
+     * Returns an array of at least {@code length} bytes.
+     * @param length
+     */
+    byte[] payload(int length) {
+        if (length == 0) return EMPTY;
+        if (length > MAX_PAYLOAD) return new byte[length];
+        final int index = index(length);
+        final byte[] payload = (byte[]) mPayloads[index].pop();
+        return payload != null ? payload : new byte[MIN_PAYLOAD << index];
+    }
+
+    /**
+     * Returns a direct buffer of at least {@code length} bytes, positioned at zero and limited to {@code length}.
+     * Only for direct pools.
+     * @param length
+     */
+    ByteBuffer buffer(int length) {
+        final ByteBuffer buffer;
+        if (length > MAX_DIRECT) {
+            buffer = ByteBuffer.allocateDirect(length);
+        } else {
+            final int index = index(length);
+            final ByteBuffer pooled = (ByteBuffer) mBuffers[index].pop();
+            buffer = pooled != null ? pooled : ByteBuffer.allocateDirect(MIN_PAYLOAD << index);
+        }
+        buffer.clear();
+        buffer.limit(length);
+        return buffer;
+    }
+
+    /**
+     * Returns a message for the frame, holding one reference. The message takes over the frame's payload.
+     * @param frame
+     */
+    StompMessage message(StompFrame frame) {
+        StompMessage message = (StompMessage) mMessages.pop();
+        if (message == null) message = new StompMessage(this);
+        message.reset(frame);
+        frame.detachPayload();
+        frame.detachBuffer();
+        return message;
+    }
+
+    /**
+     * Give a frame back, with its payload unless a message took it over.
+     * @param frame
+     */
+    void recycle(StompFrame frame) {
+        final byte[] payload = frame.detachPayload();
+        if (payload != null) recycle(payload);
+        final ByteBuffer buffer = frame.detachBuffer();
+        if (buffer != null) recycle(buffer);
+        frame.clear();
+        mFrames.push(frame);
+    }
+
+    /**
+     * Give a message back, with its payload. Called once its last reference was released.
+     * @param message
+     */
+    void recycle(StompMessage message) {
+        final ByteBuffer buffer = message.detachBuffer();
+        if (buffer != null) recycle(buffer);
+        final byte[] payload = message.clear();
+        if (payload != null) recycle(payload);
+        mMessages.push(message);
+    }
+
+    private void recycle(ByteBuffer buffer) {
+        final int capacity = buffer.capacity();
+        if (!mDirect || capacity < MIN_PAYLOAD || capacity > MAX_DIRECT || (capacity & (capacity - 1)) != 0) return;
+        mBuffers[index(capacity)].push(buffer);
+    }
+
+    private void recycle(byte[] payload) {
+        final int length = payload.length;
+        if (length < MIN_PAYLOAD || length > MAX_PAYLOAD || (length & (length - 1)) != 0) return;
+        mPayloads[index(length)].push(payload);
+    }
+
+    private static int index(int length) {
+        final int shift = 32 - Integer.numberOfLeadingZeros(length - 1);
+        return Math.max(0, shift - MIN_SHIFT);
+    }
+
+    /**
+     * Bounded free list.
+     */
+    private static final class Stack {
+        private final Object[] mItems;
+        private int mCount = 0;
+
+        Stack(int capacity) {
+            mItems = new Object[Math.max(1, capacity)];
+        }
+
+        synchronized Object pop() {
+            if (mCount == 0) return null;
+            final Object item = mItems[--mCount];
+            mItems[mCount] = null;
+            return item;
+        }
+
+        synchronized void push(Object item) {
+            if (mCount < mItems.length) mItems[mCount++] = item;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package org.stomp4j;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * StompPublisher Class
+ *
+ * <p>Demand-driven view of a destination, see {@link StompConnection#publisher(String, int)}. It follows the
+ * Reactive Streams rules, without depending on {@code java.util.concurrent.Flow}; on Java 9 and later,
+ * {@code StompFlow} adapts it to a {@code Flow.Publisher}.
+ *
+ * <a name="label_demand"><h3>Demand</h3></a>
+ * Subscribing sends a {@code SUBSCRIBE} with {@code ack:client} and the publisher's prefetch. A message is
+ * only acknowledged after it was handed to {@link Subscriber#onNext(StompMessage)}, so the broker never has
+ * more than the prefetch of undelivered messages in flight. Messages that arrive without outstanding demand
+ * wait in a buffer that is bounded by that same prefetch; a slow subscriber throttles the broker instead of
+ * growing the client's heap. A broker that ignores the prefetch and overruns the buffer by a full prefetch
+ * fails the subscription.
+ *
+ * <a name="label_signals"><h3>Signals</h3></a>
+ * {@code onNext} is called by one thread at a time: the connection's reader (or dispatch lane) when there
+ * is demand, or the thread calling {@link Subscription#request(long)} for buffered messages. A disconnect
+ * completes the subscriber, other connection failures are passed to {@link Subscriber#onError(Throwable)}.
+ * {@link Subscription#cancel()} un-subscribes; unacknowledged messages are redelivered by the broker.
+ * Each message is released once {@code onNext} returned: with message pooling (see
+ * {@link StompConnection#setMessagePooling(boolean)}) a subscriber that keeps it calls {@link StompMessage#retain()}.
+ *
+ * @author Rory Slegtenhorst <rory.slegtenhorst@gmail.com>
+ */
+public final class StompPublisher implements Stomp {
+
+    static final int DEFAULT_PREFETCH = 64;
+
+    private final StompConnection mConnection;
+    private final String mDestination;
+    private final int mPrefetch;
+
+    StompPublisher(StompConnection connection, String destination, int prefetch) {
+        mConnection = connection;
+        mDestination = destination;
+        mPrefetch = prefetch > 0 ? prefetch : DEFAULT_PREFETCH;
+    }
+
+    public String getDestination() {
+        return mDestination;
+    }
+
+    public int getPrefetch() {
+        return mPrefetch;
+    }
+
+    /**
+     * Subscribe to the destination. Only one subscriber per destination and connection is allowed, others
+     * are failed with an {@link IllegalStateException}.
+     * @param subscriber
+     */
+    public void subscribe(Subscriber subscriber) {
+        if (subscriber == null) throw new NullPointerException();
+        final Emitter emitter = new Emitter(subscriber);
+        subscriber.onSubscribe(emitter);
+        try {
+            mConnection.subscribe(mDestination, mPrefetch, emitter);
+        } catch (IOException e) {
+            emitter.error(e);
+        } catch (IllegalStateException e) {
+            emitter.error(e);
+        }
+    }
+
+    /**
+     * StompPublisher.Subscriber Interface
+     *
+     * <p>Receives the messages of a {@link StompPublisher}, same contract as {@code Flow.Subscriber}.
+     */
+    public interface Subscriber {
+        public void onSubscribe(Subscription subscription);
+        public void onNext(StompMessage message);
+        public void onError(Throwable throwable);
+        public void onComplete();
+    }
+
+    /**
+     * StompPublisher.Subscription Interface
+     *
+     * <p>Demand signalling for a {@link Subscriber}, same contract as {@code Flow.Subscription}.
+     */
+    public interface Subscription {
+        public void request(long n);
+        public void cancel();
+    }
+
+    /**
+     * Buffers messages and demand for one subscriber, and acknowledges what was delivered.
+     */
+    final class Emitter implements Subscription {
+        private final Subscriber mSubscriber;
+        private final Queue<Pending> mBuffer = new ArrayDeque<Pending>(); // Guarded by itself
+        private final AtomicLong mDemand = new AtomicLong(0);
+        private final AtomicInteger mWip = new AtomicInteger(0);
+        private boolean mDone = false; // Only touched in drain()
+        private volatile StompRoutes.Route mRoute = null;
+        private volatile Throwable mError = null;
+        private volatile boolean mCompleted = false;
+        private volatile boolean mCancelled = false;
+
+        Emitter(Subscriber subscriber) {
+            mSubscriber = subscriber;
+        }
+
+        void attach(StompRoutes.Route route) {
+            mRoute = route;
+        }
+
+        /**
+         * Called by the connection for every message of the subscription.
+         */
+        void offer(StompMessage message, String messageId) {
+            final int size;
+            synchronized (mBuffer) {
+                mBuffer.add(new Pending(message, messageId));
+                size = mBuffer.size();
+            }
+            if (size > mPrefetch << 1) {
+                error(new ProtocolException(MSG_PREFETCH_EXCEEDED));
+                return;
+            }
+            drain();
+        }
+
+        /**
+         * Called by the connection once it is closed.
+         */
+        void closed(IOException e) {
+            // Buffered messages are not acknowledged anymore, the broker redelivers them
+            if (MSG_SOCKET_CLOSED.equals(e.getMessage())) mCompleted = true;
+            else mError = e;
+            drain();
+        }
+
+        /**
+         * Fail the subscriber, and un-subscribe when subscribed.
+         */
+        void error(Throwable e) {
+            mError = e;
+            unsubscribe();
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                error(new IllegalArgumentException("Non-positive request: " + n));
+                return;
+            }
+            long current, updated;
+            do {
+                current = mDemand.get();
+                if (current == Long.MAX_VALUE) break;
+                updated = current + n;
+                if (updated < 0) updated = Long.MAX_VALUE;
+            } while (!mDemand.compareAndSet(current, updated));
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            if (mCancelled) return;
+            mCancelled = true;
+            unsubscribe();
+            clear();
+        }
+
+        /**
+         * Drop the buffered messages, closing the streams of streamed ones so the reader continues.
+         */
+        private void clear() {
+            synchronized (mBuffer) {
+                for (Pending pending : mBuffer) pending.mMessage.release();
+                mBuffer.clear();
+            }
+        }
+
+        private void unsubscribe() {
+            final StompRoutes.Route route = mRoute;
+            if (route != null && !route.mRemoved) {
+                try {
+                    mConnection.unsubscribe(mDestination);
+                } catch (IOException e) {
+                    // Not connected anymore, nothing to un-subscribe
+                }
+            }
+        }
+
+        /**
+         * Deliver buffered messages while there is demand. Only one thread at a time gets past the counter.
+         */
+        private void drain() {
+            if (mWip.getAndIncrement() != 0) return;
+            int missed = 1;
+            while (true) {
+                if (mCancelled || mDone) {
+                    clear();
+                } else {
+                    final Throwable error = mError;
+                    if (error != null || mCompleted) {
+                        mDone = true;
+                        if (error != null) mSubscriber.onError(error);
+                        else mSubscriber.onComplete();
+                        continue;
+                    }
+                    while (mDemand.get() > 0 && !mCancelled) {
+                        final Pending pending;
+                        synchronized (mBuffer) {
+                            pending = mBuffer.poll();
+                        }
+                        if (pending == null) break;
+                        if (mDemand.get() != Long.MAX_VALUE) mDemand.decrementAndGet();
+                        try {
+                            mSubscriber.onNext(pending.mMessage);
+                        } finally {
+                            final boolean settled = pending.mMessage.isSettled(); // Acknowledged in a transaction
+                            pending.mMessage.release();
+                            if (!settled) acknowledge(pending.mMessageId);
+                        }
+                    }
+                }
+                missed = mWip.addAndGet(-missed);
+                if (missed == 0) return;
+            }
+        }
+
+        private void acknowledge(String messageId) {
+            final StompRoutes.Route route = mRoute;
+            if (route == null || route.mRemoved) return;
+            try {
+                route.mAcks.ack(messageId);
+            } catch (IOException e) {
+                // The transport reports write failures itself
+            }
+        }
+    }
+
+    private static final class Pending {
+        private final StompMessage mMessage;
+        private final String mMessageId;
+
+        Pending(StompMessage message, String messageId) {
+            mMessage = message;
+            mMessageId = messageId;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package org.stomp4j;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * StompReactor Class
+ *
+ * <p>A selector thread serving any number of non-blocking channels. A small, fixed pool of reactors is
+ * shared by all connections in the JVM, see {@link #next()}. The pool size defaults to the number of
+ * processors (at most 4), and can be set using the {@code org.stomp4j.nio.threads} system property.
+ *
+ * <p>Channel registration and interest changes are performed on the reactor thread. Other threads post
+ * them as tasks using {@link #execute(Runnable)}, which wakes up the selector.
+ *
+ * <p>A {@link StompAcceptor} runs reactors of its own, which it shuts down when it is closed. The shared
+ * reactors run for the lifetime of the JVM.
+ *
+ * @author Rory Slegtenhorst <rory.slegtenhorst@gmail.com>
+ */
+class StompReactor implements Runnable, Stomp {
+
+    private static final int THREADS = Integer.getInteger("org.stomp4j.nio.threads",
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private static final Object mInstanceLock = new Object();
+    private static StompReactor[] mInstances = null;
+    private static final AtomicInteger mNext = new AtomicInteger(0);
+
+    private final Selector mSelector;
+    private final Queue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
+    private final Thread mThread;
+    private volatile boolean mShutdown = false;
+
+    StompReactor(String name) throws IOException {
+        mSelector = Selector.open();
+        mThread = new Thread(this, name);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Returns the next reactor from the shared pool, round robin.
+     * @return StompReactor
+     * @throws IOException
+     */
+    static StompReactor next() throws IOException {
+        StompReactor[] instances = mInstances;
+        if (instances == null) {
+            synchronized (mInstanceLock) {
+                if (mInstances == null) {
+                    StompReactor[] result = new StompReactor[Math.max(1, THREADS)];
+                    for (int i = 0; i < result.length; i++)
+                        result[i] = new StompReactor("StompReactor-" + i);
+                    mInstances = result;
+                }
+                instances = mInstances;
+            }
+        }
+        return instances[(mNext.getAndIncrement() & Integer.MAX_VALUE) % instances.length];
+    }
+
+    /**
+     * Returns if the caller is running on this reactor's thread.
+     */
+    boolean inReactor() {
+        return Thread.currentThread() == mThread;
+    }
+
+    /**
+     * Run the task on the reactor thread, immediately when called from it.
+     * @param task
+     */
+    void execute(Runnable task) {
+        if (inReactor()) {
+            task.run();
+        } else {
+            mTasks.add(task);
+            mSelector.wakeup();
+        }
+    }
+
+    /**
+     * Register a channel. The handler is attached to the key, and its key is passed in using
+     * {@link Handler#onRegistered(SelectionKey)}.
+     * @param channel non-blocking channel
+     * @param ops initial interest set
+     * @param handler
+     */
+    void register(final SelectableChannel channel, final int ops, final Handler handler) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handler.onRegistered(channel.register(mSelector, ops, handler));
+                } catch (IOException e) {
+                    handler.onFailure(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Add or remove interest for the key, on the reactor thread.
+     * @param key
+     * @param ops
+     * @param enable
+     */
+    void interest(final SelectionKey key, final int ops, final boolean enable) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!key.isValid()) return;
+                if (enable) key.interestOps(key.interestOps() | ops);
+                else key.interestOps(key.interestOps() & ~ops);
+            }
+        });
+    }
+
+    /**
+     * Stop the reactor thread and close its selector. Channels still registered are not closed.
+     */
+    void shutdown() {
+        mShutdown = true;
+        mSelector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (!mShutdown) {
+            try {
+                mSelector.select();
+            } catch (IOException e) {
+                if (DEBUG) e.printStackTrace();
+                continue;
+            }
+
+            for (Runnable task = mTasks.poll(); task != null; task = mTasks.poll()) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    if (DEBUG) e.printStackTrace();
+                }
+            }
+
+            Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Handler handler = (Handler) key.attachment();
+                try {
+                    if (key.isValid()) handler.onReady(key);
+                } catch (IOException e) {
+                    handler.onFailure(e);
+                } catch (RuntimeException e) {
+                    handler.onFailure(new IOException(e));
+                }
+            }
+        }
+        try {
+            mSelector.close();
+        } catch (IOException e) {
+            if (DEBUG) e.printStackTrace();
+        }
+    }
+
+    /**
+     * Attached to every registered channel.
+     */
+    interface Handler {
+        void onRegistered(SelectionKey key);
+        void onReady(SelectionKey key) throws IOException;
+        void onFailure(IOException e);
+    }
+}
@@ -0,0 +1,141 @@
+package org.stomp4j;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * StompReceipts Class
+ *
+ * <p>Correlates {@code RECEIPT} frames with the futures returned by the asynchronous
+ * {@link StompConnection} methods.
+ *
+ * <p>Every registered future takes a slot in the in-flight window. When the window is full,
+ * {@link #register(CompletableFuture)} waits for a slot for at most the receipt timeout, or without limit when
+ * there is none. A slot is released exactly once, by whichever comes first: the matching receipt, an error,
+ * or the timeout.
+ *
+ * @author Rory Slegtenhorst <rory.slegtenhorst@gmail.com>
+ */
+class StompReceipts implements Stomp {
+
+    static final int DEFAULT_WINDOW = 1024;
+    static final int DEFAULT_TIMEOUT = 30000;
+
+    private static final String PREFIX = "receipt-";
+
+    private final Map<String, Pending> mPending = new ConcurrentHashMap<String, Pending>();
+    private final AtomicLong mLastReceiptId = new AtomicLong(0);
+    private final Semaphore mWindow;
+    private final long mTimeout;
+
+    /**
+     * @param window maximum number of unconfirmed frames
+     * @param timeout in milliseconds, timeouts are tracked by the shared {@link StompTimer}; {@code 0} for none
+     */
+    StompReceipts(int window, long timeout) {
+        mWindow = new Semaphore(Math.max(1, window));
+        mTimeout = timeout;
+    }
+
+    /**
+     * Take a slot in the window, and register the future.
+     * @param future
+     * @return the receipt id to put on the frame
+     * @throws IOException when no slot became available in time, or the caller was interrupted
+     */
+    String register(CompletableFuture<Void> future) throws IOException {
+        try {
+            if (mTimeout <= 0) mWindow.acquire(); // No timeout, wait as long as it takes
+            else if (!mWindow.tryAcquire(mTimeout, TimeUnit.MILLISECONDS))
+                throw new InterruptedIOException(MSG_RECEIPT_WINDOW);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        final String receipt = PREFIX + mLastReceiptId.incrementAndGet();
+        final Pending pending = new Pending(future);
+        mPending.put(receipt, pending);
+        if (mTimeout > 0) pending.mTimeout = StompTimer.getInstance().schedule(new Expire(this, receipt), mTimeout, TimeUnit.MILLISECONDS);
+        return receipt;
+    }
+
+    /**
+     * Returns the number of unconfirmed frames.
+     */
+    int size() {
+        return mPending.size();
+    }
+
+    /**
+     * Complete the future for this receipt id, returns {@code false} for unknown receipts.
+     * @param receipt
+     */
+    boolean complete(String receipt) {
+        final Pending pending = receipt == null ? null : release(receipt);
+        if (pending == null) return false;
+        pending.mFuture.complete(null);
+        return true;
+    }
+
+    /**
+     * Fail the future for this receipt id, returns {@code false} for unknown receipts.
+     * @param receipt
+     * @param failure
+     */
+    boolean fail(String receipt, Throwable failure) {
+        final Pending pending = receipt == null ? null : release(receipt);
+        if (pending == null) return false;
+        pending.mFuture.completeExceptionally(failure);
+        return true;
+    }
+
+    /**
+     * Fail all pending futures, e.g. when the connection is closed.
+     * @param failure
+     */
+    void failAll(Throwable failure) {
+        for (String receipt : mPending.keySet())
+            fail(receipt, failure);
+    }
+
+    private Pending release(String receipt) {
+        final Pending pending = mPending.remove(receipt);
+        if (pending != null) {
+            mWindow.release();
+            final StompTimer.Timeout timeout = pending.mTimeout;
+            if (timeout != null) timeout.cancel();
+        }
+        return pending;
+    }
+
+    private static class Pending {
+        private final CompletableFuture<Void> mFuture;
+        private volatile StompTimer.Timeout mTimeout = null;
+
+        Pending(CompletableFuture<Void> future) {
+            mFuture = future;
+        }
+    }
+
+    private static class Expire implements Runnable {
+        private final StompReceipts mReceipts;
+        private final String mReceipt;
+
+        Expire(StompReceipts receipts, String receipt) {
+            mReceipts = receipts;
+            mReceipt = receipt;
+        }
+
+        @Override
+        public void run() {
+            mReceipts.fail(mReceipt, new TimeoutException(MSG_RECEIPT_TIMEOUT + ": " + mReceipt));
+        }
+    }
+}
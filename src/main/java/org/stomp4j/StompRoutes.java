@@ -0,0 +1,251 @@
+package org.stomp4j;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * StompRoutes Class
+ *
+ * <p>Subscription routing table of a {@link StompConnection}: subscription id to destination, listeners and
+ * acknowledgement state.
+ *
+ * <a name="label_lookup"><h3>Lookup</h3></a>
+ * Routes are kept in an open-addressing table keyed by the {@code int} subscription id, with linear probing.
+ * Every {@code MESSAGE} is routed with {@link #get(String)}, which parses the {@code subscription} header
+ * digits in place and probes the table without taking a lock or boxing the id. A route's listeners are an
+ * immutable array, replaced as a whole when listeners are added or removed, so iterating it is safe while
+ * another thread changes the subscription.
+ *
+ * <a name="label_updates"><h3>Updates</h3></a>
+ * Subscribing and unsubscribing are serialized on the table. Slots are published through an
+ * {@link AtomicReferenceArray}, removed routes leave a tombstone so probe chains stay intact, and the table is
+ * rebuilt into a new array (and published through a volatile field) when it gets half full. A reader holding
+ * the previous array simply sees the routes as they were a moment earlier.
+ *
+ * @author Rory Slegtenhorst <rory.slegtenhorst@gmail.com>
+ */
+class StompRoutes implements Stomp {
+
+    static final int DEFAULT_CAPACITY = 64; // Power of two
+
+    private static final StompListener[] NO_LISTENERS = new StompListener[0];
+    private static final Route TOMBSTONE = new Route(0, null, null, 0, null, null);
+
+    private final StompConnection mConnection;
+    private final Map<String, Route> mDestinations = new HashMap<String, Route>(); // Guarded by this
+    private volatile AtomicReferenceArray<Route> mTable = new AtomicReferenceArray<Route>(DEFAULT_CAPACITY);
+    private int mUsed = 0; // Routes and tombstones, guarded by this
+    private int mLastId = 0; // Guarded by this
+
+    StompRoutes(StompConnection connection) {
+        mConnection = connection;
+    }
+
+    /**
+     * Returns the route for a {@code subscription} header value, or {@code null}. Takes no locks.
+     * @param subscription
+     */
+    Route get(String subscription) {
+        if (subscription == null) return null;
+        final int length = subscription.length();
+        if (length == 0 || length > 9) return null; // Our ids are positive ints
+        int id = 0;
+        for (int i = 0; i < length; i++) {
+            final int digit = subscription.charAt(i) - '0';
+            if (digit < 0 || digit > 9) return null;
+            id = id * 10 + digit;
+        }
+        return get(id);
+    }
+
+    /**
+     * Returns the route for a subscription id, or {@code null}. Takes no locks.
+     * @param id
+     */
+    Route get(int id) {
+        final AtomicReferenceArray<Route> table = mTable;
+        final int mask = table.length() - 1;
+        for (int slot = hash(id) & mask; ; slot = (slot + 1) & mask) {
+            final Route route = table.get(slot);
+            if (route == null) return null;
+            if (route != TOMBSTONE && route.mId == id) return route;
+        }
+    }
+
+    /**
+     * Returns the route for a destination, or {@code null}.
+     * @param destination
+     */
+    synchronized Route find(String destination) {
+        return mDestinations.get(destination);
+    }
+
+    /**
+     * Add listeners to the destination's route, creating the route when there is none yet.
+     * @param destination
+     * @param mode used for a new route only
+     * @param ackBatch used for a new route only
+     * @param ackDelay used for a new route only
+     * @param prefetch used for a new route only
+     * @param listeners
+     * @return Route
+     */
+    synchronized Route subscribe(String destination, StompConnection.AckMode mode, int ackBatch, int ackDelay, int prefetch, StompListener[] listeners) {
+        Route route = mDestinations.get(destination);
+        if (route != null) {
+            if (route.mEmitter != null) throw new IllegalStateException(MSG_ALREADY_SUBSCRIBED);
+            final StompListener[] current = route.mListeners;
+            final StompListener[] updated = Arrays.copyOf(current, current.length + listeners.length);
+            System.arraycopy(listeners, 0, updated, current.length, listeners.length);
+            route.mListeners = updated;
+            return route;
+        }
+        route = add(destination, mode, ackBatch, ackDelay, prefetch, null);
+        route.mListeners = listeners.clone();
+        return route;
+    }
+
+    /**
+     * Create the destination's route for a {@link StompPublisher} subscriber, which takes the messages
+     * instead of listeners.
+     * @param destination
+     * @param ackBatch
+     * @param ackDelay
+     * @param prefetch
+     * @param emitter
+     * @return Route
+     * @throws IllegalStateException when the destination is subscribed already
+     */
+    synchronized Route publish(String destination, int ackBatch, int ackDelay, int prefetch, StompPublisher.Emitter emitter) {
+        if (mDestinations.containsKey(destination)) throw new IllegalStateException(MSG_ALREADY_SUBSCRIBED);
+        return add(destination, StompConnection.AckMode.CLIENT, ackBatch, ackDelay, prefetch, emitter);
+    }
+
+    /**
+     * Remove the destination's route with all its listeners.
+     * @param destination
+     * @return the removed Route, or {@code null}
+     */
+    synchronized Route unsubscribe(String destination) {
+        final Route route = mDestinations.remove(destination);
+        if (route == null) return null;
+        route.mListeners = NO_LISTENERS;
+        route.mRemoved = true;
+        final AtomicReferenceArray<Route> table = mTable;
+        final int mask = table.length() - 1;
+        for (int slot = hash(route.mId) & mask; ; slot = (slot + 1) & mask) {
+            final Route current = table.get(slot);
+            if (current == null) break;
+            if (current == route) {
+                table.set(slot, TOMBSTONE);
+                break;
+            }
+        }
+        return route;
+    }
+
+    /**
+     * Remove listeners from the destination's route. The route itself is kept, even when it has no listeners left.
+     * @param destination
+     * @param listeners
+     * @return the number of listeners left, or -1 when there is no route
+     */
+    synchronized int remove(String destination, StompListener[] listeners) {
+        final Route route = mDestinations.get(destination);
+        if (route == null) return -1;
+        StompListener[] updated = route.mListeners;
+        for (StompListener listener : listeners) {
+            for (int i = 0; i < updated.length; i++) {
+                if (updated[i].equals(listener)) {
+                    final StompListener[] copy = new StompListener[updated.length - 1];
+                    System.arraycopy(updated, 0, copy, 0, i);
+                    System.arraycopy(updated, i + 1, copy, i, copy.length - i);
+                    updated = copy;
+                    break;
+                }
+            }
+        }
+        route.mListeners = updated;
+        return updated.length;
+    }
+
+    /**
+     * Returns a snapshot of all routes.
+     */
+    synchronized Route[] routes() {
+        return mDestinations.values().toArray(new Route[mDestinations.size()]);
+    }
+
+    private Route add(String destination, StompConnection.AckMode mode, int ackBatch, int ackDelay, int prefetch, StompPublisher.Emitter emitter) {
+        final int id = ++mLastId;
+        final String subscription = Integer.toString(id);
+        // The broker stops sending when prefetch messages are unacknowledged, so never hold back more than half of them
+        if (prefetch > 0) ackBatch = Math.min(ackBatch, Math.max(1, prefetch >> 1));
+        final Route route = new Route(id, subscription, destination, prefetch, new StompAcks(mConnection, subscription, mode, ackBatch, ackDelay), emitter);
+        mDestinations.put(destination, route);
+        insert(route);
+        return route;
+    }
+
+    private void insert(Route route) {
+        AtomicReferenceArray<Route> table = mTable;
+        if ((mUsed + 1) << 1 > table.length()) table = rebuild(table);
+        final int mask = table.length() - 1;
+        int slot = hash(route.mId) & mask;
+        while (table.get(slot) != null) slot = (slot + 1) & mask;
+        table.set(slot, route);
+        mUsed++;
+    }
+
+    /**
+     * Copy the live routes into a new table, dropping tombstones, and grow it when needed.
+     */
+    private AtomicReferenceArray<Route> rebuild(AtomicReferenceArray<Route> table) {
+        int capacity = table.length();
+        while ((mDestinations.size() + 1) << 1 > capacity) capacity <<= 1;
+        final AtomicReferenceArray<Route> result = new AtomicReferenceArray<Route>(capacity);
+        final int mask = capacity - 1;
+        int used = 0;
+        for (int i = 0; i < table.length(); i++) {
+            final Route route = table.get(i);
+            if (route == null || route == TOMBSTONE) continue;
+            int slot = hash(route.mId) & mask;
+            while (result.get(slot) != null) slot = (slot + 1) & mask;
+            result.set(slot, route);
+            used++;
+        }
+        mUsed = used;
+        mTable = result;
+        return result;
+    }
+
+    private static int hash(int id) {
+        final int hash = id * 0x9E3779B9; // Fibonacci hashing spreads the sequential ids
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * A single subscription.
+     */
+    static final class Route {
+        final int mId;
+        final String mSubscription;
+        final String mDestination;
+        final int mPrefetch;
+        final StompAcks mAcks;
+        final StompPublisher.Emitter mEmitter; // Takes the messages instead of listeners, when set
+        volatile StompListener[] mListeners = NO_LISTENERS;
+        volatile boolean mRemoved = false;
+
+        Route(int id, String subscription, String destination, int prefetch, StompAcks acks, StompPublisher.Emitter emitter) {
+            mId = id;
+            mSubscription = subscription;
+            mDestination = destination;
+            mPrefetch = prefetch;
+            mAcks = acks;
+            mEmitter = emitter;
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package org.stomp4j;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * StompSpool Class
+ *
+ * <p>Outbound store-and-forward spool of a {@link StompConnection}, see
+ * {@link StompConnection#setSpool(File, long, StompConnection.SpoolOverflow)}.
+ *
+ * <a name="label_file"><h3>File</h3></a>
+ * Frames are encoded and appended to a ring buffer in a memory-mapped file: a small header with the read and
+ * write positions, followed by the ring itself. Positions only grow; the place in the ring is the position modulo
+ * its capacity. A record is a length followed by the encoded frame, and never wraps: when it does not fit before
+ * the end of the ring, the rest of the ring is skipped. An empty ring moves on to the start of its next lap
+ * instead, so a frame that fits the ring is never refused because of where the last one ended. The file outlives the process, frames spooled before a
+ * restart are sent after the next {@code CONNECTED}. Nothing is forced to disk, the page cache takes care of it
+ * unless the machine itself goes down.
+ *
+ * <a name="label_overflow"><h3>Overflow</h3></a>
+ * The ring is the disk budget. When a frame does not fit, the {@link StompConnection.SpoolOverflow} policy decides
+ * whether the new frame is refused, dropped, or the oldest frames are dropped to make room.
+ *
+ * <a name="label_drain"><h3>Draining</h3></a>
+ * Frames are handed out in order by {@link #next()}, while older ones may still be on their way, and are only
+ * removed by {@link #release(long)} once they were flushed to the connection. Frames that were handed out but
+ * never released are sent again after a reconnect.
+ *
+ * <p>All methods are synchronized. Spooling encodes into the mapping directly; draining decodes the record
+ * again, so only the frames themselves are allocated.
+ *
+ * @author Rory Slegtenhorst <rory.slegtenhorst@gmail.com>
+ */
+class StompSpool implements Closeable, Stomp {
+
+    static final int WINDOW = 1024; // Frames queued on the writer before send() spools
+
+    private static final int MAGIC = 0x53545331; // "STS1"
+    private static final int HEADER = 32; // Magic, capacity, read position, write position, frame count
+    private static final int OFFSET_READ = 8;
+    private static final int OFFSET_WRITE = 16;
+    private static final int OFFSET_COUNT = 24;
+    private static final int SKIP = -1; // Rest of the ring is unused
+
+    private final File mFile;
+    private final StompConnection.SpoolOverflow mOverflow;
+    private final RandomAccessFile mRandomAccessFile;
+    private final MappedByteBuffer mBuffer;
+    private final ByteBuffer mRecord; // View on the ring, for reading a record
+    private final int mCapacity;
+    private final StompEncoder mEncoder = new StompEncoder();
+    private final StompDecoder mDecoder = new StompDecoder();
+    private long mRead;
+    private long mWrite;
+    private int mCount;
+    private long mCursor; // Position of the next frame to hand out, at or after the read position
+
+    private StompSpool(File file, StompConnection.SpoolOverflow overflow, RandomAccessFile raf, MappedByteBuffer buffer) {
+        mFile = file;
+        mOverflow = overflow;
+        mRandomAccessFile = raf;
+        mBuffer = buffer;
+        mCapacity = buffer.getInt(4);
+        mRead = buffer.getLong(OFFSET_READ);
+        mWrite = buffer.getLong(OFFSET_WRITE);
+        mCount = buffer.getInt(OFFSET_COUNT);
+        mCursor = mRead;
+        buffer.position(HEADER);
+        mRecord = buffer.slice();
+    }
+
+    /**
+     * Open the spool file, or create it. A file that still holds frames keeps its size, otherwise it is
+     * (re)created with the given budget.
+     * @param file
+     * @param budget maximum size of the file in bytes
+     * @param overflow
+     * @return StompSpool
+     * @throws IOException
+     */
+    static StompSpool open(File file, long budget, StompConnection.SpoolOverflow overflow) throws IOException {
+        if (budget <= HEADER || budget > Integer.MAX_VALUE) throw new IllegalArgumentException("Invalid budget: " + budget);
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            final long length = raf.length();
+            if (length > HEADER && length <= Integer.MAX_VALUE) {
+                final MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+                if (buffer.getInt(0) == MAGIC && buffer.getInt(4) == length - HEADER
+                        && buffer.getLong(OFFSET_WRITE) > buffer.getLong(OFFSET_READ)) {
+                    return new StompSpool(file, overflow, raf, buffer);
+                }
+            }
+            raf.setLength(budget);
+            final MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, budget);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, (int) budget - HEADER);
+            buffer.putLong(OFFSET_READ, 0);
+            buffer.putLong(OFFSET_WRITE, 0);
+            buffer.putInt(OFFSET_COUNT, 0);
+            return new StompSpool(file, overflow, raf, buffer);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    synchronized boolean isEmpty() {
+        return mWrite == mRead;
+    }
+
+    /**
+     * Returns the number of spooled frames.
+     */
+    synchronized int size() {
+        return mCount;
+    }
+
+    /**
+     * Returns the number of bytes in use, including skipped space at the end of the ring.
+     */
+    synchronized long bytes() {
+        return mWrite - mRead;
+    }
+
+    /**
+     * Append a frame.
+     * @param frame
+     * @return {@code false} when the frame was dropped by the overflow policy
+     * @throws IOException when the frame was refused by the overflow policy, or can never fit
+     */
+    synchronized boolean append(StompFrame frame) throws IOException {
+        mEncoder.clear();
+        mEncoder.encode(frame);
+        final ByteBuffer encoded = mEncoder.getBuffer();
+        final int size = 4 + encoded.position();
+        if (size > mCapacity) throw new IOException(MSG_SPOOL_FULL);
+        while (free(size) < 0) {
+            if (mRead == mWrite) {
+                realign();
+                continue;
+            }
+            if (mOverflow == StompConnection.SpoolOverflow.DROP_NEWEST) return false;
+            if (mOverflow == StompConnection.SpoolOverflow.FAIL) throw new IOException(MSG_SPOOL_FULL);
+            drop();
+        }
+        int offset = offset(mWrite);
+        if (mCapacity - offset < size) {
+            // Skip to the start of the ring, readers see the marker (or too little space for one)
+            if (mCapacity - offset >= 4) mRecord.putInt(offset, SKIP);
+            mWrite += mCapacity - offset;
+            offset = 0;
+        }
+        encoded.flip();
+        mRecord.putInt(offset, encoded.remaining());
+        mRecord.position(offset + 4);
+        mRecord.put(encoded);
+        mEncoder.clear();
+        mWrite += size;
+        mCount++;
+        mBuffer.putLong(OFFSET_WRITE, mWrite);
+        mBuffer.putInt(OFFSET_COUNT, mCount);
+        return true;
+    }
+
+    /**
+     * Returns the next frame to send, or {@code null} when every spooled frame was handed out. The frame stays
+     * spooled until it is released, see {@link #release(long)}.
+     * @throws IOException when the record does not decode
+     */
+    synchronized StompFrame next() throws IOException {
+        if (mCursor < mRead) mCursor = mRead; // Dropped by the overflow policy meanwhile
+        if (mCursor == mWrite) return null;
+        long read = mCursor;
+        int offset = offset(read);
+        if (mCapacity - offset < 4 || mRecord.getInt(offset) == SKIP) {
+            read += mCapacity - offset;
+            offset = 0;
+        }
+        final int length = mRecord.getInt(offset);
+        mRecord.limit(offset + 4 + length);
+        mRecord.position(offset + 4);
+        mDecoder.feed(mRecord);
+        mRecord.limit(mRecord.capacity());
+        final StompFrame frame = mDecoder.decode(null);
+        mCursor = read + 4 + length;
+        return frame;
+    }
+
+    /**
+     * Returns if there are frames that were not handed out yet.
+     */
+    synchronized boolean hasNext() {
+        return Math.max(mCursor, mRead) < mWrite;
+    }
+
+    /**
+     * Returns the position after the frame last returned by {@link #next()}.
+     */
+    synchronized long cursor() {
+        return mCursor;
+    }
+
+    /**
+     * Remove the frames before {@code position}, once they were sent. Frames the overflow policy dropped
+     * meanwhile are skipped, positions only grow.
+     * @param position
+     */
+    synchronized void release(long position) {
+        while (mRead < position && mRead < mWrite) advance();
+    }
+
+    /**
+     * Hand out every spooled frame again, starting with the oldest. Called for a new connection, the frames
+     * handed out to the previous one may never have been sent.
+     */
+    synchronized void rewind() {
+        mCursor = mRead;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mRandomAccessFile.close();
+    }
+
+    private void drop() {
+        if (mRead < mWrite) advance();
+    }
+
+    /**
+     * Move an empty ring to the start of its next lap, where a record gets the whole ring.
+     */
+    private void realign() {
+        final int offset = offset(mWrite);
+        if (offset == 0) return;
+        mWrite += mCapacity - offset;
+        mRead = mWrite;
+        mBuffer.putLong(OFFSET_WRITE, mWrite);
+        mBuffer.putLong(OFFSET_READ, mRead);
+    }
+
+    /**
+     * Remove the oldest record.
+     */
+    private void advance() {
+        int offset = offset(mRead);
+        if (mCapacity - offset < 4 || mRecord.getInt(offset) == SKIP) {
+            mRead += mCapacity - offset;
+            offset = 0;
+        }
+        mRead += 4 + mRecord.getInt(offset);
+        mCount--;
+        mBuffer.putLong(OFFSET_READ, mRead);
+        mBuffer.putInt(OFFSET_COUNT, mCount);
+    }
+
+    /**
+     * Returns the bytes left after writing a record of {@code size} bytes, negative when it does not fit.
+     */
+    private long free(int size) {
+        final int offset = offset(mWrite);
+        final long needed = mCapacity - offset < size ? mCapacity - offset + size : size;
+        return mCapacity - (mWrite - mRead) - needed;
+    }
+
+    private int offset(long position) {
+        return (int) (position % mCapacity);
+    }
+}
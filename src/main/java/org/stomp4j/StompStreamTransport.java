@@ -0,0 +1,188 @@
+package org.stomp4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * StompStreamTransport Class
+ *
+ * <p>Blocking {@link StompTransport}. Frames are read by a dedicated {@link StompListenerThread}, and written
+ * on the calling thread.
+ *
+ * <p>Streamed bodies (see {@link StompBody}) are copied to the output stream in chunks. Streamed bodies of
+ * received frames are fed to their {@link StompBodyStream} by the reader thread, which waits while the
+ * stream is full.
+ *
+ * <p>When created with a {@link Socket}, the socket is connected on {@link #open(int)} and its streams are
+ * used. Without a socket, the streams come from {@link StompConnection#getInput()} and
+ * {@link StompConnection#getOutput()} (the {@link StompServer} loopback).
+ *
+ * @author Rory Slegtenhorst <rory.slegtenhorst@gmail.com>
+ */
+class StompStreamTransport extends StompTransport {
+
+    private final Socket mSocket;
+    private final SocketAddress mSocketAddress;
+    private final StompEncoder mEncoder = new StompEncoder(); // Guarded by StompConnection.writeFrame
+
+    private InputStream mInput = null;
+    private OutputStream mOutput = null;
+    private StompListenerThread mListenerThread = null;
+
+    StompStreamTransport(StompConnection connection) {
+        this(connection, null, null);
+    }
+
+    StompStreamTransport(StompConnection connection, Socket socket, SocketAddress address) {
+        super(connection);
+        mSocket = socket;
+        mSocketAddress = address;
+        mEncoder.setTimed(connection.isMetered());
+    }
+
+    @Override
+    void open(int timeout) throws IOException {
+        if (mSocket != null) {
+            mSocket.connect(mSocketAddress, timeout);
+            mSocket.setTcpNoDelay(true);
+            mInput = mSocket.getInputStream();
+            mOutput = mSocket.getOutputStream();
+        } else {
+            mInput = mConnection.getInput();
+            mOutput = mConnection.getOutput();
+        }
+        mListenerThread = new StompListenerThread(this, mInput);
+    }
+
+    @Override
+    boolean isOpen() {
+        if (isClosed() || mOutput == null) return false;
+        return mSocket == null || (mSocket.isConnected() && !mSocket.isClosed());
+    }
+
+    @Override
+    void close() throws IOException {
+        // Report the close first, so the interrupted reader's exception does not reach the connection
+        closed(new SocketException(MSG_SOCKET_CLOSED));
+        if (mListenerThread != null) {
+            mListenerThread.interrupt();
+            mListenerThread = null;
+        }
+        if (mSocket != null) mSocket.close();
+    }
+
+    @Override
+    void write(StompFrame frame, StompIO.Listener listener) throws IOException {
+        try {
+            StompIO.writeFrame(mEncoder, frame, mOutput, listener);
+        } catch (IOException e) {
+            // A body that failed halfway leaves a broken frame on the wire
+            if (frame.getBody() != null) abort(e);
+            throw e;
+        }
+    }
+
+    @Override
+    void encode(StompFrame frame, StompIO.Listener listener) throws IOException {
+        if (frame.getBody() != null) {
+            // Streamed bodies go out right away, together with what was encoded before
+            write(frame, listener);
+            return;
+        }
+        try {
+            if (listener != null) listener.onWriteBegin();
+            if (listener != null && HEARTBEAT.equals(frame.getCommand())) listener.onWriteEmpty();
+            mEncoder.encode(frame);
+            if (listener != null) listener.onWriteFrame(frame, mEncoder.frameBytes(), mEncoder.frameNanos());
+        } finally {
+            if (listener != null) listener.onWriteEnd();
+        }
+    }
+
+    @Override
+    void flush() throws IOException {
+        mEncoder.flush(mOutput);
+    }
+
+    @Override
+    void suspendReads() {
+        final StompListenerThread thread = mListenerThread;
+        if (thread != null) thread.mSuspended = true;
+    }
+
+    @Override
+    void resumeReads() {
+        final StompListenerThread thread = mListenerThread;
+        if (thread != null) {
+            thread.mSuspended = false;
+            LockSupport.unpark(thread.mThread);
+        }
+    }
+
+    @Override
+    boolean isReadPaused() {
+        final StompListenerThread thread = mListenerThread;
+        return thread != null && (thread.mSuspended || thread.mDecoder.isStalled());
+    }
+
+    @Override
+    InputStream getInputStream() throws IOException {
+        return mInput;
+    }
+
+    @Override
+    OutputStream getOutputStream() throws IOException {
+        return mOutput;
+    }
+
+    private static class StompListenerThread implements Runnable {
+
+        private final InputStream mInput;
+        private final StompDecoder mDecoder = new StompDecoder();
+
+        private final Thread mThread;
+        private final StompStreamTransport mTransport;
+        private volatile boolean mSuspended = false;
+
+        public StompListenerThread(StompStreamTransport transport, InputStream input) {
+            mTransport = transport;
+            mInput = input;
+            mDecoder.setTimed(transport.mConnection.isMetered());
+            mDecoder.setStreamThreshold(transport.mConnection.getStreamThreshold());
+            mDecoder.setPool(transport.mConnection.getPool());
+            mThread = new Thread(this, "StompListenerThread");
+            mThread.start();
+        }
+
+        @Override
+        public void run() {
+            final StompConnection connection = mTransport.mConnection;
+            try {
+                while (true) {
+                    while (mSuspended && !mTransport.isClosed()) {
+                        LockSupport.park(this);
+                        if (Thread.interrupted()) throw new InterruptedIOException();
+                    }
+                    StompFrame frame = StompIO.readFrame(mDecoder, mInput, connection.getFrameListener());
+                    connection.onFrame(frame);
+                }
+            } catch (IOException e) {
+                mDecoder.abort(e);
+                mTransport.closed(e);
+            } catch (RuntimeException e) {
+                mDecoder.abort(new IOException(e));
+                mTransport.closed(new IOException(e));
+            }
+        }
+
+        public void interrupt() {
+            mThread.interrupt();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package org.stomp4j;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * StompTimer Class
+ *
+ * <p>Hashed wheel timer shared by all connections, used for heart-beats and receipt timeouts.
+ *
+ * <a name="label_wheel"><h3>Wheel</h3></a>
+ * The wheel has {@link #WHEEL_SIZE} buckets, each covering one {@link #TICK_MILLIS} tick. A timeout is
+ * put in the bucket of its deadline tick, together with the number of full rounds left. Every tick, the
+ * single timer thread walks one bucket, so scheduling and cancelling are O(1) no matter how many
+ * connections there are. Deadlines are rounded up to the next tick.
+ *
+ * <a name="label_threads"><h3>Threads</h3></a>
+ * {@link #schedule(Runnable, long, TimeUnit)} only adds the timeout to a lock-free queue, the timer
+ * thread moves it into the wheel. {@link Timeout#cancel()} only flips its state, the timer thread unlinks
+ * it when it passes the bucket. Tasks run on the timer thread and must be short; anything that may block
+ * is handed off by the task itself.
+ *
+ * @author Rory Slegtenhorst <rory.slegtenhorst@gmail.com>
+ */
+class StompTimer implements Runnable, Stomp {
+
+    static final long TICK_MILLIS = 10;
+    static final int WHEEL_SIZE = 512;
+
+    private static final long TICK = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+    private static final int MASK = WHEEL_SIZE - 1;
+
+    private static final Object mInstanceLock = new Object();
+    private static volatile StompTimer mInstance = null;
+
+    private final Bucket[] mWheel = new Bucket[WHEEL_SIZE];
+    private final Queue<Timeout> mPending = new ConcurrentLinkedQueue<Timeout>();
+    private final long mStart = System.nanoTime();
+    private long mTick = 0; // Only used by the timer thread
+
+    private StompTimer() {
+        for (int i = 0; i < mWheel.length; i++) mWheel[i] = new Bucket();
+        Thread thread = new Thread(this, "StompTimer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the shared timer, started on first use.
+     * @return StompTimer
+     */
+    static StompTimer getInstance() {
+        StompTimer instance = mInstance;
+        if (instance == null) {
+            synchronized (mInstanceLock) {
+                if (mInstance == null) mInstance = new StompTimer();
+                instance = mInstance;
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Run the task once, after the delay.
+     * @param task
+     * @param delay
+     * @param unit
+     * @return Timeout, to cancel the task
+     */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - mStart + Math.max(0, unit.toNanos(delay)));
+        mPending.add(timeout);
+        return timeout;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            final long deadline = TICK * (mTick + 1);
+            long sleep = deadline - (System.nanoTime() - mStart);
+            while (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException ignore) {
+                }
+                sleep = deadline - (System.nanoTime() - mStart);
+            }
+            transfer();
+            mWheel[(int) (mTick & MASK)].expire();
+            mTick++;
+        }
+    }
+
+    /**
+     * Move newly scheduled timeouts into their buckets.
+     */
+    private void transfer() {
+        for (Timeout timeout = mPending.poll(); timeout != null; timeout = mPending.poll()) {
+            if (timeout.isCancelled()) continue;
+            final long ticks = (timeout.mDeadline + TICK - 1) / TICK;
+            final long target = Math.max(ticks, mTick); // Never schedule into the past
+            timeout.mRounds = (target - mTick) / WHEEL_SIZE;
+            mWheel[(int) (target & MASK)].add(timeout);
+        }
+    }
+
+    /**
+     * Doubly linked list of timeouts, only used by the timer thread.
+     */
+    private static final class Bucket {
+        private Timeout mHead = null;
+        private Timeout mTail = null;
+
+        void add(Timeout timeout) {
+            if (mTail == null) {
+                mHead = mTail = timeout;
+            } else {
+                mTail.mNext = timeout;
+                timeout.mPrev = mTail;
+                mTail = timeout;
+            }
+        }
+
+        void expire() {
+            Timeout timeout = mHead;
+            while (timeout != null) {
+                final Timeout next = timeout.mNext;
+                if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else if (timeout.mRounds <= 0) {
+                    remove(timeout);
+                    timeout.expire();
+                } else {
+                    timeout.mRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        private void remove(Timeout timeout) {
+            if (timeout.mPrev != null) timeout.mPrev.mNext = timeout.mNext;
+            else mHead = timeout.mNext;
+            if (timeout.mNext != null) timeout.mNext.mPrev = timeout.mPrev;
+            else mTail = timeout.mPrev;
+            timeout.mPrev = null;
+            timeout.mNext = null;
+        }
+    }
+
+    /**
+     * Handle for a scheduled task.
+     */
+    static final class Timeout {
+        private static final int STATE_INIT = 0;
+        private static final int STATE_CANCELLED = 1;
+        private static final int STATE_EXPIRED = 2;
+
+        private final Runnable mTask;
+        private final long mDeadline;
+        private final AtomicInteger mState = new AtomicInteger(STATE_INIT);
+        private long mRounds = 0;
+        private Timeout mPrev = null;
+        private Timeout mNext = null;
+
+        private Timeout(Runnable task, long deadline) {
+            mTask = task;
+            mDeadline = deadline;
+        }
+
+        /**
+         * Cancel the task, returns {@code false} when it already ran or was cancelled before.
+         */
+        boolean cancel() {
+            return mState.compareAndSet(STATE_INIT, STATE_CANCELLED);
+        }
+
+        boolean isCancelled() {
+            return mState.get() == STATE_CANCELLED;
+        }
+
+        private void expire() {
+            if (!mState.compareAndSet(STATE_INIT, STATE_EXPIRED)) return;
+            try {
+                mTask.run();
+            } catch (RuntimeException e) {
+                if (DEBUG) e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package org.stomp4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * StompTransaction Class
+ *
+ * <p>Handle of one transaction on a {@link StompConnection}, see {@link StompConnection#begin()}. Every frame
+ * sent through the handle carries its own {@code transaction} header, so any number of transactions can be
+ * open on one connection at the same time, each used by its own thread (or shared by several).
+ *
+ * <a name="label_pipeline"><h3>Pipelining</h3></a>
+ * {@code BEGIN}, the {@code SEND}s, {@code ACK}s and the {@code COMMIT} are written like any other frame: nothing
+ * waits for the server, and with write coalescing they share writes with the rest of the connection's frames.
+ * Only {@link #commitAsync()} and {@link #abortAsync()} ask for a receipt, to learn the outcome without blocking.
+ *
+ * <a name="label_lifecycle"><h3>Lifecycle</h3></a>
+ * A transaction ends with {@link #commit()} or {@link #abort()}; {@link #close()} aborts it unless it ended
+ * already, so it fits a try-with-resources block. Sends that are still being written when another thread ends
+ * the transaction are written first. Once ended, the handle refuses further use with an
+ * {@link IllegalStateException}. When the connection is lost, the server drops its open transactions, and
+ * their handles fail further use with an {@link IOException}.
+ *
+ * @author Rory Slegtenhorst <rory.slegtenhorst@gmail.com>
+ */
+public final class StompTransaction implements Closeable, Stomp {
+
+    private final StompConnection mConnection;
+    private final String mId;
+    // Sends hold the read lock while writing, ending the transaction takes the write lock
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+    private boolean mEnded = false; // Guarded by mLock
+    private IOException mLost = null; // Guarded by mLock
+
+    StompTransaction(StompConnection connection, String id) {
+        mConnection = connection;
+        mId = id;
+    }
+
+    /**
+     * Returns the transaction id, as sent in the {@code transaction} header.
+     */
+    public String getId() {
+        return mId;
+    }
+
+    /**
+     * Returns if the transaction can still be used.
+     */
+    public boolean isOpen() {
+        mLock.readLock().lock();
+        try {
+            return !mEnded && mLost == null;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Send a message as part of the transaction. The server holds it back until the commit.
+     * @param message
+     * @throws IOException
+     */
+    public void send(StompMessage message) throws IOException {
+        if (message == null) throw new NullPointerException();
+        mLock.readLock().lock();
+        try {
+            check();
+            mConnection.sendMessage(message, null, mId);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Acknowledge a received message as part of the transaction, instead of when the listeners returned. Use it
+     * with {@link StompConnection.AckMode#CLIENT_INDIVIDUAL} subscriptions: a cumulative {@code ACK} of a later
+     * message would acknowledge this one outside the transaction.
+     * @param message
+     * @throws IOException
+     */
+    public void ack(StompMessage message) throws IOException {
+        settle(ACK, message);
+    }
+
+    /**
+     * Reject a received message as part of the transaction, see {@link #ack(StompMessage)}.
+     * @param message
+     * @throws IOException
+     */
+    public void nack(StompMessage message) throws IOException {
+        settle(NACK, message);
+    }
+
+    /**
+     * Commit the transaction.
+     * @throws IOException
+     */
+    public void commit() throws IOException {
+        end(COMMIT, null);
+    }
+
+    /**
+     * Commit the transaction, and request a receipt for it.
+     * @return future completed when the server confirmed the {@code COMMIT}
+     * @throws IOException
+     * @see StompConnection#sendAsync(StompMessage)
+     */
+    public CompletableFuture<Void> commitAsync() throws IOException {
+        return endAsync(COMMIT);
+    }
+
+    /**
+     * Abort the transaction, the server drops what was sent as part of it.
+     * @throws IOException
+     */
+    public void abort() throws IOException {
+        end(ABORT, null);
+    }
+
+    /**
+     * Abort the transaction, and request a receipt for it.
+     * @return future completed when the server confirmed the {@code ABORT}
+     * @throws IOException
+     * @see StompConnection#sendAsync(StompMessage)
+     */
+    public CompletableFuture<Void> abortAsync() throws IOException {
+        return endAsync(ABORT);
+    }
+
+    /**
+     * Abort the transaction, unless it was committed or aborted already.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        mLock.writeLock().lock();
+        try {
+            if (mEnded || mLost != null) return;
+            end(ABORT, null);
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * The connection was lost, and the server dropped the transaction.
+     * @param e
+     */
+    void lost(IOException e) {
+        mLock.writeLock().lock();
+        try {
+            if (!mEnded) mLost = e;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StompTransaction " + mId;
+    }
+
+    private void settle(String command, StompMessage message) throws IOException {
+        final String subscription = message.getHeaders().get(HEADER_SUBSCRIPTION);
+        final String messageId = message.getHeaders().get(HEADER_MESSAGE_ID);
+        if (subscription == null || messageId == null) throw new IllegalArgumentException(MSG_HEADER_REQ);
+        mLock.readLock().lock();
+        try {
+            check();
+            message.settle(); // The connection does not acknowledge it again
+            if (ACK.equals(command)) mConnection.sendAck(subscription, messageId, mId);
+            else mConnection.sendNack(subscription, messageId, mId);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    private CompletableFuture<Void> endAsync(String command) throws IOException {
+        final CompletableFuture<Void> future = new CompletableFuture<Void>();
+        final StompReceipts receipts = mConnection.getReceipts();
+        final String receipt = receipts.register(future);
+        try {
+            end(command, receipt);
+        } catch (IOException e) {
+            receipts.fail(receipt, e);
+        } catch (RuntimeException e) {
+            receipts.fail(receipt, e);
+            throw e;
+        }
+        return future;
+    }
+
+    private void end(String command, String receipt) throws IOException {
+        mLock.writeLock().lock();
+        try {
+            check();
+            mEnded = true;
+            mConnection.endTransaction(this, command, receipt);
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    private void check() throws IOException {
+        if (mEnded) throw new IllegalStateException(MSG_TRANSACTION_ENDED);
+        if (mLost != null) throw new IOException(MSG_TRANSACTION_LOST, mLost);
+    }
+}
@@ -0,0 +1,169 @@
+package org.stomp4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * StompTransport Class
+ *
+ * <p>Moves frames between a {@link StompConnection} and the wire. Incoming frames are handed to
+ * {@link StompConnection#onFrame(StompFrame)}, and the connection is told exactly once when the transport
+ * is closed, either by {@link #close()} or because the peer went away.
+ *
+ * <p>Implementations:
+ * <ul>
+ * <li>{@link StompStreamTransport}, blocking {@link java.net.Socket} (or loopback stream) with a reader thread</li>
+ * <li>{@link StompNioTransport}, non-blocking {@link java.nio.channels.SocketChannel} served by a {@link StompReactor}</li>
+ * </ul>
+ *
+ * <p>Calls to {@link #write(StompFrame, StompIO.Listener)}, {@link #encode(StompFrame, StompIO.Listener)} and
+ * {@link #flush()} are serialized by the connection, or made by its {@link StompWriter} only.
+ *
+ * @author Rory Slegtenhorst <rory.slegtenhorst@gmail.com>
+ */
+abstract class StompTransport implements Stomp {
+
+    protected final StompConnection mConnection;
+    private final AtomicBoolean mClosed = new AtomicBoolean(false);
+
+    StompTransport(StompConnection connection) {
+        mConnection = connection;
+    }
+
+    /**
+     * Connect to the server, and start reading frames.
+     * @param timeout connect timeout in milliseconds, 0 for none
+     * @throws IOException
+     */
+    abstract void open(int timeout) throws IOException;
+
+    /**
+     * Returns if the transport has been opened and was not closed since.
+     */
+    abstract boolean isOpen();
+
+    /**
+     * Close the transport. The connection is notified with a {@code MSG_SOCKET_CLOSED} exception.
+     * @throws IOException
+     */
+    abstract void close() throws IOException;
+
+    /**
+     * Write a single frame.
+     * @param frame
+     * @param listener optional, may be {@code null}
+     * @throws IOException
+     */
+    void write(StompFrame frame, StompIO.Listener listener) throws IOException {
+        encode(frame, listener);
+        flush();
+    }
+
+    /**
+     * Encode a frame into the outbound buffer, without writing it.
+     * @param frame
+     * @param listener optional, may be {@code null}
+     * @throws IOException
+     */
+    abstract void encode(StompFrame frame, StompIO.Listener listener) throws IOException;
+
+    /**
+     * Write everything encoded since the last flush.
+     * @throws IOException
+     */
+    abstract void flush() throws IOException;
+
+    /**
+     * Stop handing frames to the connection until {@link #resumeReads()}, used for inbound backpressure.
+     * Called on the transport's reader only. Frames already being handed over are not affected.
+     */
+    void suspendReads() {
+    }
+
+    /**
+     * Continue reading after {@link #suspendReads()}. May be called from any thread.
+     */
+    void resumeReads() {
+    }
+
+    /**
+     * Wait until everything flushed was handed to the socket, for at most {@code millis}. Returns {@code false}
+     * when it was not, or the transport closed meanwhile.
+     * @param millis
+     * @throws InterruptedIOException
+     */
+    boolean awaitFlushed(long millis) throws InterruptedIOException {
+        return isOpen();
+    }
+
+    /**
+     * Wait until a streamed body encoded by {@link #encode(StompFrame, StompIO.Listener)} is on the wire, the
+     * sender owns its source again afterwards. A transport that queues what the socket does not take returns
+     * once it was drained, others wrote the body before {@code encode} returned. Called without holding the
+     * connection's write lock.
+     * @param body
+     * @throws IOException when the transport was closed first
+     */
+    void awaitWritten(StompBody body) throws IOException {
+    }
+
+    /**
+     * Returns if the caller is the thread that reads and writes for a non-blocking transport. It must never wait
+     * for a write to make progress, nobody else would meanwhile.
+     */
+    boolean isReactor() {
+        return false;
+    }
+
+    /**
+     * Returns if reads are suspended, or wait for a streamed body to be consumed. May be called from any thread.
+     */
+    boolean isReadPaused() {
+        return false;
+    }
+
+    /**
+     * Close the transport because of an error, the connection is notified with that error.
+     * @param e
+     */
+    final void abort(IOException e) {
+        closed(e);
+        try {
+            close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    /**
+     * Returns the underlying input stream, if any.
+     */
+    InputStream getInputStream() throws IOException {
+        return null;
+    }
+
+    /**
+     * Returns the underlying output stream, if any.
+     */
+    OutputStream getOutputStream() throws IOException {
+        return null;
+    }
+
+    /**
+     * Returns if {@link #closed(IOException)} has been called.
+     */
+    final boolean isClosed() {
+        return mClosed.get();
+    }
+
+    /**
+     * Called by implementations when reading stopped. Only the first call reaches the connection.
+     * @param e the reason, never {@code null}
+     */
+    final void closed(IOException e) {
+        if (mClosed.compareAndSet(false, true))
+            mConnection.onClosed(this, e);
+    }
+}
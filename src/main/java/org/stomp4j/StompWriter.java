@@ -0,0 +1,278 @@
+package org.stomp4j;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * StompWriter Class
+ *
+ * <p>Optional outbound pipeline for a {@link StompConnection}, see
+ * {@link StompConnection#setWriteCoalescing(int, int)}.
+ *
+ * <p>Producers add frames to a lock-free multi-producer queue and return immediately, unless
+ * {@link #CAPACITY} frames are queued already: then they wait until the drain task made room. The reactor of
+ * a non-blocking transport never waits, as the drain task may be waiting for it (see
+ * {@link StompTransport#isReactor()}). A single drain task
+ * encodes whatever is queued (up to the maximum batch size) into the transport's buffer, and flushes it with
+ * one write. When a batch is not full, the drain task lingers for at most the maximum linger time to pick
+ * up more frames first. Lingering is cut short once a full batch is queued.
+ *
+ * <p>The drain task runs on a shared pool of daemon threads, and only while there is something to write.
+ * Frames are written in queue order, so frames sent by one thread keep their order.
+ *
+ * <p>When the connection is disconnected, queued frames are written first, for at most
+ * {@link #DRAIN_TIMEOUT} milliseconds; what is left after that is dropped, see {@link #discard()}.
+ *
+ * @author Rory Slegtenhorst <rory.slegtenhorst@gmail.com>
+ */
+class StompWriter implements Runnable, Stomp {
+
+    static final int CAPACITY = 8192; // Queued frames before producers wait
+    static final long DRAIN_TIMEOUT = 5000;
+
+    private static final long WAIT_MILLIS = 10;
+
+    private static final ExecutorService mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "StompWriter-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final StompConnection mConnection;
+    private final StompTransport mTransport;
+    private final int mMaxBatch;
+    private final long mMaxLinger;
+
+    private final Queue<StompFrame> mQueue = new ConcurrentLinkedQueue<StompFrame>();
+    private final AtomicInteger mSize = new AtomicInteger(0);
+    private final AtomicBoolean mScheduled = new AtomicBoolean(false);
+    private volatile Thread mLingering = null;
+    private volatile IOException mError = null;
+    private final Object mRoom = new Object(); // Producers wait on it while the queue is full
+    private volatile boolean mFull = false; // Set by a waiting producer, under mRoom
+    private final List<Runnable> mFlushed = new ArrayList<Runnable>(); // Tasks of the current batch, drain only
+
+    /**
+     * @param connection
+     * @param transport
+     * @param maxBatch maximum number of frames per write
+     * @param maxLingerMicros maximum time to wait for a batch to fill up, 0 to write right away
+     */
+    StompWriter(StompConnection connection, StompTransport transport, int maxBatch, int maxLingerMicros) {
+        mConnection = connection;
+        mTransport = transport;
+        mMaxBatch = Math.max(1, maxBatch);
+        mMaxLinger = Math.max(0, maxLingerMicros) * 1000L;
+    }
+
+    /**
+     * Queue a frame for writing, waiting while the queue is full (unless called by the reactor).
+     * @param frame
+     * @throws IOException when an earlier write failed
+     */
+    void enqueue(StompFrame frame) throws IOException {
+        final IOException error = mError;
+        if (error != null) throw new SocketException(error.getMessage());
+        if (!StompEncoder.isValidCommand(frame.getCommand())) throw new ProtocolException(MSG_INVALID_COMMAND);
+        if (mSize.get() >= CAPACITY && !mTransport.isReactor()) awaitRoom();
+        mQueue.add(frame);
+        if (mSize.incrementAndGet() >= mMaxBatch) {
+            final Thread lingering = mLingering;
+            if (lingering != null) LockSupport.unpark(lingering);
+        }
+        if (!mScheduled.get() && mScheduled.compareAndSet(false, true))
+            mExecutor.execute(this);
+    }
+
+    /**
+     * Queue a frame with a streamed body, and wait until it was written. The caller owns the body's source
+     * again once this returns, except for the reactor: it only queues the frame, the source stays in use.
+     * @param frame
+     * @throws IOException when the frame could not be written
+     */
+    void write(StompFrame frame) throws IOException {
+        final StompBody body = frame.getBody();
+        enqueue(frame);
+        if (mTransport.isReactor()) return;
+        while (!body.await(100)) {
+            // A failed writer drops its queue, the body may never be handled
+            final IOException error = mError;
+            if (error != null) throw new SocketException(error.getMessage());
+        }
+        // The transport may have queued the rest of the body
+        if (!body.isDone() && mError == null) mTransport.awaitWritten(body);
+        if (!body.isDone()) {
+            final IOException error = mError;
+            throw new SocketException(error == null ? MSG_SOCKET_CLOSED : error.getMessage());
+        }
+    }
+
+    /**
+     * Wait until everything queued was written, for at most {@code millis}. Returns {@code false} when frames
+     * are still queued, or an earlier write failed.
+     * @param millis
+     * @throws InterruptedIOException
+     */
+    boolean awaitEmpty(long millis) throws InterruptedIOException {
+        final long deadline = System.nanoTime() + millis * 1000000L;
+        while (mError == null && (mSize.get() > 0 || mScheduled.get())) {
+            final long nanos = deadline - System.nanoTime();
+            if (nanos <= 0) return false;
+            LockSupport.parkNanos(this, Math.min(nanos, WAIT_MILLIS * 1000000L));
+            if (Thread.interrupted()) throw new InterruptedIOException();
+        }
+        return mError == null;
+    }
+
+    /**
+     * Drop whatever is still queued, and refuse further frames. Writers of dropped streamed bodies are
+     * released with an error.
+     * @return the number of dropped frames
+     */
+    int discard() {
+        if (mError == null) mError = new SocketException(MSG_SOCKET_CLOSED);
+        return clear();
+    }
+
+    /**
+     * Run a task on the shared writer pool, for writes that must not block the caller's thread, and for
+     * listeners of streamed messages that must not run on the reader.
+     * @param task
+     */
+    static void execute(Runnable task) {
+        mExecutor.execute(task);
+    }
+
+    /**
+     * Returns the number of queued frames.
+     */
+    int size() {
+        return mSize.get();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                if (drain() == 0) {
+                    mScheduled.set(false);
+                    // A producer may have added a frame after the last poll, but before the flag was cleared
+                    if (mQueue.isEmpty() || !mScheduled.compareAndSet(false, true)) return;
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (RuntimeException e) {
+            fail(new IOException(e));
+        }
+    }
+
+    private void fail(IOException e) {
+        mError = e;
+        mFlushed.clear(); // Not flushed
+        clear();
+        mTransport.abort(e);
+    }
+
+    private int clear() {
+        int count = 0;
+        for (StompFrame frame = mQueue.poll(); frame != null; frame = mQueue.poll()) {
+            mSize.decrementAndGet();
+            if (frame.getBody() != null) frame.getBody().finish(); // Not done, its writer gets the error
+            count++;
+        }
+        wakeProducers();
+        return count;
+    }
+
+    /**
+     * Wait while the queue is full. The connection gets a chance to make room meanwhile, see
+     * {@link StompConnection#onWriteWait()}.
+     */
+    private void awaitRoom() throws IOException {
+        synchronized (mRoom) {
+            while (true) {
+                mFull = true;
+                if (mSize.get() < CAPACITY) return;
+                final IOException error = mError;
+                if (error != null) throw new SocketException(error.getMessage());
+                mConnection.onWriteWait();
+                try {
+                    mRoom.wait(WAIT_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+
+    private void wakeProducers() {
+        if (!mFull) return;
+        synchronized (mRoom) {
+            mFull = false;
+            mRoom.notifyAll();
+        }
+    }
+
+    /**
+     * Encode and flush one batch, returns the number of frames written.
+     */
+    private int drain() throws IOException {
+        final StompIO.Listener listener = mConnection.getFrameListener();
+        int count = 0;
+        long deadline = 0;
+        while (count < mMaxBatch) {
+            final StompFrame frame = mQueue.poll();
+            if (frame == null) {
+                if (count == 0 || mMaxLinger == 0) break;
+                final long now = System.nanoTime();
+                if (deadline == 0) deadline = now + mMaxLinger;
+                else if (now - deadline >= 0) break;
+                mLingering = Thread.currentThread();
+                try {
+                    if (mQueue.isEmpty()) LockSupport.parkNanos(this, deadline - now);
+                } finally {
+                    mLingering = null;
+                }
+                continue;
+            }
+            mSize.decrementAndGet();
+            try {
+                mTransport.encode(frame, listener);
+            } finally {
+                if (frame.getBody() != null) frame.getBody().finish();
+            }
+            if (frame.getFlushed() != null) mFlushed.add(frame.getFlushed());
+            count++;
+        }
+        if (count > 0) {
+            try {
+                mTransport.flush();
+                for (int i = 0; i < mFlushed.size(); i++) mFlushed.get(i).run();
+            } finally {
+                mFlushed.clear();
+            }
+            mConnection.onWrite();
+            wakeProducers();
+        }
+        return count;
+    }
+}
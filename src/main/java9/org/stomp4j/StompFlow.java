@@ -0,0 +1,63 @@
+package org.stomp4j;
+
+import java.util.concurrent.Flow;
+
+/**
+ * StompFlow Class
+ *
+ * <p>Adapts a {@link StompPublisher} to {@link java.util.concurrent.Flow}. Shipped in the versioned part of the
+ * jar ({@code META-INF/versions/9}), so it is only available on Java 9 and later. There is no base version to
+ * match, as its API needs {@link Flow}; {@code jar --validate} reports it as a new public class for that reason.
+ *
+ * @author Rory Slegtenhorst <rory.slegtenhorst@gmail.com>
+ */
+public final class StompFlow {
+
+    private StompFlow() {}
+
+    /**
+     * Returns a {@link Flow.Publisher} view of the publisher. Demand and cancellation are passed on as-is.
+     * @param publisher
+     * @return Flow.Publisher
+     */
+    public static Flow.Publisher<StompMessage> toFlowPublisher(final StompPublisher publisher) {
+        if (publisher == null) throw new NullPointerException();
+        return new Flow.Publisher<StompMessage>() {
+            @Override
+            public void subscribe(final Flow.Subscriber<? super StompMessage> subscriber) {
+                if (subscriber == null) throw new NullPointerException();
+                publisher.subscribe(new StompPublisher.Subscriber() {
+                    @Override
+                    public void onSubscribe(final StompPublisher.Subscription subscription) {
+                        subscriber.onSubscribe(new Flow.Subscription() {
+                            @Override
+                            public void request(long n) {
+                                subscription.request(n);
+                            }
+
+                            @Override
+                            public void cancel() {
+                                subscription.cancel();
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onNext(StompMessage message) {
+                        subscriber.onNext(message);
+                    }
+
+                    @Override
+                    public void onError(Throwable throwable) {
+                        subscriber.onError(throwable);
+                    }
+
+                    @Override
+                    public void onComplete() {
+                        subscriber.onComplete();
+                    }
+                });
+            }
+        };
+    }
+}
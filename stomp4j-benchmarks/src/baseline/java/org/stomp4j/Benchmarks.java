@@ -0,0 +1,121 @@
+package org.stomp4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks Class
+ *
+ * <p>Frames, streams and connections shared by the benchmarks, against the baseline API (see the
+ * {@code baseline} profile in the pom).
+ *
+ * @author Rory Slegtenhorst <rory.slegtenhorst@gmail.com>
+ */
+final class Benchmarks implements Stomp {
+
+    private Benchmarks() {}
+
+    /**
+     * A {@code MESSAGE} frame with the usual broker headers, padded with custom headers up to {@code headerCount}.
+     * @param subscription
+     * @param payloadSize
+     * @param headerCount
+     * @return StompFrame
+     */
+    static StompFrame message(String subscription, int payloadSize, int headerCount) {
+        final StompFrame frame = new StompFrame(MESSAGE, payload(payloadSize));
+        frame.addHeader(HEADER_SUBSCRIPTION, subscription);
+        frame.addHeader(HEADER_MESSAGE_ID, "ID:broker-1234-5678-1:1:1:1:42");
+        frame.addHeader(HEADER_DESTINATION, "/queue/benchmark");
+        frame.addHeader(HEADER_CONTENT_TYPE, "text/plain;charset=utf-8");
+        frame.addHeader(HEADER_CONTENT_LENGTH, Integer.toString(payloadSize));
+        for (int i = frame.getHeaders().size(); i < headerCount; i++)
+            frame.addHeader("x-custom-" + i, "value-" + i);
+        return frame;
+    }
+
+    static byte[] payload(int size) {
+        final byte[] payload = new byte[size];
+        for (int i = 0; i < size; i++) payload[i] = (byte) ('a' + i % 26);
+        return payload;
+    }
+
+    static byte[] encode(StompFrame frame) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        StompIO.writeFrame(frame, output);
+        return output.toByteArray();
+    }
+
+    /**
+     * Connect a {@link StompServer} loopback, and wait for its {@code CONNECTED} frame.
+     * @return StompServer
+     * @throws IOException
+     */
+    static StompServer connect() throws IOException {
+        final StompServer connection = new Loopback();
+        final CountDownLatch connected = new CountDownLatch(1);
+        connection.setEventListener(new StompConnection.Listener() {
+            @Override
+            public void onConnecting() {}
+
+            @Override
+            public void onConnected() {
+                connected.countDown();
+            }
+
+            @Override
+            public void onDisconnected() {}
+
+            @Override
+            public void onError(StompMessage error) {}
+
+            @Override
+            public void onException(Exception e) {}
+
+            @Override
+            public void onReceipt(String receipt) {}
+
+            @Override
+            public void onUnknownCommand(StompMessage unknown) {}
+        });
+        connection.connect();
+        try {
+            if (!connected.await(5, TimeUnit.SECONDS)) throw new ConnectException(MSG_NOT_CONNECTED);
+        } catch (InterruptedException e) {
+            throw new ConnectException(MSG_NOT_CONNECTED);
+        }
+        return connection;
+    }
+
+    /**
+     * The baseline {@link StompConnection#connect()} reads the user info of the URL, which a loopback does not
+     * have; a placeholder avoids the {@link NullPointerException}. No socket is opened either way.
+     */
+    static final class Loopback extends StompServer {
+        Loopback() throws IOException {
+            url = new URL("http://localhost/");
+        }
+    }
+
+    /**
+     * Discards everything, without allocating.
+     */
+    static final class NullOutputStream extends OutputStream {
+        long mCount = 0;
+
+        @Override
+        public void write(int b) {
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mCount += len;
+        }
+    }
+}
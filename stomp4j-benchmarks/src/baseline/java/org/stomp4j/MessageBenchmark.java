@@ -0,0 +1,63 @@
+package org.stomp4j;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * MessageBenchmark Class
+ *
+ * <p>Conversion between frames and the public {@link StompMessage}: {@link StompIO#frameToMessage} for every
+ * received {@code MESSAGE}, with and without decoding the body, and {@link StompIO#messageToFrame} for every send.
+ *
+ * @author Rory Slegtenhorst <rory.slegtenhorst@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+
+    @Param({"128", "4096"})
+    int payloadSize;
+
+    @Param({"5", "16"})
+    int headerCount;
+
+    private StompFrame mFrame;
+    private StompMessage mMessage;
+
+    @Setup
+    public void setup() {
+        mFrame = Benchmarks.message("1", payloadSize, headerCount);
+        mMessage = new StompMessage("/queue/benchmark", Benchmarks.payload(payloadSize), "text/plain;charset=utf-8", true);
+        for (int i = 0; i < headerCount; i++) mMessage.addHeader("x-custom-" + i, "value-" + i);
+    }
+
+    @Benchmark
+    public StompMessage frameToMessage() {
+        return StompIO.frameToMessage(mFrame);
+    }
+
+    @Benchmark
+    public String frameToMessageBody() {
+        return StompIO.frameToMessage(mFrame).getBody();
+    }
+
+    @Benchmark
+    public StompFrame messageToFrame() {
+        return StompIO.messageToFrame(mMessage);
+    }
+}
@@ -0,0 +1,67 @@
+package org.stomp4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * CodecBenchmark Class
+ *
+ * <p>{@link StompIO#readFrame} and {@link StompIO#writeFrame} on in-memory streams. The decoder and encoder
+ * are reused across invocations, as they are on a connection.
+ *
+ * @author Rory Slegtenhorst <rory.slegtenhorst@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({"0", "128", "4096", "65536"})
+    int payloadSize;
+
+    @Param({"5", "16", "32"})
+    int headerCount;
+
+    private StompFrame mFrame;
+    private ByteArrayInputStream mInput;
+    private StompDecoder mDecoder;
+    private StompEncoder mEncoder;
+    private Benchmarks.NullOutputStream mOutput;
+
+    @Setup
+    public void setup() throws IOException {
+        mFrame = Benchmarks.message("1", payloadSize, headerCount);
+        mInput = new ByteArrayInputStream(Benchmarks.encode(mFrame));
+        mDecoder = new StompDecoder();
+        mEncoder = new StompEncoder();
+        mOutput = new Benchmarks.NullOutputStream();
+    }
+
+    @Benchmark
+    public StompFrame readFrame() throws IOException {
+        mInput.reset();
+        return StompIO.readFrame(mDecoder, mInput);
+    }
+
+    @Benchmark
+    public long writeFrame() throws IOException {
+        StompIO.writeFrame(mEncoder, mFrame, mOutput);
+        return mOutput.mCount;
+    }
+}
@@ -0,0 +1,74 @@
+package org.stomp4j;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * DispatchBenchmark Class
+ *
+ * <p>Routing of received {@code MESSAGE} frames to their subscription's listeners, as done by the reader for
+ * every frame. The connection is a {@link StompServer} loopback with {@code subscriptions} destinations in
+ * {@code ack:auto} mode, so no acknowledgements are written; frames are handed to the connection directly,
+ * cycling through all subscriptions.
+ *
+ * @author Rory Slegtenhorst <rory.slegtenhorst@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    @Param({"1", "100", "10000"})
+    int subscriptions;
+
+    private StompServer mConnection;
+    private StompFrame[] mFrames;
+    private int mNext = 0;
+    private long mReceived = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        mConnection = Benchmarks.connect();
+        final StompListener listener = new StompListener() {
+            @Override
+            public boolean onMessage(StompMessage message) {
+                mReceived++;
+                return true;
+            }
+        };
+        mFrames = new StompFrame[subscriptions];
+        for (int i = 0; i < subscriptions; i++) {
+            mConnection.subscribe("/queue/dispatch-" + i, StompConnection.AckMode.AUTO, listener);
+            // Subscription ids are handed out in order, starting at 1
+            mFrames[i] = Benchmarks.message(Integer.toString(i + 1), 128, 5);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mConnection.disconnect();
+    }
+
+    @Benchmark
+    public long dispatch() throws IOException {
+        mConnection.onFrame(mFrames[mNext]);
+        if (++mNext == mFrames.length) mNext = 0;
+        return mReceived;
+    }
+}
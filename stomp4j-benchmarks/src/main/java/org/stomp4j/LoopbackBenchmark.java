@@ -0,0 +1,79 @@
+package org.stomp4j;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * LoopbackBenchmark Class
+ *
+ * <p>End-to-end send and receive through the {@link StompServer} loopback: every invocation sends
+ * {@link #BATCH} messages and waits until the subscription received all of them. Scores are per message,
+ * covering encoding, the loopback stream, decoding and dispatch.
+ *
+ * @author Rory Slegtenhorst <rory.slegtenhorst@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoopbackBenchmark {
+
+    static final int BATCH = 1000;
+    static final String DESTINATION = "/queue/loopback";
+
+    @Param({"128", "4096"})
+    int payloadSize;
+
+    private StompServer mConnection;
+    private StompMessage mMessage;
+    private final AtomicLong mReceived = new AtomicLong(0);
+    private long mSent = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        mConnection = Benchmarks.connect();
+        mConnection.subscribe(DESTINATION, StompConnection.AckMode.AUTO, new StompListener() {
+            @Override
+            public boolean onMessage(StompMessage message) {
+                mReceived.incrementAndGet();
+                return true;
+            }
+        });
+        mMessage = new StompMessage(DESTINATION, Benchmarks.payload(payloadSize), "application/octet-stream", false);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mConnection.disconnect();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long sendReceive() throws IOException {
+        for (int i = 0; i < BATCH; i++) mConnection.send(mMessage);
+        mSent += BATCH;
+        while (mReceived.get() < mSent) {
+            if (!mConnection.isConnected()) throw new IOException(Stomp.MSG_NOT_CONNECTED);
+            LockSupport.parkNanos(1000);
+        }
+        return mSent;
+    }
+}